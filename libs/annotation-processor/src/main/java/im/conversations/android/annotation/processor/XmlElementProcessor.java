@@ -14,6 +14,7 @@ import java.io.PrintWriter;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 import javax.annotation.processing.AbstractProcessor;
 import javax.annotation.processing.Processor;
@@ -83,6 +84,7 @@ public class XmlElementProcessor extends AbstractProcessor {
             }
             out.println("EXTENSION_CLASS_MAP = builder.build();");
             out.println("}");
+            writeFactoryMethod(out, maps);
             out.println(" private Extensions() {}");
             out.println("}");
             // writing generated file to out …
@@ -92,6 +94,37 @@ public class XmlElementProcessor extends AbstractProcessor {
         return true;
     }
 
+    /**
+     * Writes a create(name, namespace) method that calls the constructors directly instead of
+     * going through the class map and reflection. The string switches compile to a hash lookup
+     * on the (interned) constants followed by a single equals().
+     */
+    private static void writeFactoryMethod(final PrintWriter out, final Map<Id, String> maps) {
+        final Map<String, Map<String, String>> byNamespace = new TreeMap<>();
+        for (final Map.Entry<Id, String> entry : maps.entrySet()) {
+            final Id id = entry.getKey();
+            byNamespace
+                    .computeIfAbsent(id.namespace, ns -> new TreeMap<>())
+                    .put(id.name, entry.getValue());
+        }
+        out.println("public static Extension create(final String name, final String namespace) {");
+        out.println("if (name == null || namespace == null) { return null; }");
+        out.println("return switch (namespace) {");
+        for (final Map.Entry<String, Map<String, String>> namespace : byNamespace.entrySet()) {
+            out.format("case \"%s\" -> switch (name) {", namespace.getKey());
+            out.print("\n");
+            for (final Map.Entry<String, String> element : namespace.getValue().entrySet()) {
+                out.format("case \"%s\" -> new %s();", element.getKey(), element.getValue());
+                out.print("\n");
+            }
+            out.println("default -> null;");
+            out.println("};");
+        }
+        out.println("default -> null;");
+        out.println("};");
+        out.println("}");
+    }
+
     private static Id of(final TypeElement typeElement) {
         final XmlElement xmlElement = typeElement.getAnnotation(XmlElement.class);
         final PackageElement packageElement = getPackageElement(typeElement);
@@ -4,6 +4,7 @@ import android.content.Intent;
 import android.util.Log;
 
 import eu.siacs.conversations.Config;
+import eu.siacs.conversations.entities.Account;
 
 public class QuickConversationsService extends AbstractQuickConversationsService {
 
@@ -35,4 +36,9 @@ public class QuickConversationsService extends AbstractQuickConversationsService
     public void handleSmsReceived(Intent intent) {
         Log.d(Config.LOGTAG,"ignoring received SMS");
     }
+
+    @Override
+    public void onAccountDeleted(Account account) {
+
+    }
 }
\ No newline at end of file
@@ -7,8 +7,10 @@ import android.net.Network;
 import android.os.Build;
 import android.util.Log;
 
+import androidx.annotation.NonNull;
 import androidx.collection.LruCache;
 
+import com.google.common.base.MoreObjects;
 import com.google.common.base.Objects;
 import com.google.common.base.Strings;
 import com.google.common.collect.Collections2;
@@ -25,19 +27,32 @@ import org.minidns.record.Data;
 import org.minidns.record.Record;
 
 import eu.siacs.conversations.Config;
+import eu.siacs.conversations.utils.SerialSingleThreadExecutor;
 
 import java.io.IOException;
 import java.net.InetAddress;
 import java.time.Duration;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class AndroidDNSClient extends AbstractDnsClient {
 
     private static final long DNS_MAX_TTL = 86_400L;
+    // negative answers without SOA record in the authority section would otherwise not be cached
+    private static final long DNS_MIN_NEGATIVE_TTL = 30L;
 
     private static final LruCache<QuestionServerTuple, DnsMessage> QUERY_CACHE =
             new LruCache<>(1024);
+    private static final Set<QuestionServerTuple> REFRESHING = new HashSet<>();
+    private static final Executor REFRESH_EXECUTOR =
+            new SerialSingleThreadExecutor("AndroidDNSClient");
+    private static final AtomicLong CACHE_HITS = new AtomicLong(0);
+    private static final AtomicLong CACHE_STALE_HITS = new AtomicLong(0);
+    private static final AtomicLong CACHE_MISSES = new AtomicLong(0);
     private final Context context;
     private final NetworkDataSource networkDataSource = new NetworkDataSource();
     private boolean askForDnssec = false;
@@ -78,22 +93,15 @@ public class AndroidDNSClient extends AbstractDnsClient {
         final DnsMessage question = newQuestion(queryBuilder).build();
         for (final DNSServer dnsServer : getDNSServers()) {
             final QuestionServerTuple cacheKey = new QuestionServerTuple(dnsServer, question);
-            final DnsMessage cachedResponse = queryCache(cacheKey);
+            final DnsMessage cachedResponse = queryCache(cacheKey, question);
             if (cachedResponse != null) {
                 return new CachedDnsQueryResult(question, cachedResponse);
             }
             final DnsQueryResult result = this.networkDataSource.query(question, dnsServer);
             final var response = result.response;
-            if (response == null) {
+            if (!isCacheable(response)) {
                 continue;
             }
-            switch (response.responseCode) {
-                case NO_ERROR:
-                case NX_DOMAIN:
-                    break;
-                default:
-                    continue;
-            }
             cacheQuery(cacheKey, response);
             return new StandardDnsQueryResult(dnsServer.inetAddress, dnsServer.port,result.queryMethod,question,response);
         }
@@ -145,19 +153,68 @@ public class AndroidDNSClient extends AbstractDnsClient {
         return connectivityManager.getAllNetworks();
     }
 
-    private DnsMessage queryCache(final QuestionServerTuple key) {
+    public static void clearCache() {
+        synchronized (QUERY_CACHE) {
+            QUERY_CACHE.evictAll();
+        }
+    }
+
+    public static CacheStatistics getCacheStatistics() {
+        final int size;
+        synchronized (QUERY_CACHE) {
+            size = QUERY_CACHE.size();
+        }
+        return new CacheStatistics(
+                size, CACHE_HITS.get(), CACHE_STALE_HITS.get(), CACHE_MISSES.get());
+    }
+
+    private static boolean isCacheable(final DnsMessage response) {
+        if (response == null) {
+            return false;
+        }
+        switch (response.responseCode) {
+            case NO_ERROR:
+            case NX_DOMAIN:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Expired responses are still returned for {@link Config#DNS_SERVE_STALE_DURATION} while they
+     * are being refreshed in the background.
+     */
+    private DnsMessage queryCache(final QuestionServerTuple key, final DnsMessage question) {
         final DnsMessage cachedResponse;
+        final long expiresIn;
         synchronized (QUERY_CACHE) {
             cachedResponse = QUERY_CACHE.get(key);
             if (cachedResponse == null) {
+                CACHE_MISSES.incrementAndGet();
                 return null;
             }
-            final long expiresIn = expiresIn(cachedResponse);
-            if (expiresIn < 0) {
+            expiresIn = expiresIn(cachedResponse);
+            if (expiresIn < -Config.DNS_SERVE_STALE_DURATION) {
                 QUERY_CACHE.remove(key);
+                CACHE_MISSES.incrementAndGet();
                 return null;
             }
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+        }
+        if (expiresIn < 0) {
+            CACHE_STALE_HITS.incrementAndGet();
+            refresh(key, question);
+        } else {
+            CACHE_HITS.incrementAndGet();
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            if (expiresIn < 0) {
+                Log.d(
+                        Config.LOGTAG,
+                        "DNS query came from stale cache. expired "
+                                + Duration.ofMillis(-expiresIn)
+                                + " ago");
+            } else {
                 Log.d(
                         Config.LOGTAG,
                         "DNS query came from cache. expires in " + Duration.ofMillis(expiresIn));
@@ -166,6 +223,30 @@ public class AndroidDNSClient extends AbstractDnsClient {
         return cachedResponse;
     }
 
+    private void refresh(final QuestionServerTuple key, final DnsMessage question) {
+        synchronized (REFRESHING) {
+            if (!REFRESHING.add(key)) {
+                return;
+            }
+        }
+        REFRESH_EXECUTOR.execute(
+                () -> {
+                    try {
+                        final DnsQueryResult result =
+                                this.networkDataSource.query(question, key.dnsServer);
+                        if (isCacheable(result.response)) {
+                            cacheQuery(key, result.response);
+                        }
+                    } catch (final IOException e) {
+                        Log.d(Config.LOGTAG, "unable to refresh stale DNS response", e);
+                    } finally {
+                        synchronized (REFRESHING) {
+                            REFRESHING.remove(key);
+                        }
+                    }
+                });
+    }
+
     private void cacheQuery(final QuestionServerTuple key, final DnsMessage response) {
         if (response.receiveTimestamp <= 0) {
             return;
@@ -180,7 +261,7 @@ public class AndroidDNSClient extends AbstractDnsClient {
         if (answerSection == null || answerSection.isEmpty()) {
             final List<Record<? extends Data>> authoritySection = dnsMessage.authoritySection;
             if (authoritySection == null || authoritySection.isEmpty()) {
-                return 0;
+                return DNS_MIN_NEGATIVE_TTL;
             } else {
                 return Collections.min(Collections2.transform(authoritySection, d -> d.ttl));
             }
@@ -222,6 +303,32 @@ public class AndroidDNSClient extends AbstractDnsClient {
         }
     }
 
+    public static class CacheStatistics {
+        public final int size;
+        public final long hits;
+        public final long staleHits;
+        public final long misses;
+
+        private CacheStatistics(
+                final int size, final long hits, final long staleHits, final long misses) {
+            this.size = size;
+            this.hits = hits;
+            this.staleHits = staleHits;
+            this.misses = misses;
+        }
+
+        @Override
+        @NonNull
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("size", size)
+                    .add("hits", hits)
+                    .add("staleHits", staleHits)
+                    .add("misses", misses)
+                    .toString();
+        }
+    }
+
     public static class CachedDnsQueryResult extends DnsQueryResult {
 
         private CachedDnsQueryResult(final DnsMessage query, final DnsMessage response) {
@@ -4,6 +4,7 @@ import android.graphics.Bitmap;
 import android.net.Uri;
 
 import eu.siacs.conversations.crypto.XmppDomainVerifier;
+import eu.siacs.conversations.xml.AbstractXmlReader;
 import eu.siacs.conversations.xmpp.Jid;
 import eu.siacs.conversations.xmpp.chatstate.ChatState;
 
@@ -59,10 +60,49 @@ public final class Config {
     public static final boolean ALLOW_NON_TLS_CONNECTIONS =
             false; // very dangerous. you should have a good reason to set this to true
 
+    // number of queued pgp messages decrypted before the results are written and the UI refreshed
+    public static final int PGP_DECRYPTION_BATCH_SIZE = 25;
+
     public static final long CONTACT_SYNC_RETRY_INTERVAL = 1000L * 60 * 5;
+    // only send phone book changes once the api server has assigned a version to the phone book
+    public static final boolean QUICKSY_DELTA_SYNC = true;
 
     public static final boolean QUICKSTART_ENABLED = true;
 
+    // STREAMING parses directly from a byte buffer; PULL_PARSER uses the platform XmlPullParser
+    public static final AbstractXmlReader.Engine XML_READER_ENGINE =
+            AbstractXmlReader.Engine.PULL_PARSER;
+    // instantiate known extensions through the constructor calls generated by the annotation
+    // processor. false falls back to the class map and reflection
+    public static final boolean GENERATED_EXTENSION_FACTORY = true;
+    // elements with at least this many children index them by name and class on the first
+    // lookup. Integer.MAX_VALUE always scans the children
+    public static final int ELEMENT_CHILD_INDEX_THRESHOLD = 6;
+    // serialize queued stanzas into one buffer and send them with a single write and flush
+    public static final boolean BATCHED_TAG_WRITER = true;
+
+    // run MessageParser and PresenceParser on a dispatcher instead of the socket reader thread
+    public static final boolean DISPATCH_STANZAS_OFF_READER_THREAD = true;
+    // lanes are picked by the bare JID of the sender. one lane keeps all stanzas in order; more
+    // lanes require the duplicate checks in MessageParser to be atomic per conversation
+    public static final int STANZA_DISPATCH_LANES = 1;
+    public static final int STANZA_DISPATCH_QUEUE_SIZE = 256;
+    // request stream management acks once per drained write queue instead of after every message
+    // and coalesce acks. requests are sent right away after this many messages, bytes or
+    // milliseconds since the last one
+    public static final boolean ADAPTIVE_SM_ACKS = true;
+    public static final int SM_ACK_REQUEST_MAX_STANZAS = 10;
+    public static final long SM_ACK_REQUEST_MAX_BYTES = 32 * 1024;
+    public static final long SM_ACK_REQUEST_MAX_DELAY = 5000;
+
+    // only restore messages of conversations with unread or pending messages at startup. the
+    // others are restored from a summary and load their first page when accessed
+    public static final boolean LAZY_MESSAGE_RESTORE = true;
+
+    // roster writes caused by presences are done at most once per this many milliseconds. 0 writes
+    // the roster for every presence
+    public static final long PRESENCE_BATCH_WINDOW = 250;
+
     // Notification settings
     public static final boolean HIDE_MESSAGE_TEXT_IN_NOTIFICATION = false;
     public static final boolean ALWAYS_NOTIFY_BY_DEFAULT = false;
@@ -77,6 +117,15 @@ public final class Config {
     public static final int PING_TIMEOUT = 15;
     public static final int SOCKET_TIMEOUT = 15;
     public static final int CONNECT_TIMEOUT = 90;
+    // seconds after which callbacks of unanswered iq requests fail with a timeout
+    public static final int IQ_TIMEOUT = 120;
+    // start connecting to the next resolver result if the previous one hasn’t connected after
+    // this many milliseconds (RFC 8305 recommends 250ms). false tries one result after another
+    public static final boolean RACE_CONNECTION_ATTEMPTS = true;
+    public static final long CONNECTION_ATTEMPT_DELAY = 250;
+    // expired DNS responses are still used for this long while they are being refreshed in the
+    // background
+    public static final long DNS_SERVE_STALE_DURATION = 5 * 60 * 1000L;
     public static final int POST_CONNECTIVITY_CHANGE_PING_INTERVAL = 30;
     public static final int CONNECT_DISCO_TIMEOUT = 20;
     public static final int MINI_GRACE_PERIOD = 750;
@@ -92,6 +141,10 @@ public final class Config {
     public static final Bitmap.CompressFormat IMAGE_FORMAT = Bitmap.CompressFormat.JPEG;
     public static final int IMAGE_QUALITY = 75;
 
+    // thumbnails are generated on this many threads and kept on disk up to this many bytes
+    public static final int THUMBNAIL_THREADS = 3;
+    public static final long THUMBNAIL_DISK_CACHE_SIZE = 64 * 1024 * 1024;
+
     public static final boolean USE_OPUS_VOICE_MESSAGES = false;
 
     public static final int MESSAGE_MERGE_WINDOW = 20;
@@ -101,6 +154,7 @@ public final class Config {
     public static final int MAX_SEARCH_RESULTS = 300;
 
     public static final int REFRESH_UI_INTERVAL = 500;
+    public static final int UI_INVALIDATION_INTERVAL = 250; // coalesce ui updates; 0 delivers them synchronously
 
     public static final int MAX_DISPLAY_MESSAGE_CHARS = 4096;
     public static final int MAX_STORAGE_MESSAGE_CHARS = 2 * 1024 * 1024; // 2MB
@@ -120,6 +174,13 @@ public final class Config {
             false; // disables STUN/TURN and Proxy65 look up (useful to debug IBB fallback)
     public static final boolean USE_DIRECT_JINGLE_CANDIDATES = true;
     public static final boolean USE_JINGLE_MESSAGE_INIT = true;
+    public static final boolean ICE_SERVER_CACHE = true; // reuse discovered STUN/TURN servers until they expire
+    public static final long ICE_SERVERS_MAX_AGE = 30 * 60 * 1000; // for servers without expiry
+    public static final int JINGLE_FILE_TRANSFER_BUFFER_SIZE = 64 * 1024;
+    public static final int JINGLE_FILE_TRANSFER_BUFFERS = 4; // how far transfers may run ahead of hashing
+    public static final int IBB_BLOCK_SIZE = 32 * 1024; // proposed; peers may negotiate down
+    public static final boolean IBB_ADAPTIVE_WINDOW = true; // adapt un-acked ibb blocks to round trip times
+    public static final int IBB_MAX_WINDOW = 32;
 
     public static final boolean JINGLE_MESSAGE_INIT_STRICT_OFFLINE_CHECK = false;
     public static final boolean DISABLE_HTTP_UPLOAD = false;
@@ -130,6 +191,8 @@ public final class Config {
             true; // setting to true might increase power consumption
 
     public static final boolean ENCRYPT_ON_HTTP_UPLOADED = false;
+    // decrypt aesgcm:// downloads in-stream instead of storing and re-reading the cipher text
+    public static final boolean DECRYPT_DOWNLOADS_WHILE_RECEIVING = true;
 
     public static final boolean X509_VERIFICATION =
             false; // use x509 certificates to verify OMEMO keys
@@ -146,6 +209,10 @@ public final class Config {
 
     public static final long MAM_MAX_CATCHUP = MILLISECONDS_IN_DAY * 5;
     public static final int MAM_MAX_MESSAGES = 750;
+    public static final boolean MAM_BULK_INGESTION = true; // persist each mam result page in one transaction
+    public static final boolean MAM_SCHEDULER = true; // bound and prioritize concurrent mam queries
+    public static final int MAM_MAX_PARALLEL_QUERIES = 3; // per account and archive host
+    public static final int MAM_MAX_PAGE_SIZE = 200;
 
     public static final ChatState DEFAULT_CHAT_STATE = ChatState.ACTIVE;
     public static final int TYPING_TIMEOUT = 8;
@@ -2,6 +2,7 @@ package eu.siacs.conversations.crypto;
 
 import android.app.PendingIntent;
 import android.content.Intent;
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.openintents.openpgp.OpenPgpMetadata;
@@ -16,11 +17,15 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.entities.Conversation;
+import eu.siacs.conversations.entities.Conversational;
 import eu.siacs.conversations.entities.DownloadableFile;
 import eu.siacs.conversations.entities.Message;
 import eu.siacs.conversations.http.HttpConnectionManager;
@@ -33,9 +38,11 @@ public class PgpDecryptionService {
 	protected final HashSet<Message> pendingNotifications = new HashSet<>();
 	private final XmppConnectionService mXmppConnectionService;
 	private OpenPgpApi openPgpApi = null;
-	private Message currentMessage;
+	private boolean running = false;
 	private PendingIntent pendingIntent;
 	private Intent userInteractionResult;
+	private long decryptedMessages = 0;
+	private long decryptionTime = 0;
 
 
 	public PgpDecryptionService(XmppConnectionService service) {
@@ -76,7 +83,7 @@ public class PgpDecryptionService {
 	public void giveUpCurrentDecryption() {
 		Message message;
 		synchronized (this) {
-			if (currentMessage != null) {
+			if (running) {
 				return;
 			}
 			message = messages.peekFirst();
@@ -96,18 +103,93 @@ public class PgpDecryptionService {
 
 	protected synchronized void decryptNext() {
 		if (pendingIntent == null
+				&& !running
 				&& getOpenPgpApi() != null
-				&& (currentMessage = messages.poll()) != null) {
-			new Thread(new Runnable() {
-				@Override
-				public void run() {
-					executeApi(currentMessage);
-					decryptNext();
+				&& !messages.isEmpty()) {
+			final List<Message> batch = nextBatch();
+			running = true;
+			new Thread(() -> {
+				executeBatch(batch);
+				synchronized (PgpDecryptionService.this) {
+					running = false;
 				}
+				decryptNext();
 			}).start();
 		}
 	}
 
+	/**
+	 * Takes up to {@link Config#PGP_DECRYPTION_BATCH_SIZE} messages off the queue, messages of the
+	 * conversation the user is looking at first.
+	 */
+	private List<Message> nextBatch() {
+		final List<Message> batch = new ArrayList<>();
+		final Conversational open = mXmppConnectionService.getNotificationService().getOpenConversation();
+		if (open != null) {
+			for (final Iterator<Message> iterator = messages.iterator(); iterator.hasNext() && batch.size() < Config.PGP_DECRYPTION_BATCH_SIZE; ) {
+				final Message message = iterator.next();
+				if (message.getConversation() == open) {
+					batch.add(message);
+					iterator.remove();
+				}
+			}
+		}
+		Message message;
+		while (batch.size() < Config.PGP_DECRYPTION_BATCH_SIZE && (message = messages.poll()) != null) {
+			batch.add(message);
+		}
+		return batch;
+	}
+
+	private void executeBatch(final List<Message> batch) {
+		final long start = SystemClock.elapsedRealtime();
+		final List<Message> processed = new ArrayList<>();
+		final List<File> sources = new ArrayList<>();
+		int handled = batch.size();
+		for (int i = 0; i < batch.size(); ++i) {
+			final Message message = batch.get(i);
+			if (!executeApi(message, processed, sources)) {
+				handled = i + 1;
+				synchronized (this) {
+					// the message itself has already been put back; keep the rest behind it
+					final Message interrupted = messages.pollFirst();
+					for (int j = batch.size() - 1; j > i; --j) {
+						messages.addFirst(batch.get(j));
+					}
+					messages.addFirst(interrupted);
+				}
+				break;
+			}
+		}
+		if (!processed.isEmpty()) {
+			persist(processed, start);
+		}
+		// only now the database points to the decrypted files instead of the encrypted ones
+		for (final File source : sources) {
+			if (!source.delete()) {
+				Log.w(Config.LOGTAG,"unable to delete pgp encrypted source file "+source.getAbsolutePath());
+			}
+		}
+		for (final Message message : batch.subList(0, handled)) {
+			// decrypted files are pushed once the media scanner has picked them up
+			if (!message.isFileOrImage() || message.getEncryption() != Message.ENCRYPTION_DECRYPTED) {
+				notifyIfPending(message);
+			}
+		}
+	}
+
+	private void persist(final List<Message> processed, final long start) {
+		mXmppConnectionService.updateMessages(processed);
+		final long duration = SystemClock.elapsedRealtime() - start;
+		final int remaining;
+		synchronized (this) {
+			decryptedMessages += processed.size();
+			decryptionTime += duration;
+			remaining = messages.size();
+		}
+		Log.d(Config.LOGTAG, "decrypted " + processed.size() + " pgp messages in " + duration + "ms (" + String.format(Locale.ENGLISH, "%.1f", processed.size() * 1000.0 / Math.max(1, duration)) + "/s). " + remaining + " remaining");
+	}
+
 	public synchronized void continueDecryption(boolean resetPending) {
 		if (resetPending) {
 			this.pendingIntent = null;
@@ -122,7 +204,7 @@ public class PgpDecryptionService {
 	}
 
 	public synchronized void continueDecryption() {
-		if (currentMessage == null) {
+		if (!running) {
 			decryptNext();
 		}
 	}
@@ -134,8 +216,15 @@ public class PgpDecryptionService {
 		return this.openPgpApi;
 	}
 
-	private void executeApi(Message message) {
-		boolean skipNotificationPush = false;
+	/**
+	 * Decrypts a single message and adds it to {@code processed} for the caller to persist. The
+	 * encrypted source of a decrypted file is added to {@code sources}; the caller deletes it
+	 * after persisting.
+	 *
+	 * @return false if decryption requires user interaction; the message has been put back at the
+	 *     front of the queue in that case
+	 */
+	private boolean executeApi(final Message message, final List<Message> processed, final List<File> sources) {
 		synchronized (message) {
 			Intent params = userInteractionResult != null ? userInteractionResult : new Intent();
 			params.setAction(OpenPgpApi.ACTION_DECRYPT_VERIFY);
@@ -160,20 +249,19 @@ public class PgpDecryptionService {
 							Log.d(Config.LOGTAG,"decryption failed", e);
 							message.setEncryption(Message.ENCRYPTION_DECRYPTION_FAILED);
 						}
-						mXmppConnectionService.updateMessage(message);
+						processed.add(message);
 						break;
 					case OpenPgpApi.RESULT_CODE_USER_INTERACTION_REQUIRED:
 						synchronized (PgpDecryptionService.this) {
 							PendingIntent pendingIntent = result.getParcelableExtra(OpenPgpApi.RESULT_INTENT);
 							messages.addFirst(message);
-							currentMessage = null;
 							storePendingIntent(pendingIntent);
 						}
-						break;
+						return false;
 					case OpenPgpApi.RESULT_CODE_ERROR:
 						Log.d(Config.LOGTAG,"decryption failed (api error)");
 						message.setEncryption(Message.ENCRYPTION_DECRYPTION_FAILED);
-						mXmppConnectionService.updateMessage(message);
+						processed.add(message);
 						break;
 				}
 			} else if (message.isFileOrImage()) {
@@ -211,35 +299,29 @@ public class PgpDecryptionService {
 							final String url = message.getFileParams().url;
 							message.setEncryption(Message.ENCRYPTION_DECRYPTED);
 							mXmppConnectionService.getFileBackend().updateFileParams(message, url);
-							mXmppConnectionService.updateMessage(message);
-							if (!inputFile.delete()) {
-								Log.w(Config.LOGTAG,"unable to delete pgp encrypted source file "+inputFile.getAbsolutePath());
-							}
-							skipNotificationPush = true;
+							processed.add(message);
+							sources.add(inputFile);
 							mXmppConnectionService.getFileBackend().updateMediaScanner(outputFile, () -> notifyIfPending(message));
 							break;
 						case OpenPgpApi.RESULT_CODE_USER_INTERACTION_REQUIRED:
 							synchronized (PgpDecryptionService.this) {
 								PendingIntent pendingIntent = result.getParcelableExtra(OpenPgpApi.RESULT_INTENT);
 								messages.addFirst(message);
-								currentMessage = null;
 								storePendingIntent(pendingIntent);
 							}
-							break;
+							return false;
 						case OpenPgpApi.RESULT_CODE_ERROR:
 							message.setEncryption(Message.ENCRYPTION_DECRYPTION_FAILED);
-							mXmppConnectionService.updateMessage(message);
+							processed.add(message);
 							break;
 					}
 				} catch (final IOException e) {
 					message.setEncryption(Message.ENCRYPTION_DECRYPTION_FAILED);
-					mXmppConnectionService.updateMessage(message);
+					processed.add(message);
 				}
 			}
 		}
-		if (!skipNotificationPush) {
-			notifyIfPending(message);
-		}
+		return true;
 	}
 
 	private synchronized void notifyIfPending(Message message) {
@@ -270,6 +352,15 @@ public class PgpDecryptionService {
 		return pendingIntent;
 	}
 
+	public synchronized int getQueueLength() {
+		return messages.size();
+	}
+
+	/** Average number of messages decrypted per second while decrypting. */
+	public synchronized double getThroughput() {
+		return decryptionTime == 0 ? 0 : decryptedMessages * 1000.0 / decryptionTime;
+	}
+
 	public boolean isConnected() {
 		return getOpenPgpApi() != null;
 	}
@@ -280,7 +280,7 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
 
     public void destroy() {
         Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": destroying old axolotl service. no longer in use");
-        mXmppConnectionService.databaseBackend.wipeAxolotlDb(account);
+        axolotlStore.wipe();
     }
 
     public AxolotlService makeNew() {
@@ -1150,7 +1150,7 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
         for (XmppAxolotlSession session : ownSessions) {
             axolotlMessage.addDevice(session);
         }
-
+        axolotlStore.flushSessions();
         return true;
     }
 
@@ -1168,6 +1168,7 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
         for (XmppAxolotlSession session : sessions) {
             axolotlMessage.addDevice(session);
         }
+        axolotlStore.flushSessions();
         return true;
     }
 
@@ -1231,6 +1232,7 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
                 transportInfo.addChild(child);
             }
         }
+        axolotlStore.flushSessions();
         return transportInfo;
     }
 
@@ -1525,6 +1527,7 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
     private void completeSession(XmppAxolotlSession session) {
         final XmppAxolotlMessage axolotlMessage = new XmppAxolotlMessage(account.getJid().asBareJid(), getOwnDeviceId());
         axolotlMessage.addDevice(session, true);
+        axolotlStore.flushSessions();
         try {
             final Jid jid = Jid.of(session.getRemoteAddress().getName());
             final var packet = mXmppConnectionService.getMessageGenerator().generateKeyTransportMessage(jid, axolotlMessage);
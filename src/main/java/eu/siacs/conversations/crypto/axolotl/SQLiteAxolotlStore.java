@@ -15,10 +15,16 @@ import org.whispersystems.libsignal.state.SignalProtocolStore;
 import org.whispersystems.libsignal.state.SignedPreKeyRecord;
 import org.whispersystems.libsignal.util.KeyHelper;
 
+import java.io.IOException;
 import java.security.cert.X509Certificate;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.entities.Account;
@@ -48,6 +54,12 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	public static final String JSONKEY_CURRENT_PREKEY_ID = "axolotl_cur_prekey_id";
 
 	private static final int NUM_TRUSTS_TO_CACHE = 100;
+	private static final int NUM_IDENTITIES_TO_CACHE = 100;
+	private static final int NUM_SESSIONS_TO_CACHE = 256;
+	private static final long SESSION_WRITE_DELAY = 1000; //ms
+
+	private static final byte[] NO_SESSION = new byte[0];
+	private static final ScheduledExecutorService SESSION_WRITER = Executors.newSingleThreadScheduledExecutor();
 
 	private final Account account;
 	private final XmppConnectionService mXmppConnectionService;
@@ -66,6 +78,25 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 				}
 			};
 
+	private final LruCache<String, Set<IdentityKey>> identityCache =
+			new LruCache<String, Set<IdentityKey>>(NUM_IDENTITIES_TO_CACHE) {
+				@Override
+				protected Set<IdentityKey> create(String name) {
+					return mXmppConnectionService.databaseBackend.loadIdentityKeys(account, name);
+				}
+			};
+
+	/*
+	 * Serialized session records as they are in the database. NO_SESSION marks addresses that are
+	 * known to have no session. Sessions that have been stored but not yet written are kept in
+	 * pendingSessions (which isn't bounded by the cache size) and are written in one transaction,
+	 * either after SESSION_WRITE_DELAY or, at the latest, before anything encrypted with them is
+	 * sent (see flushSessions()). Both maps are guarded by the monitor of sessionCache.
+	 */
+	private final LruCache<SignalProtocolAddress, byte[]> sessionCache = new LruCache<>(NUM_SESSIONS_TO_CACHE);
+	private final Map<SignalProtocolAddress, byte[]> pendingSessions = new LinkedHashMap<>();
+	private boolean sessionWriteScheduled = false;
+
 	private static IdentityKeyPair generateIdentityKeyPair() {
 		Log.i(Config.LOGTAG, AxolotlService.LOGPREFIX + " : " + "Generating axolotl IdentityKeyPair...");
 		ECKeyPair identityKeyPairKeys = Curve.generateKeyPair();
@@ -142,9 +173,18 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 		return prekey_id;
 	}
 
-	public void regenerate() {
-		mXmppConnectionService.databaseBackend.wipeAxolotlDb(account);
+	public void wipe() {
+		synchronized (sessionCache) {
+			pendingSessions.clear();
+			sessionCache.evictAll();
+			mXmppConnectionService.databaseBackend.wipeAxolotlDb(account);
+		}
+		identityCache.evictAll();
 		trustCache.evictAll();
+	}
+
+	public void regenerate() {
+		wipe();
 		account.setKey(JSONKEY_CURRENT_PREKEY_ID, Integer.toString(0));
 		identityKeyPair = loadIdentityKeyPair();
 		localRegistrationId = loadRegistrationId(true);
@@ -189,7 +229,7 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	 */
 	@Override
 	public boolean saveIdentity(SignalProtocolAddress address, IdentityKey identityKey) {
-		if (!mXmppConnectionService.databaseBackend.loadIdentityKeys(account, address.getName()).contains(identityKey)) {
+		if (!identityCache.get(address.getName()).contains(identityKey)) {
 			String fingerprint = CryptoHelper.bytesToHex(identityKey.getPublicKey().serialize());
 			FingerprintStatus status = getFingerprintStatus(fingerprint);
 			if (status == null) {
@@ -203,6 +243,7 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 				status = status.toActive();
 			}
 			mXmppConnectionService.databaseBackend.storeIdentityKey(account, address.getName(), identityKey, status);
+			identityCache.remove(address.getName());
 			trustCache.remove(fingerprint);
 		}
 		return true;
@@ -270,8 +311,32 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	 */
 	@Override
 	public SessionRecord loadSession(SignalProtocolAddress address) {
-		SessionRecord session = mXmppConnectionService.databaseBackend.loadSession(this.account, address);
-		return (session != null) ? session : new SessionRecord();
+		final byte[] serialized = getSerializedSession(address);
+		if (serialized == NO_SESSION) {
+			return new SessionRecord();
+		}
+		try {
+			return new SessionRecord(serialized);
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private byte[] getSerializedSession(SignalProtocolAddress address) {
+		synchronized (sessionCache) {
+			final byte[] pending = pendingSessions.get(address);
+			if (pending != null) {
+				return pending;
+			}
+			final byte[] cached = sessionCache.get(address);
+			if (cached != null) {
+				return cached;
+			}
+			final SessionRecord session = mXmppConnectionService.databaseBackend.loadSession(this.account, address);
+			final byte[] serialized = session == null ? NO_SESSION : session.serialize();
+			sessionCache.put(address, serialized);
+			return serialized;
+		}
 	}
 
 	/**
@@ -282,12 +347,14 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	 */
 	@Override
 	public List<Integer> getSubDeviceSessions(String name) {
+		flushSessions();
 		return mXmppConnectionService.databaseBackend.getSubDeviceSessions(account,
 				new SignalProtocolAddress(name, 0));
 	}
 
 
 	public List<String> getKnownAddresses() {
+		flushSessions();
 		return mXmppConnectionService.databaseBackend.getKnownSignalAddresses(account);
 	}
 	/**
@@ -298,7 +365,38 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	 */
 	@Override
 	public void storeSession(SignalProtocolAddress address, SessionRecord record) {
-		mXmppConnectionService.databaseBackend.storeSession(account, address, record);
+		final byte[] serialized = record.serialize();
+		synchronized (sessionCache) {
+			pendingSessions.put(address, serialized);
+			if (!sessionWriteScheduled) {
+				sessionWriteScheduled = true;
+				SESSION_WRITER.schedule(this::flushSessions, SESSION_WRITE_DELAY, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	/**
+	 * Writes all stored sessions that haven't been written yet in a single transaction. Has to be
+	 * called before sending anything that was encrypted with a session (or that completes a session)
+	 * so that a crash can't roll back a ratchet the other side has already seen.
+	 */
+	public void flushSessions() {
+		synchronized (sessionCache) {
+			sessionWriteScheduled = false;
+			if (pendingSessions.isEmpty()) {
+				return;
+			}
+			final int count = pendingSessions.size();
+			final long start = System.nanoTime();
+			mXmppConnectionService.databaseBackend.storeSessions(account, pendingSessions);
+			for (Map.Entry<SignalProtocolAddress, byte[]> entry : pendingSessions.entrySet()) {
+				sessionCache.put(entry.getKey(), entry.getValue());
+			}
+			pendingSessions.clear();
+			if (count > 1) {
+				Log.d(Config.LOGTAG, AxolotlService.getLogprefix(account) + "wrote " + count + " sessions in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+			}
+		}
 	}
 
 	/**
@@ -309,7 +407,7 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	 */
 	@Override
 	public boolean containsSession(SignalProtocolAddress address) {
-		return mXmppConnectionService.databaseBackend.containsSession(account, address);
+		return getSerializedSession(address) != NO_SESSION;
 	}
 
 	/**
@@ -319,7 +417,11 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	 */
 	@Override
 	public void deleteSession(SignalProtocolAddress address) {
-		mXmppConnectionService.databaseBackend.deleteSession(account, address);
+		synchronized (sessionCache) {
+			pendingSessions.remove(address);
+			sessionCache.put(address, NO_SESSION);
+			mXmppConnectionService.databaseBackend.deleteSession(account, address);
+		}
 	}
 
 	/**
@@ -330,8 +432,16 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	@Override
 	public void deleteAllSessions(String name) {
 		SignalProtocolAddress address = new SignalProtocolAddress(name, 0);
-		mXmppConnectionService.databaseBackend.deleteAllSessions(account,
-				address);
+		synchronized (sessionCache) {
+			pendingSessions.keySet().removeIf(a -> a.getName().equals(name));
+			for (SignalProtocolAddress cached : sessionCache.snapshot().keySet()) {
+				if (cached.getName().equals(name)) {
+					sessionCache.remove(cached);
+				}
+			}
+			mXmppConnectionService.databaseBackend.deleteAllSessions(account,
+					address);
+		}
 	}
 
 	// --------------------------------------
@@ -396,6 +506,8 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 
 
 	public boolean flushPreKeys() {
+		// the session that consumed the pre key has to be persisted before the pre key is gone
+		flushSessions();
 		Log.d(Config.LOGTAG,"flushing pre keys");
 		int count = 0;
 		synchronized (preKeysMarkedForRemoval) {
@@ -473,5 +585,6 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 
 	public void preVerifyFingerprint(Account account, String name, String fingerprint) {
 		mXmppConnectionService.databaseBackend.storePreVerification(account,name,fingerprint,FingerprintStatus.createInactiveVerified());
+		identityCache.remove(name);
 	}
 }
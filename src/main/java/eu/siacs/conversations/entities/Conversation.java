@@ -7,6 +7,7 @@ import android.text.TextUtils;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.google.common.base.Throwables;
 import com.google.common.collect.ComparisonChain;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
@@ -20,6 +21,8 @@ import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import eu.siacs.conversations.Config;
@@ -68,6 +71,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     private static final String ATTRIBUTE_NEXT_ENCRYPTION = "next_encryption";
     private static final String ATTRIBUTE_CORRECTING_MESSAGE = "correcting_message";
     protected final ArrayList<Message> messages = new ArrayList<>();
+    final MessageIndex messageIndex = new MessageIndex();
     public AtomicBoolean messagesLoaded = new AtomicBoolean(true);
     protected Account account = null;
     private String draftMessage;
@@ -86,6 +90,9 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     private ChatState mIncomingChatState = Config.DEFAULT_CHAT_STATE;
     private String mFirstMamReference = null;
     private String displayState = null;
+    private volatile PendingRestore deferredRestore = null;
+    private Message deferredLatestMessage = null;
+    private MamReference deferredLastTransmitted = null;
 
     public Conversation(final String name, final Account account, final Jid contactJid,
                         final int mode) {
@@ -162,6 +169,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public Message getFirstUnreadMessage() {
         Message first = null;
+        restoreDeferredMessages();
         synchronized (this.messages) {
             for (int i = messages.size() - 1; i >= 0; --i) {
                 if (messages.get(i).isRead()) {
@@ -176,6 +184,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public String findMostRecentRemoteDisplayableId() {
         final boolean multi = mode == Conversation.MODE_MULTI;
+        restoreDeferredMessages();
         synchronized (this.messages) {
             for (final Message message : Lists.reverse(this.messages)) {
                 if (message.getStatus() == Message.STATUS_RECEIVED) {
@@ -192,6 +201,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public int countFailedDeliveries() {
         int count = 0;
+        restoreDeferredMessages();
         synchronized (this.messages) {
             for(final Message message : this.messages) {
                 if (message.getStatus() == Message.STATUS_SEND_FAILED) {
@@ -203,6 +213,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     }
 
     public Message getLastEditableMessage() {
+        restoreDeferredMessages();
         synchronized (this.messages) {
             for (final Message message : Lists.reverse(this.messages)) {
                 if (message.isEditable()) {
@@ -218,19 +229,18 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
 
     public Message findUnsentMessageWithUuid(String uuid) {
-        synchronized (this.messages) {
-            for (final Message message : this.messages) {
-                final int s = message.getStatus();
-                if ((s == Message.STATUS_UNSEND || s == Message.STATUS_WAITING) && message.getUuid().equals(uuid)) {
-                    return message;
-                }
-            }
+        restoreDeferredMessages();
+        final Message message = this.messageIndex.getByUuid(uuid);
+        if (message == null) {
+            return null;
         }
-        return null;
+        final int s = message.getStatus();
+        return s == Message.STATUS_UNSEND || s == Message.STATUS_WAITING ? message : null;
     }
 
     public void findWaitingMessages(OnMessageFound onMessageFound) {
         final ArrayList<Message> results = new ArrayList<>();
+        // deferred messages are never pending; see deferMessageRestore()
         synchronized (this.messages) {
             for (Message message : this.messages) {
                 if (message.getStatus() == Message.STATUS_WAITING) {
@@ -245,6 +255,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public void findUnreadMessagesAndCalls(OnMessageFound onMessageFound) {
         final ArrayList<Message> results = new ArrayList<>();
+        // conversations with unread messages are never deferred
         synchronized (this.messages) {
             for (final Message message : this.messages) {
                 if (message.isRead()) {
@@ -259,29 +270,23 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     }
 
     public Message findMessageWithFileAndUuid(final String uuid) {
-        synchronized (this.messages) {
-            for (final Message message : this.messages) {
-                final Transferable transferable = message.getTransferable();
-                final boolean unInitiatedButKnownSize = MessageUtils.unInitiatedButKnownSize(message);
-                if (message.getUuid().equals(uuid)
-                        && message.getEncryption() != Message.ENCRYPTION_PGP
-                        && (message.isFileOrImage() || message.treatAsDownloadable() || unInitiatedButKnownSize || (transferable != null && transferable.getStatus() != Transferable.STATUS_UPLOADING))) {
-                    return message;
-                }
-            }
+        restoreDeferredMessages();
+        final Message message = this.messageIndex.getByUuid(uuid);
+        if (message == null) {
+            return null;
+        }
+        final Transferable transferable = message.getTransferable();
+        final boolean unInitiatedButKnownSize = MessageUtils.unInitiatedButKnownSize(message);
+        if (message.getEncryption() != Message.ENCRYPTION_PGP
+                && (message.isFileOrImage() || message.treatAsDownloadable() || unInitiatedButKnownSize || (transferable != null && transferable.getStatus() != Transferable.STATUS_UPLOADING))) {
+            return message;
         }
         return null;
     }
 
     public Message findMessageWithUuid(final String uuid) {
-        synchronized (this.messages) {
-            for (final Message message : this.messages) {
-                if (message.getUuid().equals(uuid)) {
-                    return message;
-                }
-            }
-        }
-        return null;
+        restoreDeferredMessages();
+        return this.messageIndex.getByUuid(uuid);
     }
 
     public boolean markAsDeleted(final List<String> uuids) {
@@ -321,7 +326,11 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public void clearMessages() {
         synchronized (this.messages) {
+            this.deferredRestore = null;
+            this.deferredLatestMessage = null;
+            this.deferredLastTransmitted = null;
             this.messages.clear();
+            this.messageIndex.clear();
         }
     }
 
@@ -361,6 +370,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
                 if (pgpDecryptionService != null) {
                     pgpDecryptionService.discard(discards);
                 }
+                this.messageIndex.removeAll(discards);
                 discards.clear();
                 untieMessages();
             }
@@ -369,6 +379,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public void findUnsentTextMessages(OnMessageFound onMessageFound) {
         final ArrayList<Message> results = new ArrayList<>();
+        // no restore needed; see findWaitingMessages()
         synchronized (this.messages) {
             for (Message message : this.messages) {
                 if ((message.getType() == Message.TYPE_TEXT || message.hasFileOnRemoteHost()) && message.getStatus() == Message.STATUS_UNSEND) {
@@ -382,19 +393,18 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     }
 
     public Message findSentMessageWithUuidOrRemoteId(String id) {
-        synchronized (this.messages) {
-            for (Message message : this.messages) {
-                if (id.equals(message.getUuid())
-                        || (message.getStatus() >= Message.STATUS_SEND
-                        && id.equals(message.getRemoteMsgId()))) {
-                    return message;
-                }
+        restoreDeferredMessages();
+        Message found = this.messageIndex.getByUuid(id);
+        for (final Message message : this.messageIndex.getByRemoteMsgId(id)) {
+            if (message.getStatus() >= Message.STATUS_SEND) {
+                found = oldest(found, message);
             }
         }
-        return null;
+        return found;
     }
 
     public Message findMessageWithRemoteIdAndCounterpart(String id, Jid counterpart, boolean received, boolean carbon) {
+        restoreDeferredMessages();
         synchronized (this.messages) {
             for (int i = this.messages.size() - 1; i >= 0; --i) {
                 final Message message = messages.get(i);
@@ -417,51 +427,58 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     }
 
     public Message findSentMessageWithUuid(String id) {
-        synchronized (this.messages) {
-            for (Message message : this.messages) {
-                if (id.equals(message.getUuid())) {
-                    return message;
-                }
-            }
-        }
-        return null;
+        restoreDeferredMessages();
+        return this.messageIndex.getByUuid(id);
     }
 
     public Message findMessageWithRemoteId(String id, Jid counterpart) {
-        synchronized (this.messages) {
-            for (Message message : this.messages) {
-                if (counterpart.equals(message.getCounterpart())
-                        && (id.equals(message.getRemoteMsgId()) || id.equals(message.getUuid()))) {
-                    return message;
-                }
+        restoreDeferredMessages();
+        Message found = null;
+        final Message byUuid = this.messageIndex.getByUuid(id);
+        if (byUuid != null && counterpart.equals(byUuid.getCounterpart())) {
+            found = byUuid;
+        }
+        for (final Message message : this.messageIndex.getByRemoteMsgId(id)) {
+            if (counterpart.equals(message.getCounterpart())) {
+                found = oldest(found, message);
             }
         }
-        return null;
+        return found;
     }
 
     public Message findReceivedWithRemoteId(final String id) {
-        synchronized (this.messages) {
-            for (final Message message : this.messages) {
-                if (message.getStatus() == Message.STATUS_RECEIVED && id.equals(message.getRemoteMsgId())) {
-                    return message;
-                }
+        restoreDeferredMessages();
+        Message found = null;
+        for (final Message message : this.messageIndex.getByRemoteMsgId(id)) {
+            if (message.getStatus() == Message.STATUS_RECEIVED) {
+                found = oldest(found, message);
             }
         }
-        return null;
+        return found;
     }
 
     public Message findMessageWithServerMsgId(String id) {
-        synchronized (this.messages) {
-            for (Message message : this.messages) {
-                if (id != null && id.equals(message.getServerMsgId())) {
-                    return message;
-                }
-            }
+        restoreDeferredMessages();
+        Message found = null;
+        for (final Message message : this.messageIndex.getByServerMsgId(id)) {
+            found = oldest(found, message);
         }
-        return null;
+        return found;
+    }
+
+    /**
+     * The index doesn’t know the position of a message in the list. Where several messages match
+     * the one that a scan of the (chronologically sorted) list would have found first is picked.
+     */
+    private static Message oldest(@Nullable final Message current, final Message candidate) {
+        if (current == null || candidate.getTimeSent() < current.getTimeSent()) {
+            return candidate;
+        }
+        return current;
     }
 
     public boolean hasMessageWithCounterpart(Jid counterpart) {
+        restoreDeferredMessages();
         synchronized (this.messages) {
             for (Message message : this.messages) {
                 if (counterpart.equals(message.getCounterpart())) {
@@ -473,6 +490,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     }
 
     public void populateWithMessages(final List<Message> messages) {
+        restoreDeferredMessages();
         synchronized (this.messages) {
             messages.clear();
             messages.addAll(this.messages);
@@ -500,6 +518,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     }
 
     public int countMessages() {
+        restoreDeferredMessages();
         synchronized (this.messages) {
             return this.messages.size();
         }
@@ -591,6 +610,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public List<Message> markRead(final String upToUuid) {
         final ImmutableList.Builder<Message> unread = new ImmutableList.Builder<>();
+        restoreDeferredMessages();
         synchronized (this.messages) {
             for (final Message message : this.messages) {
                 if (!message.isRead()) {
@@ -608,6 +628,9 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     public Message getLatestMessage() {
         synchronized (this.messages) {
             if (this.messages.size() == 0) {
+                if (this.deferredRestore != null && this.deferredLatestMessage != null) {
+                    return this.deferredLatestMessage;
+                }
                 Message message = new Message(this, "", Message.ENCRYPTION_NONE);
                 message.setType(Message.TYPE_STATUS);
                 message.setTime(Math.max(getCreated(), getLastClearHistory().getTimestamp()));
@@ -794,6 +817,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     }
 
     public Message findDuplicateMessage(Message message) {
+        restoreDeferredMessages();
         synchronized (this.messages) {
             for (int i = this.messages.size() - 1; i >= 0; --i) {
                 if (this.messages.get(i).similar(message)) {
@@ -809,6 +833,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     }
 
     public Message findSentMessageWithBody(String body) {
+        restoreDeferredMessages();
         synchronized (this.messages) {
             for (int i = this.messages.size() - 1; i >= 0; --i) {
                 Message message = this.messages.get(i);
@@ -829,35 +854,35 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     }
 
     public Message findRtpSession(final String sessionId, final int s) {
-        synchronized (this.messages) {
-            for (int i = this.messages.size() - 1; i >= 0; --i) {
-                final Message message = this.messages.get(i);
-                if ((message.getStatus() == s) && (message.getType() == Message.TYPE_RTP_SESSION) && sessionId.equals(message.getRemoteMsgId())) {
-                    return message;
-                }
+        restoreDeferredMessages();
+        Message found = null;
+        for (final Message message : this.messageIndex.getByRemoteMsgId(sessionId)) {
+            if ((message.getStatus() == s) && (message.getType() == Message.TYPE_RTP_SESSION)
+                    && (found == null || message.getTimeSent() >= found.getTimeSent())) {
+                found = message;
             }
         }
-        return null;
+        return found;
     }
 
     public boolean possibleDuplicate(final String serverMsgId, final String remoteMsgId) {
         if (serverMsgId == null || remoteMsgId == null) {
             return false;
         }
-        synchronized (this.messages) {
-            for (Message message : this.messages) {
-                if (serverMsgId.equals(message.getServerMsgId()) || remoteMsgId.equals(message.getRemoteMsgId())) {
-                    return true;
-                }
-            }
-        }
-        return false;
+        restoreDeferredMessages();
+        return !this.messageIndex.getByServerMsgId(serverMsgId).isEmpty()
+                || !this.messageIndex.getByRemoteMsgId(remoteMsgId).isEmpty();
     }
 
     public MamReference getLastMessageTransmitted() {
         final MamReference lastClear = getLastClearHistory();
         MamReference lastReceived = new MamReference(0);
         synchronized (this.messages) {
+            // deferred messages are answered from the summary; connecting must not restore every
+            // conversation. messages in memory are newer than the deferred ones
+            if (this.deferredRestore != null) {
+                lastReceived = MamReference.max(lastReceived, this.deferredLastTransmitted);
+            }
             for (int i = this.messages.size() - 1; i >= 0; --i) {
                 final Message message = this.messages.get(i);
                 if (message.isPrivateMessage()) {
@@ -992,30 +1017,94 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
         }
     }
 
+    /**
+     * Postpones loading the first page of messages until one of the methods that operate on the
+     * message list is called. Until then the conversation has no messages, {@link
+     * #getLatestMessage()} returns the message from the summary and {@link
+     * #getLastMessageTransmitted()} the reference from the summary. Only use this for conversations
+     * without unread or pending messages since those are never looked at before the restore.
+     */
+    public void deferMessageRestore(@Nullable final Message latestMessage, @Nullable final MamReference lastTransmitted, @NonNull final DeferredRestore restore) {
+        synchronized (this.messages) {
+            this.deferredLatestMessage = latestMessage;
+            this.deferredLastTransmitted = lastTransmitted;
+            this.deferredRestore = new PendingRestore(restore);
+        }
+    }
+
+    public boolean isMessageRestorePending() {
+        return this.deferredRestore != null;
+    }
+
+    /**
+     * Loads the deferred messages or waits for the thread that is already loading them. UI code
+     * should start the restore in the background when a conversation is opened (see {@link
+     * eu.siacs.conversations.services.XmppConnectionService#restoreDeferredMessages(Conversation,
+     * Runnable)}) so the wait is over by the time it accesses the messages.
+     */
+    public void restoreDeferredMessages() {
+        final PendingRestore restore = this.deferredRestore;
+        if (restore != null) {
+            restore.await();
+        }
+    }
+
+    private void restoreDeferredMessages(final PendingRestore restore, final List<Message> restored) {
+        final List<Message> older = new ArrayList<>(restored.size());
+        synchronized (this.messages) {
+            if (this.deferredRestore != restore) {
+                return;
+            }
+            this.deferredRestore = null;
+            this.deferredLatestMessage = null;
+            this.deferredLastTransmitted = null;
+            // messages that have been added by the parsers are newer
+            for (final Message message : restored) {
+                if (this.messageIndex.getByUuid(message.getUuid()) == null) {
+                    older.add(message);
+                }
+            }
+            this.messages.addAll(0, older);
+            this.messageIndex.addAll(older);
+        }
+        account.getPgpDecryptionService().decrypt(older);
+    }
+
     public void add(Message message) {
+        restoreDeferredMessages();
         synchronized (this.messages) {
             this.messages.add(message);
+            this.messageIndex.add(message);
         }
     }
 
     public void prepend(int offset, Message message) {
+        restoreDeferredMessages();
         synchronized (this.messages) {
             this.messages.add(Math.min(offset, this.messages.size()), message);
+            this.messageIndex.add(message);
         }
     }
 
     public void addAll(int index, List<Message> messages) {
+        restoreDeferredMessages();
         synchronized (this.messages) {
             this.messages.addAll(index, messages);
+            this.messageIndex.addAll(messages);
         }
         account.getPgpDecryptionService().decrypt(messages);
     }
 
     public void expireOldMessages(long timestamp) {
         synchronized (this.messages) {
+            if (this.deferredLatestMessage != null && this.deferredLatestMessage.getTimeSent() < timestamp) {
+                this.deferredLatestMessage = null;
+            }
             for (ListIterator<Message> iterator = this.messages.listIterator(); iterator.hasNext(); ) {
-                if (iterator.next().getTimeSent() < timestamp) {
+                final Message message = iterator.next();
+                if (message.getTimeSent() < timestamp) {
                     iterator.remove();
+                    this.messageIndex.remove(message);
                 }
             }
             untieMessages();
@@ -1023,6 +1112,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     }
 
     public void sort() {
+        restoreDeferredMessages();
         synchronized (this.messages) {
             Collections.sort(this.messages, (left, right) -> {
                 if (left.getTimeSent() < right.getTimeSent()) {
@@ -1061,6 +1151,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public int receivedMessagesCount() {
         int count = 0;
+        restoreDeferredMessages();
         synchronized (this.messages) {
             for (Message message : messages) {
                 if (message.getStatus() == Message.STATUS_RECEIVED) {
@@ -1073,6 +1164,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public int sentMessagesCount() {
         int count = 0;
+        restoreDeferredMessages();
         synchronized (this.messages) {
             for (Message message : messages) {
                 if (message.getStatus() != Message.STATUS_RECEIVED) {
@@ -1098,6 +1190,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
             return 0;
         }
         int count = 0;
+        restoreDeferredMessages();
         synchronized (this.messages) {
             for (int i = messages.size() - 1; i >= 0; i--) {
                 final Message message = messages.get(i);
@@ -1134,6 +1227,42 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
         void onMessageFound(final Message message);
     }
 
+    public interface DeferredRestore {
+        /** Reads the first page of messages. Called without holding any lock of the conversation. */
+        List<Message> load();
+    }
+
+    /**
+     * The database is read by whichever thread gets there first, without holding the message
+     * lock. Other threads wait for that read instead of repeating it.
+     */
+    private class PendingRestore {
+        private final DeferredRestore restore;
+        private final FutureTask<Void> task =
+                new FutureTask<>(() -> restoreDeferredMessages(this, load()), null);
+
+        private PendingRestore(final DeferredRestore restore) {
+            this.restore = restore;
+        }
+
+        private List<Message> load() {
+            return restore.load();
+        }
+
+        private void await() {
+            // runs the restore on this thread unless another thread has already started it
+            task.run();
+            try {
+                task.get();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (final ExecutionException e) {
+                Throwables.throwIfUnchecked(e.getCause());
+                throw new RuntimeException(e.getCause());
+            }
+        }
+    }
+
     public static class Draft {
         private final String message;
         private final long timestamp;
@@ -18,6 +18,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
 
@@ -406,7 +407,11 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
     }
 
     public void setRemoteMsgId(String id) {
+        final String previous = this.remoteMsgId;
         this.remoteMsgId = id;
+        if (conversation instanceof Conversation c && !Objects.equals(previous, id)) {
+            c.messageIndex.onRemoteMsgIdChanged(this, previous);
+        }
     }
 
     public String getServerMsgId() {
@@ -414,7 +419,11 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
     }
 
     public void setServerMsgId(String id) {
+        final String previous = this.serverMsgId;
         this.serverMsgId = id;
+        if (conversation instanceof Conversation c && !Objects.equals(previous, id)) {
+            c.messageIndex.onServerMsgIdChanged(this, previous);
+        }
     }
 
     public boolean isRead() {
@@ -781,7 +790,11 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
     }
 
     public void setUuid(String uuid) {
+        final String previous = this.uuid;
         this.uuid = uuid;
+        if (conversation instanceof Conversation c && !Objects.equals(previous, uuid)) {
+            c.messageIndex.onUuidChanged(this, previous);
+        }
     }
 
     public String getEditedId() {
@@ -0,0 +1,128 @@
+package eu.siacs.conversations.entities;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Secondary indexes over the messages of a {@link Conversation} by uuid, remote id and server id.
+ * The index has its own lock so lookups don’t need to hold the monitor of the message list.
+ * Conversation keeps it in sync when messages are added or removed and {@link Message} reports id
+ * changes of messages that are already part of a conversation.
+ */
+final class MessageIndex {
+
+    private final Map<String, Message> uuids = new HashMap<>();
+    private final Map<String, List<Message>> remoteMsgIds = new HashMap<>();
+    private final Map<String, List<Message>> serverMsgIds = new HashMap<>();
+
+    synchronized void add(final Message message) {
+        final String uuid = message.getUuid();
+        if (uuid != null) {
+            uuids.put(uuid, message);
+        }
+        put(remoteMsgIds, message.getRemoteMsgId(), message);
+        put(serverMsgIds, message.getServerMsgId(), message);
+    }
+
+    synchronized void addAll(final Collection<Message> messages) {
+        for (final Message message : messages) {
+            add(message);
+        }
+    }
+
+    synchronized void remove(final Message message) {
+        final String uuid = message.getUuid();
+        if (uuid != null && uuids.get(uuid) == message) {
+            uuids.remove(uuid);
+        }
+        remove(remoteMsgIds, message.getRemoteMsgId(), message);
+        remove(serverMsgIds, message.getServerMsgId(), message);
+    }
+
+    synchronized void removeAll(final Collection<Message> messages) {
+        for (final Message message : messages) {
+            remove(message);
+        }
+    }
+
+    synchronized void clear() {
+        uuids.clear();
+        remoteMsgIds.clear();
+        serverMsgIds.clear();
+    }
+
+    synchronized Message getByUuid(final String uuid) {
+        return uuid == null ? null : uuids.get(uuid);
+    }
+
+    synchronized List<Message> getByRemoteMsgId(final String id) {
+        return get(remoteMsgIds, id);
+    }
+
+    synchronized List<Message> getByServerMsgId(final String id) {
+        return get(serverMsgIds, id);
+    }
+
+    synchronized void onUuidChanged(final Message message, final String previous) {
+        if (previous == null || uuids.get(previous) != message) {
+            return;
+        }
+        uuids.remove(previous);
+        if (message.getUuid() != null) {
+            uuids.put(message.getUuid(), message);
+        }
+    }
+
+    synchronized void onRemoteMsgIdChanged(final Message message, final String previous) {
+        if (isIndexed(message)) {
+            remove(remoteMsgIds, previous, message);
+            put(remoteMsgIds, message.getRemoteMsgId(), message);
+        }
+    }
+
+    synchronized void onServerMsgIdChanged(final Message message, final String previous) {
+        if (isIndexed(message)) {
+            remove(serverMsgIds, previous, message);
+            put(serverMsgIds, message.getServerMsgId(), message);
+        }
+    }
+
+    private boolean isIndexed(final Message message) {
+        final String uuid = message.getUuid();
+        return uuid != null && uuids.get(uuid) == message;
+    }
+
+    private static void put(
+            final Map<String, List<Message>> index, final String key, final Message message) {
+        if (key == null) {
+            return;
+        }
+        List<Message> messages = index.get(key);
+        if (messages == null) {
+            messages = new ArrayList<>(1);
+            index.put(key, messages);
+        }
+        messages.add(message);
+    }
+
+    private static void remove(
+            final Map<String, List<Message>> index, final String key, final Message message) {
+        if (key == null) {
+            return;
+        }
+        final List<Message> messages = index.get(key);
+        if (messages != null && messages.remove(message) && messages.isEmpty()) {
+            index.remove(key);
+        }
+    }
+
+    private static List<Message> get(final Map<String, List<Message>> index, final String key) {
+        final List<Message> messages = key == null ? null : index.get(key);
+        return messages == null ? ImmutableList.of() : ImmutableList.copyOf(messages);
+    }
+}
@@ -0,0 +1,125 @@
+package eu.siacs.conversations.entities;
+
+import androidx.annotation.NonNull;
+
+import com.google.common.collect.ImmutableList;
+
+import eu.siacs.conversations.xmpp.Jid;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The occupants of a {@link MucOptions} indexed by full JID, real JID and occupant id. Lookups
+ * and iteration don’t take a lock. Iteration is weakly consistent: it never throws {@link
+ * java.util.ConcurrentModificationException} and doesn’t copy, but might or might not reflect
+ * modifications made after it was started. Modifications are synchronized on this instance; use
+ * the same monitor to make a sequence of modifications atomic.
+ */
+final class MucOccupants implements Iterable<MucOptions.User> {
+
+    private final Set<MucOptions.User> users = ConcurrentHashMap.newKeySet();
+    private final Map<Jid, MucOptions.User> fullJids = new ConcurrentHashMap<>();
+    private final Map<Jid, List<MucOptions.User>> realJids = new ConcurrentHashMap<>();
+    private final Map<String, MucOptions.User> occupantIds = new ConcurrentHashMap<>();
+
+    synchronized boolean add(final MucOptions.User user) {
+        if (!users.add(user)) {
+            return false;
+        }
+        final Jid fullJid = user.getFullJid();
+        if (fullJid != null) {
+            fullJids.put(fullJid, user);
+        }
+        final Jid realJid = user.getRealJid();
+        if (realJid != null) {
+            final List<MucOptions.User> current = realJids.get(realJid);
+            realJids.put(
+                    realJid,
+                    current == null
+                            ? ImmutableList.of(user)
+                            : new ImmutableList.Builder<MucOptions.User>()
+                                    .addAll(current)
+                                    .add(user)
+                                    .build());
+        }
+        final String occupantId = user.getOccupantId();
+        if (occupantId != null) {
+            occupantIds.put(occupantId, user);
+        }
+        return true;
+    }
+
+    synchronized boolean remove(final MucOptions.User user) {
+        if (!users.remove(user)) {
+            return false;
+        }
+        final Jid fullJid = user.getFullJid();
+        if (fullJid != null) {
+            fullJids.remove(fullJid, user);
+        }
+        final Jid realJid = user.getRealJid();
+        final List<MucOptions.User> current = realJid == null ? null : realJids.get(realJid);
+        if (current != null) {
+            final ImmutableList.Builder<MucOptions.User> remaining = new ImmutableList.Builder<>();
+            boolean removed = false;
+            for (final MucOptions.User u : current) {
+                if (!removed && u.equals(user)) {
+                    removed = true;
+                } else {
+                    remaining.add(u);
+                }
+            }
+            final List<MucOptions.User> updated = remaining.build();
+            if (updated.isEmpty()) {
+                realJids.remove(realJid);
+            } else {
+                realJids.put(realJid, updated);
+            }
+        }
+        final String occupantId = user.getOccupantId();
+        if (occupantId != null) {
+            occupantIds.remove(occupantId, user);
+        }
+        return true;
+    }
+
+    synchronized void clear() {
+        users.clear();
+        fullJids.clear();
+        realJids.clear();
+        occupantIds.clear();
+    }
+
+    MucOptions.User getByFullJid(final Jid jid) {
+        return jid == null ? null : fullJids.get(jid);
+    }
+
+    MucOptions.User getByRealJid(final Jid jid) {
+        final List<MucOptions.User> users = jid == null ? null : realJids.get(jid);
+        return users == null || users.isEmpty() ? null : users.get(0);
+    }
+
+    List<MucOptions.User> getAllByRealJid(final Jid jid) {
+        final List<MucOptions.User> users = jid == null ? null : realJids.get(jid);
+        return users == null ? Collections.emptyList() : users;
+    }
+
+    MucOptions.User getByOccupantId(final String occupantId) {
+        return occupantId == null ? null : occupantIds.get(occupantId);
+    }
+
+    int size() {
+        return users.size();
+    }
+
+    @NonNull
+    @Override
+    public Iterator<MucOptions.User> iterator() {
+        return Collections.unmodifiableSet(users).iterator();
+    }
+}
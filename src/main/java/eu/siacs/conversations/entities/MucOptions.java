@@ -11,6 +11,7 @@ import eu.siacs.conversations.services.AvatarService;
 import eu.siacs.conversations.services.MessageArchiveService;
 import eu.siacs.conversations.utils.JidHelper;
 import eu.siacs.conversations.utils.UIHelper;
+import eu.siacs.conversations.xml.Namespace;
 import eu.siacs.conversations.xmpp.Jid;
 import eu.siacs.conversations.xmpp.chatstate.ChatState;
 import eu.siacs.conversations.xmpp.forms.Data;
@@ -23,7 +24,6 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
-import java.util.Set;
 
 public class MucOptions {
 
@@ -36,7 +36,7 @@ public class MucOptions {
     public static final String STATUS_CODE_LOST_MEMBERSHIP = "322";
     public static final String STATUS_CODE_SHUTDOWN = "332";
     public static final String STATUS_CODE_TECHNICAL_REASONS = "333";
-    private final Set<User> users = new HashSet<>();
+    private final MucOccupants users = new MucOccupants();
     private final Conversation conversation;
     public OnRenameListener onRenameListener = null;
     private boolean mAutoPushConfiguration = true;
@@ -94,10 +94,8 @@ public class MucOptions {
     }
 
     public void resetChatState() {
-        synchronized (users) {
-            for (User user : users) {
-                user.chatState = Config.DEFAULT_CHAT_STATE;
-            }
+        for (User user : users) {
+            user.chatState = Config.DEFAULT_CHAT_STATE;
         }
     }
 
@@ -226,18 +224,16 @@ public class MucOptions {
         return getFeatures().contains("http://jabber.org/protocol/muc#stable_id");
     }
 
+    public boolean occupantId() {
+        return hasFeature(Namespace.OCCUPANT_ID);
+    }
+
     public User deleteUser(Jid jid) {
         User user = findUserByFullJid(jid);
         if (user != null) {
             synchronized (users) {
                 users.remove(user);
-                boolean realJidInMuc = false;
-                for (User u : users) {
-                    if (user.realJid != null && user.realJid.equals(u.realJid)) {
-                        realJidInMuc = true;
-                        break;
-                    }
-                }
+                final boolean realJidInMuc = !users.getAllByRealJid(user.realJid).isEmpty();
                 boolean self = user.realJid != null && user.realJid.equals(account.getJid().asBareJid());
                 if (membersOnly()
                         && nonanonymous()
@@ -257,32 +253,23 @@ public class MucOptions {
 
     //returns true if real jid was new;
     public boolean updateUser(User user) {
-        User old;
-        boolean realJidFound = false;
-        if (user.fullJid == null && user.realJid != null) {
-            old = findUserByRealJid(user.realJid);
-            realJidFound = old != null;
-            if (old != null) {
-                if (old.fullJid != null) {
-                    return false; //don't add. user already exists
-                } else {
-                    synchronized (users) {
-                        users.remove(old);
+        synchronized (users) {
+            boolean realJidFound = false;
+            if (user.realJid != null) {
+                final List<User> sameRealJid = users.getAllByRealJid(user.realJid);
+                realJidFound = !sameRealJid.isEmpty();
+                for (final User old : sameRealJid) {
+                    if (user.fullJid == null && old.fullJid != null) {
+                        return false; //don't add. user already exists
                     }
                 }
-            }
-        } else if (user.realJid != null) {
-            old = findUserByRealJid(user.realJid);
-            realJidFound = old != null;
-            synchronized (users) {
-                if (old != null && (old.fullJid == null || old.role == Role.NONE)) {
-                    users.remove(old);
+                for (final User old : sameRealJid) {
+                    if (old.fullJid == null || old.role == Role.NONE) {
+                        users.remove(old);
+                    }
                 }
             }
-        }
-        old = findUserByFullJid(user.getFullJid());
-
-        synchronized (this.users) {
+            final User old = findUserByFullJid(user.getFullJid());
             if (old != null) {
                 users.remove(old);
             }
@@ -298,31 +285,15 @@ public class MucOptions {
     }
 
     public User findUserByFullJid(Jid jid) {
-        if (jid == null) {
-            return null;
-        }
-        synchronized (users) {
-            for (User user : users) {
-                if (jid.equals(user.getFullJid())) {
-                    return user;
-                }
-            }
-        }
-        return null;
+        return users.getByFullJid(jid);
     }
 
     public User findUserByRealJid(Jid jid) {
-        if (jid == null) {
-            return null;
-        }
-        synchronized (users) {
-            for (User user : users) {
-                if (jid.equals(user.realJid)) {
-                    return user;
-                }
-            }
-        }
-        return null;
+        return users.getByRealJid(jid);
+    }
+
+    public User findUserByOccupantId(final String occupantId) {
+        return users.getByOccupantId(occupantId);
     }
 
     public User findOrCreateUserByRealJid(Jid jid, Jid fullJid) {
@@ -363,44 +334,38 @@ public class MucOptions {
     }
 
     public ArrayList<User> getUsers(boolean includeOffline) {
-        synchronized (users) {
-            ArrayList<User> users = new ArrayList<>();
-            for (User user : this.users) {
-                if (!user.isDomain() && (includeOffline || user.getRole().ranks(Role.PARTICIPANT))) {
-                    users.add(user);
-                }
+        ArrayList<User> users = new ArrayList<>(this.users.size());
+        for (User user : this.users) {
+            if (!user.isDomain() && (includeOffline || user.getRole().ranks(Role.PARTICIPANT))) {
+                users.add(user);
             }
-            return users;
         }
+        return users;
     }
 
     public ArrayList<User> getUsersWithChatState(ChatState state, int max) {
-        synchronized (users) {
-            ArrayList<User> list = new ArrayList<>();
-            for (User user : users) {
-                if (user.chatState == state) {
-                    list.add(user);
-                    if (list.size() >= max) {
-                        break;
-                    }
+        ArrayList<User> list = new ArrayList<>();
+        for (User user : users) {
+            if (user.chatState == state) {
+                list.add(user);
+                if (list.size() >= max) {
+                    break;
                 }
             }
-            return list;
         }
+        return list;
     }
 
     public List<User> getUsers(int max) {
         ArrayList<User> subset = new ArrayList<>();
         HashSet<Jid> jids = new HashSet<>();
         jids.add(account.getJid().asBareJid());
-        synchronized (users) {
-            for (User user : users) {
-                if (user.getRealJid() == null || (user.getRealJid().getLocal() != null && jids.add(user.getRealJid()))) {
-                    subset.add(user);
-                }
-                if (subset.size() >= max) {
-                    break;
-                }
+        for (User user : users) {
+            if (user.getRealJid() == null || (user.getRealJid().getLocal() != null && jids.add(user.getRealJid()))) {
+                subset.add(user);
+            }
+            if (subset.size() >= max) {
+                break;
             }
         }
         return subset;
@@ -422,9 +387,7 @@ public class MucOptions {
     }
 
     public int getUserCount() {
-        synchronized (users) {
-            return users.size();
-        }
+        return users.size();
     }
 
     public String getProposedNick() {
@@ -487,9 +450,7 @@ public class MucOptions {
     }
 
     public void setOffline() {
-        synchronized (users) {
-            this.users.clear();
-        }
+        this.users.clear();
         this.error = Error.NO_RESPONSE;
         this.isOnline = false;
     }
@@ -565,22 +526,18 @@ public class MucOptions {
     }
 
     public boolean pgpKeysInUse() {
-        synchronized (users) {
-            for (User user : users) {
-                if (user.getPgpKeyId() != 0) {
-                    return true;
-                }
+        for (User user : users) {
+            if (user.getPgpKeyId() != 0) {
+                return true;
             }
         }
         return false;
     }
 
     public boolean everybodyHasKeys() {
-        synchronized (users) {
-            for (User user : users) {
-                if (user.getPgpKeyId() == 0) {
-                    return false;
-                }
+        for (User user : users) {
+            if (user.getPgpKeyId() == 0) {
+                return false;
             }
         }
         return true;
@@ -627,11 +584,9 @@ public class MucOptions {
 
     public List<Jid> getMembers(final boolean includeDomains) {
         ArrayList<Jid> members = new ArrayList<>();
-        synchronized (users) {
-            for (User user : users) {
-                if (user.affiliation.ranks(Affiliation.MEMBER) && user.realJid != null && !user.realJid.asBareJid().equals(conversation.account.getJid().asBareJid()) && (!user.isDomain() || includeDomains)) {
-                    members.add(user.realJid);
-                }
+        for (User user : users) {
+            if (user.affiliation.ranks(Affiliation.MEMBER) && user.realJid != null && !user.realJid.asBareJid().equals(conversation.account.getJid().asBareJid()) && (!user.isDomain() || includeDomains)) {
+                members.add(user.realJid);
             }
         }
         return members;
@@ -754,6 +709,7 @@ public class MucOptions {
         private Affiliation affiliation = Affiliation.NONE;
         private Jid realJid;
         private Jid fullJid;
+        private String occupantId;
         private long pgpKeyId = 0;
         private Avatar avatar;
         private final MucOptions options;
@@ -899,6 +855,14 @@ public class MucOptions {
             return realJid;
         }
 
+        public String getOccupantId() {
+            return occupantId;
+        }
+
+        public void setOccupantId(final String occupantId) {
+            this.occupantId = occupantId;
+        }
+
         public void setRealJid(Jid jid) {
             this.realJid = jid != null ? jid.asBareJid() : null;
         }
@@ -355,7 +355,7 @@ public class IqGenerator extends AbstractGenerator {
         } else if (mam.getReference() != null) {
             set.addChild("after").setContent(mam.getReference());
         }
-        set.addChild("max").setContent(String.valueOf(Config.PAGE_SIZE));
+        set.addChild("max").setContent(String.valueOf(mam.getPageSize()));
         return packet;
     }
 
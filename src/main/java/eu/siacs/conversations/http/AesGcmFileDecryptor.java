@@ -0,0 +1,173 @@
+package eu.siacs.conversations.http;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.modes.AEADBlockCipher;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Decrypts an AES-GCM encrypted download while it is being received and writes the plain text to
+ * a file. Until {@link #finish()} returns the plain text is not authenticated and must not be used.
+ *
+ * <p>GCM is a counter mode so plain text byte n corresponds to cipher text byte n. A partially
+ * written file therefore tells us where to resume. The cipher state (counter and GHASH) for that
+ * offset is re-derived by encrypting the existing plain text again, which yields the original
+ * cipher text, and feeding that into the decrypting cipher.
+ */
+public class AesGcmFileDecryptor extends OutputStream {
+
+    private static final int TAG_LENGTH = 16;
+
+    private final File file;
+    private final AEADBlockCipher cipher;
+    private final OutputStream outputStream;
+    private final long offset;
+    private byte[] output = new byte[0];
+    // plain text the cipher releases that is already on disk
+    private long skip;
+
+    private AesGcmFileDecryptor(
+            final File file,
+            final AEADBlockCipher cipher,
+            final OutputStream outputStream,
+            final long offset,
+            final long skip) {
+        this.file = file;
+        this.cipher = cipher;
+        this.outputStream = outputStream;
+        this.offset = offset;
+        this.skip = skip;
+    }
+
+    /**
+     * @param resume whether to continue after the plain text that is already in the file.
+     *     Otherwise the file is truncated.
+     */
+    public static AesGcmFileDecryptor open(
+            final File file, final byte[] key, final byte[] iv, final boolean resume)
+            throws IOException {
+        final AEADBlockCipher cipher = createCipher(false, key, iv);
+        final long offset = resume && file.exists() ? file.length() : 0;
+        final long released = offset > 0 ? replay(file, offset, key, iv, cipher) : 0;
+        final OutputStream outputStream = new FileOutputStream(file, offset > 0);
+        return new AesGcmFileDecryptor(file, cipher, outputStream, offset, offset - released);
+    }
+
+    private static AEADBlockCipher createCipher(
+            final boolean encrypt, final byte[] key, final byte[] iv) {
+        final AEADBlockCipher cipher = new GCMBlockCipher(new AESEngine());
+        cipher.init(encrypt, new AEADParameters(new KeyParameter(key), 128, iv));
+        return cipher;
+    }
+
+    /**
+     * Restores the state of the decrypting cipher after {@code length} bytes of cipher text.
+     *
+     * @return the number of plain text bytes the decrypting cipher released while doing so
+     */
+    private static long replay(
+            final File file,
+            final long length,
+            final byte[] key,
+            final byte[] iv,
+            final AEADBlockCipher decryptor)
+            throws IOException {
+        final AEADBlockCipher encryptor = createCipher(true, key, iv);
+        final byte[] plainText = new byte[HttpDownloadConnection.BUFFER_SIZE];
+        byte[] cipherText = new byte[encryptor.getOutputSize(plainText.length)];
+        byte[] discard = new byte[decryptor.getUpdateOutputSize(cipherText.length)];
+        long released = 0;
+        long remaining = length;
+        try (final InputStream inputStream = new FileInputStream(file)) {
+            while (remaining > 0) {
+                final int count =
+                        inputStream.read(plainText, 0, (int) Math.min(plainText.length, remaining));
+                if (count < 0) {
+                    throw new IOException("file shrank while resuming");
+                }
+                remaining -= count;
+                final int encrypted = encryptor.processBytes(plainText, 0, count, cipherText, 0);
+                released += decryptor.processBytes(cipherText, 0, encrypted, discard, 0);
+            }
+        }
+        // doFinal releases the trailing partial block followed by the tag which we don’t need
+        cipherText = ensureCapacity(cipherText, encryptor.getOutputSize(0));
+        final int tail;
+        try {
+            tail = encryptor.doFinal(cipherText, 0) - TAG_LENGTH;
+        } catch (final InvalidCipherTextException e) {
+            throw new IOException(e);
+        }
+        discard = ensureCapacity(discard, decryptor.getUpdateOutputSize(tail));
+        released += decryptor.processBytes(cipherText, 0, tail, discard, 0);
+        return released;
+    }
+
+    /** The number of cipher text bytes that have been processed before this instance was opened. */
+    public long getOffset() {
+        return offset;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(final byte[] buffer, final int off, final int length) throws IOException {
+        output = ensureCapacity(output, cipher.getUpdateOutputSize(length));
+        writePlainText(cipher.processBytes(buffer, off, length, output, 0));
+    }
+
+    /**
+     * Verifies the authentication tag and writes the last block. The file is deleted if
+     * verification fails.
+     */
+    public void finish() throws IOException {
+        output = ensureCapacity(output, cipher.getOutputSize(0));
+        final int count;
+        try {
+            count = cipher.doFinal(output, 0);
+        } catch (final InvalidCipherTextException e) {
+            close();
+            if (!file.delete()) {
+                throw new IOException("unable to delete file after failed authentication", e);
+            }
+            throw new HttpDownloadConnection.InvalidFileException(
+                    "authentication of downloaded file failed");
+        }
+        writePlainText(count);
+        outputStream.flush();
+    }
+
+    private void writePlainText(final int count) throws IOException {
+        final int skipped = (int) Math.min(skip, count);
+        skip -= skipped;
+        if (count > skipped) {
+            outputStream.write(output, skipped, count - skipped);
+        }
+    }
+
+    private static byte[] ensureCapacity(final byte[] buffer, final int capacity) {
+        return buffer.length >= capacity ? buffer : new byte[capacity];
+    }
+
+    @Override
+    public void flush() throws IOException {
+        outputStream.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        outputStream.close();
+    }
+}
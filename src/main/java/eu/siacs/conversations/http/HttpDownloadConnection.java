@@ -1,13 +1,16 @@
 package eu.siacs.conversations.http;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
 
 import com.google.common.base.Strings;
 import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
 import com.google.common.primitives.Longs;
 
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -37,6 +40,8 @@ import static eu.siacs.conversations.http.HttpConnectionManager.EXECUTOR;
 
 public class HttpDownloadConnection implements Transferable {
 
+    static final int BUFFER_SIZE = 64 * 1024;
+
     private final Message message;
     private final HttpConnectionManager mHttpConnectionManager;
     private final XmppConnectionService mXmppConnectionService;
@@ -201,8 +206,40 @@ public class HttpDownloadConnection implements Transferable {
         });
     }
 
+    private boolean decryptWhileDownloading() {
+        return Config.DECRYPT_DOWNLOADS_WHILE_RECEIVING && file.getKey() != null && file.getIv() != null;
+    }
+
+    /**
+     * Plain text that has been decrypted while downloading but not authenticated yet. It is only
+     * moved to the location of the attachment once the authentication tag has been verified.
+     */
+    private DownloadableFile getPartialFile() {
+        return new DownloadableFile(mXmppConnectionService.getCacheDir(), message.getUuid() + ".part");
+    }
+
+    private void moveIntoPlace(final File partial) throws FileWriterException {
+        final DownloadableFile destination = mXmppConnectionService.getFileBackend().getFile(message, true);
+        final File parent = destination.getParentFile();
+        if (parent != null) {
+            parent.mkdirs();
+        }
+        if (partial.renameTo(destination)) {
+            return;
+        }
+        // the cache directory might be on a different file system
+        try {
+            Files.copy(partial, destination);
+        } catch (final IOException e) {
+            throw new FileWriterException(destination);
+        }
+        if (!partial.delete()) {
+            Log.w(Config.LOGTAG, "unable to delete " + partial.getAbsolutePath());
+        }
+    }
+
     private void decryptIfNeeded() throws IOException {
-        if (file.getKey() != null && file.getIv() != null) {
+        if (file.getKey() != null && file.getIv() != null && !decryptWhileDownloading()) {
             decryptFile();
         }
     }
@@ -360,6 +397,7 @@ public class HttpDownloadConnection implements Transferable {
     private class FileDownloader implements Runnable {
 
         private final boolean interactive;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
 
         public FileDownloader(boolean interactive) {
             this.interactive = interactive;
@@ -397,10 +435,20 @@ public class HttpDownloadConnection implements Transferable {
             final Request.Builder requestBuilder = new Request.Builder().url(URL.stripFragment(mUrl));
 
             final long expected = file.getExpectedSize();
-            final boolean tryResume = file.exists() && file.getSize() > 0 && file.getSize() < expected;
+            final boolean decrypt = decryptWhileDownloading();
+            final DownloadableFile target;
+            if (decrypt) {
+                target = getPartialFile();
+                if (file.exists() && file.delete()) {
+                    Log.d(Config.LOGTAG, "deleted stale temporary OMEMO encrypted file " + file.getAbsolutePath());
+                }
+            } else {
+                target = file;
+            }
+            final boolean tryResume = target.exists() && target.getSize() > 0 && target.getSize() < expected;
             final long resumeSize;
             if (tryResume) {
-                resumeSize = file.getSize();
+                resumeSize = target.getSize();
                 Log.d(Config.LOGTAG, "http download trying resume after " + resumeSize + " of " + expected);
                 requestBuilder.addHeader("Range", String.format(Locale.ENGLISH, "bytes=%d-", resumeSize));
             } else {
@@ -417,37 +465,72 @@ public class HttpDownloadConnection implements Transferable {
             long transmitted = 0;
             if (tryResume && serverResumed) {
                 Log.d(Config.LOGTAG, "server resumed");
-                transmitted = file.getSize();
+                transmitted = target.getSize();
                 updateProgress(Math.round(((double) transmitted / expected) * 100));
-                outputStream = AbstractConnectionManager.createOutputStream(file, true, false);
+                if (decrypt) {
+                    outputStream = AesGcmFileDecryptor.open(target, file.getKey(), file.getIv(), true);
+                } else {
+                    outputStream = AbstractConnectionManager.createOutputStream(file, true, false);
+                }
             } else {
                 final String contentLength = response.header("Content-Length");
                 final long size = Strings.isNullOrEmpty(contentLength) ? 0 : Longs.tryParse(contentLength);
                 if (expected != size) {
                     Log.d(Config.LOGTAG, "content-length reported on GET (" + size + ") did not match Content-Length reported on HEAD (" + expected + ")");
                 }
-                file.getParentFile().mkdirs();
-                Log.d(Config.LOGTAG,"creating file: "+file.getAbsolutePath());
-                if (!file.exists() && !file.createNewFile()) {
-                    throw new FileWriterException(file);
+                target.getParentFile().mkdirs();
+                Log.d(Config.LOGTAG,"creating file: "+target.getAbsolutePath());
+                if (!target.exists() && !target.createNewFile()) {
+                    throw new FileWriterException(target);
                 }
-                outputStream = AbstractConnectionManager.createOutputStream(file, false, false);
+                if (decrypt) {
+                    outputStream = AesGcmFileDecryptor.open(target, file.getKey(), file.getIv(), false);
+                } else {
+                    outputStream = AbstractConnectionManager.createOutputStream(file, false, false);
+                }
+            }
+            if (outputStream == null) {
+                throw new FileWriterException(target);
             }
-            int count;
-            final byte[] buffer = new byte[4096];
-            while ((count = inputStream.read(buffer)) != -1) {
-                transmitted += count;
-                try {
-                    outputStream.write(buffer, 0, count);
-                } catch (final IOException e) {
-                    throw new FileWriterException(file);
+            final long resumed = transmitted;
+            final long start = SystemClock.elapsedRealtime();
+            try {
+                int count;
+                final byte[] buffer = this.buffer;
+                while ((count = inputStream.read(buffer)) != -1) {
+                    transmitted += count;
+                    try {
+                        outputStream.write(buffer, 0, count);
+                    } catch (final IOException e) {
+                        throw new FileWriterException(target);
+                    }
+                    if (transmitted > expected) {
+                        throw new InvalidFileException(String.format("File exceeds expected size of %d", expected));
+                    }
+                    updateProgress(Math.round(((double) transmitted / expected) * 100));
                 }
-                if (transmitted > expected) {
-                    throw new InvalidFileException(String.format("File exceeds expected size of %d", expected));
+                if (outputStream instanceof AesGcmFileDecryptor decryptor) {
+                    decryptor.finish();
                 }
-                updateProgress(Math.round(((double) transmitted / expected) * 100));
+                outputStream.flush();
+            } catch (final InvalidFileException e) {
+                if (decrypt) {
+                    FileBackend.close(outputStream);
+                    if (target.exists() && !target.delete()) {
+                        Log.w(Config.LOGTAG, "unable to delete " + target.getAbsolutePath());
+                    }
+                }
+                throw e;
+            } finally {
+                FileBackend.close(outputStream);
+            }
+            if (decrypt) {
+                moveIntoPlace(target);
             }
-            outputStream.flush();
+            final long duration = Math.max(1, SystemClock.elapsedRealtime() - start);
+            Log.d(Config.LOGTAG, message.getConversation().getAccount().getJid().asBareJid()
+                    + ": downloaded " + (transmitted - resumed) + " bytes in " + duration + "ms ("
+                    + ((transmitted - resumed) / duration) + " KB/s" + (decrypt ? ", decrypted while downloading)" : ")"));
         }
 
         private void updateImageBounds() {
@@ -473,9 +556,9 @@ public class HttpDownloadConnection implements Transferable {
         }
     }
 
-    private static class InvalidFileException extends IOException {
+    static class InvalidFileException extends IOException {
 
-        private InvalidFileException(final String message) {
+        InvalidFileException(final String message) {
             super(message);
         }
 
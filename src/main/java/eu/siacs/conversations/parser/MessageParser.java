@@ -739,6 +739,10 @@ public class MessageParser extends AbstractParser implements Consumer<im.convers
                     Log.d(Config.LOGTAG, "skipping duplicate message with " + message.getCounterpart() + ". serverMsgIdUpdated=" + serverMsgIdUpdated);
                     return;
                 }
+                if (query != null && Config.MAM_BULK_INGESTION && query.isKnownServerMsgId(conversation, message)) {
+                    Log.d(Config.LOGTAG, "skipping archived message with " + message.getCounterpart() + " that had already been stored");
+                    return;
+                }
             }
 
             if (query != null && query.getPagingOrder() == MessageArchiveService.PagingOrder.REVERSE) {
@@ -782,7 +786,9 @@ public class MessageParser extends AbstractParser implements Consumer<im.convers
                 processMessageReceipts(account, packet, remoteMsgId, query);
             }
 
-            mXmppConnectionService.databaseBackend.createMessage(message);
+            if (query == null || !Config.MAM_BULK_INGESTION || !query.ingest(message)) {
+                mXmppConnectionService.databaseBackend.createMessage(message);
+            }
             final HttpConnectionManager manager = this.mXmppConnectionService.getHttpConnectionManager();
             if (message.trusted() && message.treatAsDownloadable() && manager.getAutoAcceptFileSize() > 0) {
                 manager.createNewDownloadConnection(message);
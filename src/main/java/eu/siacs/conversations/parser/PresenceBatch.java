@@ -0,0 +1,85 @@
+package eu.siacs.conversations.parser;
+
+import android.util.Log;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.entities.Account;
+import eu.siacs.conversations.services.XmppConnectionService;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces the roster writes caused by presences. Presences are applied to contacts as they
+ * arrive; the roster is written once at the end of a short window. After a reconnect with a large
+ * roster this turns thousands of roster writes into a handful. UI refreshes are already coalesced
+ * by the {@link eu.siacs.conversations.services.UiInvalidationBus}.
+ */
+class PresenceBatch {
+
+    private static final ScheduledExecutorService SCHEDULER =
+            Executors.newSingleThreadScheduledExecutor();
+
+    private final XmppConnectionService service;
+    private final Account account;
+
+    private boolean scheduled = false;
+    private int requests = 0;
+
+    private final AtomicLong totalRequests = new AtomicLong(0);
+    private final AtomicLong totalFlushes = new AtomicLong(0);
+
+    PresenceBatch(final XmppConnectionService service, final Account account) {
+        this.service = service;
+        this.account = account;
+    }
+
+    void syncRoster() {
+        if (Config.PRESENCE_BATCH_WINDOW <= 0) {
+            service.syncRoster(account);
+            return;
+        }
+        synchronized (this) {
+            this.requests++;
+            schedule();
+        }
+    }
+
+    private void schedule() {
+        if (scheduled) {
+            return;
+        }
+        scheduled = true;
+        SCHEDULER.schedule(this::flush, Config.PRESENCE_BATCH_WINDOW, TimeUnit.MILLISECONDS);
+    }
+
+    private void flush() {
+        final int requests;
+        synchronized (this) {
+            requests = this.requests;
+            this.requests = 0;
+            this.scheduled = false;
+        }
+        final long total = totalRequests.addAndGet(requests);
+        final long flushes = totalFlushes.incrementAndGet();
+        if (requests > 1) {
+            Log.d(
+                    Config.LOGTAG,
+                    account.getJid().asBareJid()
+                            + ": coalesced "
+                            + requests
+                            + " roster writes into one ("
+                            + total
+                            + " roster writes in "
+                            + flushes
+                            + " batches total)");
+        }
+        try {
+            service.syncRoster(account);
+        } catch (final RuntimeException e) {
+            Log.e(Config.LOGTAG, account.getJid().asBareJid() + ": unable to flush presences", e);
+        }
+    }
+}
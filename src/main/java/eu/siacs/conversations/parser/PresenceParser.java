@@ -20,6 +20,7 @@ import eu.siacs.conversations.xml.Namespace;
 import eu.siacs.conversations.xmpp.InvalidJid;
 import eu.siacs.conversations.xmpp.Jid;
 import eu.siacs.conversations.xmpp.pep.Avatar;
+import im.conversations.android.xmpp.model.occupant.OccupantId;
 
 import org.openintents.openpgp.util.OpenPgpUtils;
 
@@ -29,8 +30,11 @@ import java.util.function.Consumer;
 
 public class PresenceParser extends AbstractParser implements Consumer<im.conversations.android.xmpp.model.stanza.Presence> {
 
+    private final PresenceBatch batch;
+
     public PresenceParser(final XmppConnectionService service, final Account account) {
         super(service, account);
+        this.batch = new PresenceBatch(service, account);
     }
 
     public void parseConferencePresence(final im.conversations.android.xmpp.model.stanza.Presence packet, Account account) {
@@ -73,6 +77,10 @@ public class PresenceParser extends AbstractParser implements Consumer<im.conver
                     if (item != null && !from.isBareJid()) {
                         mucOptions.setError(MucOptions.Error.NONE);
                         MucOptions.User user = parseItem(conversation, item, from);
+                        if (mucOptions.occupantId()) {
+                            final OccupantId occupantId = packet.getExtension(OccupantId.class);
+                            user.setOccupantId(occupantId == null ? null : occupantId.getId());
+                        }
                         if (codes.contains(MucOptions.STATUS_CODE_SELF_PRESENCE)
                                 || (codes.contains(MucOptions.STATUS_CODE_ROOM_CREATED)
                                         && jid.equals(
@@ -144,7 +152,7 @@ public class PresenceParser extends AbstractParser implements Consumer<im.conver
                                                     .getRoster()
                                                     .getContact(user.getRealJid());
                                     c.setAvatar(avatar);
-                                    mXmppConnectionService.syncRoster(conversation.getAccount());
+                                    batch.syncRoster();
                                     mXmppConnectionService.getAvatarService().clear(c);
                                     mXmppConnectionService.updateRosterUi();
                                 }
@@ -319,7 +327,7 @@ public class PresenceParser extends AbstractParser implements Consumer<im.conver
                         mXmppConnectionService.updateAccountUi();
                     } else {
                         contact.setAvatar(avatar);
-                        mXmppConnectionService.syncRoster(account);
+                        batch.syncRoster();
                         mXmppConnectionService.getAvatarService().clear(contact);
                         mXmppConnectionService.updateConversationUi();
                         mXmppConnectionService.updateRosterUi();
@@ -374,7 +382,7 @@ public class PresenceParser extends AbstractParser implements Consumer<im.conver
                                     + contact.getJid()
                                     + " "
                                     + OpenPgpUtils.convertKeyIdToHex(keyId));
-                    mXmppConnectionService.syncRoster(account);
+                    batch.syncRoster();
                 }
             }
             boolean online = sizeBefore < contact.getPresences().size();
@@ -31,6 +31,7 @@ import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -692,6 +693,33 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         db.insert(Message.TABLENAME, null, message.getContentValues());
     }
 
+    public void createMessages(final Collection<Message> messages) {
+        final SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (final Message message : messages) {
+                db.insert(Message.TABLENAME, null, message.getContentValues());
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    public Set<String> getServerMsgIds(final Conversation conversation, final long since) {
+        final Set<String> serverMsgIds = new HashSet<>();
+        final SQLiteDatabase db = this.getReadableDatabase();
+        final String[] columns = {Message.SERVER_MSG_ID};
+        final String selection = Message.CONVERSATION + "=? AND " + Message.TIME_SENT + ">=? AND " + Message.SERVER_MSG_ID + " IS NOT NULL";
+        final String[] selectionArgs = {conversation.getUuid(), Long.toString(since)};
+        try (final Cursor cursor = db.query(Message.TABLENAME, columns, selection, selectionArgs, null, null, null)) {
+            while (cursor.moveToNext()) {
+                serverMsgIds.add(cursor.getString(0));
+            }
+        }
+        return serverMsgIds;
+    }
+
     public void createAccount(Account account) {
         SQLiteDatabase db = this.getWritableDatabase();
         db.insert(Account.TABLENAME, null, account.getContentValues());
@@ -789,6 +817,63 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         return list;
     }
 
+    /**
+     * Reads the latest message, the number of unread and pending (unsent or waiting) messages and
+     * the reference of the latest message that went through the server (see {@link
+     * Conversation#getLastMessageTransmitted()}) of the given conversations. Like a regular restore
+     * only the last page of messages is looked at. Each conversation takes two indexed queries
+     * limited to that page; only the latest message is read completely.
+     */
+    public Map<String, ConversationSummary> getConversationSummaries(final List<Conversation> conversations) {
+        final Map<String, ConversationSummary> summaries = new HashMap<>();
+        final SQLiteDatabase db = this.getReadableDatabase();
+        final String[] columns = {Message.READ, Message.STATUS, Message.TYPE, Message.CARBON, Message.SERVER_MSG_ID, Message.TIME_SENT};
+        for (final Conversation conversation : conversations) {
+            final String[] selectionArgs = {conversation.getUuid()};
+            final Message latestMessage;
+            try (final Cursor cursor = db.query(Message.TABLENAME, null, Message.CONVERSATION + "=?", selectionArgs, null, null, Message.TIME_SENT + " DESC", "1")) {
+                if (!cursor.moveToFirst()) {
+                    continue;
+                }
+                try {
+                    latestMessage = Message.fromCursor(cursor, conversation);
+                } catch (final Exception e) {
+                    Log.e(Config.LOGTAG, "unable to restore summary message");
+                    continue;
+                }
+            }
+            int unread = 0;
+            int pending = 0;
+            MamReference lastTransmitted = null;
+            try (final Cursor cursor = db.query(Message.TABLENAME, columns, Message.CONVERSATION + "=?", selectionArgs, null, null, Message.TIME_SENT + " DESC", String.valueOf(Config.PAGE_SIZE))) {
+                while (cursor.moveToNext()) {
+                    final int status = cursor.getInt(1);
+                    final int type = cursor.getInt(2);
+                    final String serverMsgId = cursor.getString(4);
+                    if (cursor.getInt(0) == 0) {
+                        ++unread;
+                    }
+                    if (status == Message.STATUS_UNSEND || status == Message.STATUS_WAITING) {
+                        ++pending;
+                    }
+                    // private messages are no anchor; they could be coming from the user archive
+                    if (lastTransmitted == null
+                            && type != Message.TYPE_PRIVATE
+                            && type != Message.TYPE_PRIVATE_FILE
+                            && (status == Message.STATUS_RECEIVED || cursor.getInt(3) > 0 || serverMsgId != null)) {
+                        lastTransmitted = new MamReference(cursor.getLong(5), serverMsgId);
+                    }
+                }
+            }
+            summaries.put(conversation.getUuid(), new ConversationSummary(
+                    latestMessage,
+                    lastTransmitted == null ? new MamReference(0) : lastTransmitted,
+                    unread,
+                    pending));
+        }
+        return summaries;
+    }
+
     public ArrayList<Message> getMessages(Conversation conversations, int limit) {
         return getMessages(conversations, limit, -1);
     }
@@ -944,6 +1029,28 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         }
     }
 
+    public static class ConversationSummary {
+        public final Message latestMessage;
+        public final MamReference lastTransmitted;
+        public final int unread;
+        public final int pending;
+
+        private ConversationSummary(final Message latestMessage, final MamReference lastTransmitted, final int unread, final int pending) {
+            this.latestMessage = latestMessage;
+            this.lastTransmitted = lastTransmitted;
+            this.unread = unread;
+            this.pending = pending;
+        }
+
+        /**
+         * Messages need to be in memory right away if there is something to notify about, to
+         * resend or to decrypt.
+         */
+        public boolean requiresRestore() {
+            return unread > 0 || pending > 0 || latestMessage.getEncryption() == Message.ENCRYPTION_PGP;
+        }
+    }
+
     public Conversation findConversation(final Account account, final Jid contactJid) {
         SQLiteDatabase db = this.getReadableDatabase();
         String[] selectionArgs = {account.getUuid(),
@@ -1028,6 +1135,22 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         return db.update(Message.TABLENAME, message.getContentValues(), Message.UUID + "=?", args) == 1;
     }
 
+    public void updateMessages(final Collection<Message> messages) {
+        final SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (final Message message : messages) {
+                final String[] args = {message.getUuid()};
+                final ContentValues contentValues = message.getContentValues();
+                contentValues.remove(Message.UUID);
+                db.update(Message.TABLENAME, contentValues, Message.UUID + "=?", args);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     public boolean updateMessage(Message message, String uuid) {
         SQLiteDatabase db = this.getWritableDatabase();
         String[] args = {uuid};
@@ -1067,6 +1190,18 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": persisted roster in " + duration + "ms");
     }
 
+    public List<String> getFileMessageUuids(final Conversation conversation) {
+        final SQLiteDatabase db = this.getReadableDatabase();
+        final String[] args = {conversation.getUuid()};
+        final List<String> uuids = new ArrayList<>();
+        try (final Cursor cursor = db.query(Message.TABLENAME, new String[]{Message.UUID}, Message.CONVERSATION + "=? and type in (1,2,5)", args, null, null, null)) {
+            while (cursor.moveToNext()) {
+                uuids.add(cursor.getString(0));
+            }
+        }
+        return uuids;
+    }
+
     public void deleteMessagesInConversation(Conversation conversation) {
         long start = SystemClock.elapsedRealtime();
         final SQLiteDatabase db = this.getWritableDatabase();
@@ -1232,6 +1367,25 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         db.insert(SQLiteAxolotlStore.SESSION_TABLENAME, null, values);
     }
 
+    public void storeSessions(Account account, Map<SignalProtocolAddress, byte[]> sessions) {
+        final SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (final Map.Entry<SignalProtocolAddress, byte[]> entry : sessions.entrySet()) {
+                final SignalProtocolAddress contact = entry.getKey();
+                final ContentValues values = new ContentValues();
+                values.put(SQLiteAxolotlStore.NAME, contact.getName());
+                values.put(SQLiteAxolotlStore.DEVICE_ID, contact.getDeviceId());
+                values.put(SQLiteAxolotlStore.KEY, Base64.encodeToString(entry.getValue(), Base64.DEFAULT));
+                values.put(SQLiteAxolotlStore.ACCOUNT, account.getUuid());
+                db.insert(SQLiteAxolotlStore.SESSION_TABLENAME, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     public void deleteSession(Account account, SignalProtocolAddress contact) {
         SQLiteDatabase db = this.getWritableDatabase();
         deleteSession(db, account, contact);
@@ -67,6 +67,7 @@ import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
@@ -74,14 +75,13 @@ import java.util.UUID;
 
 public class FileBackend {
 
-    private static final Object THUMBNAIL_LOCK = new Object();
-
     private static final SimpleDateFormat IMAGE_DATE_FORMAT =
             new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US);
 
     private static final String FILE_PROVIDER = ".files";
     private static final float IGNORE_PADDING = 0.15f;
     private final XmppConnectionService mXmppConnectionService;
+    private final ThumbnailCache thumbnailCache;
 
     private static final List<String> STORAGE_TYPES;
 
@@ -101,6 +101,7 @@ public class FileBackend {
 
     public FileBackend(XmppConnectionService service) {
         this.mXmppConnectionService = service;
+        this.thumbnailCache = new ThumbnailCache(service, this::generateThumbnail);
     }
 
     public static long getFileSize(Context context, Uri uri) {
@@ -506,6 +507,7 @@ public class FileBackend {
     public boolean deleteFile(Message message) {
         File file = getFile(message);
         if (file.delete()) {
+            thumbnailCache.remove(message.getUuid());
             updateMediaScanner(file);
             return true;
         } else {
@@ -962,42 +964,53 @@ public class FileBackend {
     }
 
     public Bitmap getThumbnail(Message message, int size, boolean cacheOnly) throws IOException {
-        final String uuid = message.getUuid();
-        final LruCache<String, Bitmap> cache = mXmppConnectionService.getBitmapCache();
-        Bitmap thumbnail = cache.get(uuid);
-        if ((thumbnail == null) && (!cacheOnly)) {
-            synchronized (THUMBNAIL_LOCK) {
-                thumbnail = cache.get(uuid);
-                if (thumbnail != null) {
-                    return thumbnail;
-                }
-                DownloadableFile file = getFile(message);
-                final String mime = file.getMimeType();
-                if ("application/pdf".equals(mime)) {
-                    thumbnail = getPdfDocumentPreview(file, size);
-                } else if (mime.startsWith("video/")) {
-                    thumbnail = getVideoPreview(file, size);
-                } else {
-                    final Bitmap fullSize = getFullSizeImagePreview(file, size);
-                    if (fullSize == null) {
-                        throw new FileNotFoundException();
-                    }
-                    thumbnail = resize(fullSize, size);
-                    thumbnail = rotate(thumbnail, getRotation(file));
-                    if (mime.equals("image/gif")) {
-                        Bitmap withGifOverlay = thumbnail.copy(Bitmap.Config.ARGB_8888, true);
-                        drawOverlay(
-                                withGifOverlay,
-                                paintOverlayBlack(withGifOverlay)
-                                        ? R.drawable.play_gif_black
-                                        : R.drawable.play_gif_white,
-                                1.0f);
-                        thumbnail.recycle();
-                        thumbnail = withGifOverlay;
-                    }
-                }
-                cache.put(uuid, thumbnail);
-            }
+        if (cacheOnly) {
+            return thumbnailCache.getCached(message);
+        }
+        return thumbnailCache.get(message, getFile(message), size);
+    }
+
+    public void removeThumbnail(final String uuid) {
+        thumbnailCache.remove(uuid);
+    }
+
+    public void expireThumbnails(final long timestamp) {
+        thumbnailCache.expire(timestamp);
+    }
+
+    public void removeThumbnails(final Collection<String> uuids) {
+        thumbnailCache.remove(uuids);
+    }
+
+    public ThumbnailCache.Statistics getThumbnailStatistics() {
+        return thumbnailCache.getStatistics();
+    }
+
+    private Bitmap generateThumbnail(
+            final Message message, final DownloadableFile file, final int size)
+            throws IOException {
+        final String mime = file.getMimeType();
+        if ("application/pdf".equals(mime)) {
+            return getPdfDocumentPreview(file, size);
+        } else if (mime.startsWith("video/")) {
+            return getVideoPreview(file, size);
+        }
+        final Bitmap fullSize = getFullSizeImagePreview(file, size);
+        if (fullSize == null) {
+            throw new FileNotFoundException();
+        }
+        Bitmap thumbnail = resize(fullSize, size);
+        thumbnail = rotate(thumbnail, getRotation(file));
+        if (mime.equals("image/gif")) {
+            Bitmap withGifOverlay = thumbnail.copy(Bitmap.Config.ARGB_8888, true);
+            drawOverlay(
+                    withGifOverlay,
+                    paintOverlayBlack(withGifOverlay)
+                            ? R.drawable.play_gif_black
+                            : R.drawable.play_gif_white,
+                    1.0f);
+            thumbnail.recycle();
+            thumbnail = withGifOverlay;
         }
         return thumbnail;
     }
@@ -0,0 +1,379 @@
+package eu.siacs.conversations.persistance;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.LruCache;
+
+import androidx.annotation.NonNull;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.entities.DownloadableFile;
+import eu.siacs.conversations.entities.Message;
+import eu.siacs.conversations.services.XmppConnectionService;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thumbnails of image, video and PDF attachments. Besides the in-memory bitmap cache of the
+ * service, thumbnails are kept on disk keyed by message uuid, size and the modification time of
+ * the file, so they survive restarts and the eviction of the in-memory cache.
+ *
+ * <p>Thumbnails that are neither in memory nor on disk are generated on a small pool of threads.
+ * Concurrent requests for the same thumbnail wait for the same generation.
+ */
+public class ThumbnailCache {
+
+    private static final String DIRECTORY = "thumbnails";
+
+    private final XmppConnectionService service;
+    private final Generator generator;
+    private final ExecutorService executor =
+            Executors.newFixedThreadPool(Config.THUMBNAIL_THREADS);
+    private final Map<String, ListenableFuture<Bitmap>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicBoolean diskSizeKnown = new AtomicBoolean(false);
+    private final AtomicLong diskSize = new AtomicLong(0);
+
+    private final AtomicLong memoryHits = new AtomicLong(0);
+    private final AtomicLong diskHits = new AtomicLong(0);
+    private final AtomicLong generated = new AtomicLong(0);
+    private final AtomicLong joined = new AtomicLong(0);
+    private final AtomicLong diskLoadTime = new AtomicLong(0);
+    private final AtomicLong generationTime = new AtomicLong(0);
+
+    public interface Generator {
+        Bitmap generate(Message message, DownloadableFile file, int size) throws IOException;
+    }
+
+    ThumbnailCache(final XmppConnectionService service, final Generator generator) {
+        this.service = service;
+        this.generator = generator;
+    }
+
+    private LruCache<String, Bitmap> memoryCache() {
+        return service.getBitmapCache();
+    }
+
+    private File directory() {
+        return new File(service.getCacheDir(), DIRECTORY);
+    }
+
+    public Bitmap getCached(final Message message) {
+        final Bitmap bitmap = memoryCache().get(message.getUuid());
+        if (bitmap != null) {
+            memoryHits.incrementAndGet();
+        }
+        return bitmap;
+    }
+
+    /** Blocks until the thumbnail has been loaded from disk or generated. */
+    public Bitmap get(final Message message, final DownloadableFile file, final int size)
+            throws IOException {
+        final Bitmap cached = getCached(message);
+        if (cached != null) {
+            return cached;
+        }
+        final String key = key(message, file, size);
+        final SettableFuture<Bitmap> future = SettableFuture.create();
+        final ListenableFuture<Bitmap> existing = inFlight.putIfAbsent(key, future);
+        if (existing == null) {
+            executor.execute(
+                    () -> {
+                        try {
+                            future.set(load(message, file, size, key));
+                        } catch (final Throwable throwable) {
+                            future.setException(throwable);
+                        } finally {
+                            inFlight.remove(key, future);
+                        }
+                    });
+        } else {
+            joined.incrementAndGet();
+        }
+        try {
+            return (existing == null ? future : existing).get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            } else if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            } else if (cause instanceof Error error) {
+                throw error;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private Bitmap load(
+            final Message message, final DownloadableFile file, final int size, final String key)
+            throws IOException {
+        final String uuid = message.getUuid();
+        final Bitmap cached = memoryCache().get(uuid);
+        if (cached != null) {
+            memoryHits.incrementAndGet();
+            return cached;
+        }
+        final File diskFile = new File(directory(), key);
+        if (diskFile.exists()) {
+            final long start = SystemClock.elapsedRealtime();
+            final Bitmap bitmap = BitmapFactory.decodeFile(diskFile.getAbsolutePath());
+            if (bitmap != null) {
+                diskLoadTime.addAndGet(SystemClock.elapsedRealtime() - start);
+                diskHits.incrementAndGet();
+                // the modification time is used to trim the least recently used thumbnails
+                diskFile.setLastModified(System.currentTimeMillis());
+                memoryCache().put(uuid, bitmap);
+                return bitmap;
+            }
+            deleteFromDisk(diskFile);
+        }
+        final long start = SystemClock.elapsedRealtime();
+        final Bitmap bitmap = generator.generate(message, file, size);
+        generationTime.addAndGet(SystemClock.elapsedRealtime() - start);
+        generated.incrementAndGet();
+        memoryCache().put(uuid, bitmap);
+        writeToDisk(diskFile, bitmap);
+        return bitmap;
+    }
+
+    private void writeToDisk(final File diskFile, final Bitmap bitmap) {
+        if (Config.THUMBNAIL_DISK_CACHE_SIZE <= 0) {
+            return;
+        }
+        final File directory = diskFile.getParentFile();
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.d(Config.LOGTAG, "unable to create thumbnail directory");
+            return;
+        }
+        final File temporary = new File(directory, diskFile.getName() + ".tmp");
+        try (final FileOutputStream outputStream = new FileOutputStream(temporary)) {
+            if (!bitmap.compress(Bitmap.CompressFormat.WEBP, 80, outputStream)) {
+                throw new IOException("unable to compress thumbnail");
+            }
+        } catch (final IOException e) {
+            Log.d(Config.LOGTAG, "unable to write thumbnail to disk", e);
+            temporary.delete();
+            return;
+        }
+        if (!temporary.renameTo(diskFile)) {
+            temporary.delete();
+            return;
+        }
+        if (diskSizeKnown.compareAndSet(false, true)) {
+            diskSize.set(directorySize(directory));
+        } else {
+            diskSize.addAndGet(diskFile.length());
+        }
+        if (diskSize.get() > Config.THUMBNAIL_DISK_CACHE_SIZE) {
+            trim();
+        }
+    }
+
+    private static long directorySize(final File directory) {
+        final File[] files = directory.listFiles();
+        long size = 0;
+        if (files != null) {
+            for (final File file : files) {
+                size += file.length();
+            }
+        }
+        return size;
+    }
+
+    private synchronized void trim() {
+        if (diskSize.get() <= Config.THUMBNAIL_DISK_CACHE_SIZE) {
+            return;
+        }
+        final File[] files = directory().listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        long size = 0;
+        for (final File file : files) {
+            size += file.length();
+        }
+        final long target = Config.THUMBNAIL_DISK_CACHE_SIZE * 3 / 4;
+        int deleted = 0;
+        for (final File file : files) {
+            if (size <= target) {
+                break;
+            }
+            final long length = file.length();
+            if (file.delete()) {
+                size -= length;
+                ++deleted;
+            }
+        }
+        diskSize.set(size);
+        Log.d(
+                Config.LOGTAG,
+                "trimmed thumbnail cache by " + deleted + " files to " + (size / 1024) + "KiB");
+    }
+
+    private void deleteFromDisk(final File diskFile) {
+        final long length = diskFile.length();
+        if (diskFile.delete() && diskSizeKnown.get()) {
+            diskSize.addAndGet(-length);
+        }
+    }
+
+    /** Removes the thumbnails of a message from memory and disk, e.g. after its file was deleted. */
+    public void remove(final String uuid) {
+        memoryCache().remove(uuid);
+        final String prefix = uuid + '.';
+        executor.execute(
+                () -> {
+                    final File[] files =
+                            directory().listFiles((dir, name) -> name.startsWith(prefix));
+                    if (files == null) {
+                        return;
+                    }
+                    for (final File file : files) {
+                        deleteFromDisk(file);
+                    }
+                });
+    }
+
+    /**
+     * Deletes thumbnails from disk that have not been used since the timestamp. Thumbnails of
+     * expired messages are among them.
+     */
+    public void expire(final long timestamp) {
+        executor.execute(() -> deleteFromDiskIf(file -> file.lastModified() < timestamp));
+    }
+
+    /**
+     * Removes the thumbnails of many messages at once, e.g. after the history they belong to has
+     * been wiped. The directory is listed only once.
+     */
+    public void remove(final Collection<String> uuids) {
+        if (uuids.isEmpty()) {
+            return;
+        }
+        final Set<String> keys = new HashSet<>(uuids);
+        for (final String uuid : keys) {
+            memoryCache().remove(uuid);
+        }
+        executor.execute(
+                () ->
+                        deleteFromDiskIf(
+                                file -> {
+                                    final String name = file.getName();
+                                    final int separator = name.indexOf('.');
+                                    return separator > 0
+                                            && keys.contains(name.substring(0, separator));
+                                }));
+    }
+
+    private synchronized void deleteFromDiskIf(final FileFilter filter) {
+        final File[] files = directory().listFiles(filter);
+        if (files == null || files.length == 0) {
+            return;
+        }
+        int deleted = 0;
+        for (final File file : files) {
+            if (file.delete()) {
+                ++deleted;
+            }
+        }
+        // recount on the next write
+        diskSizeKnown.set(false);
+        Log.d(Config.LOGTAG, "deleted " + deleted + " thumbnails from disk");
+    }
+
+    private static String key(
+            final Message message, final DownloadableFile file, final int size) {
+        final String input = size + ":" + file.lastModified();
+        // prefixed with the uuid so all thumbnails of a message can be found on removal
+        return message.getUuid()
+                + '.'
+                + Hashing.sha256().hashString(input, StandardCharsets.UTF_8).toString();
+    }
+
+    public Statistics getStatistics() {
+        return new Statistics(
+                memoryHits.get(),
+                diskHits.get(),
+                generated.get(),
+                joined.get(),
+                diskLoadTime.get(),
+                generationTime.get(),
+                diskSizeKnown.get() ? diskSize.get() : -1);
+    }
+
+    public static class Statistics {
+        public final long memoryHits;
+        public final long diskHits;
+        public final long generated;
+        public final long joined;
+        public final long diskLoadTime;
+        public final long generationTime;
+        public final long diskSize;
+
+        private Statistics(
+                final long memoryHits,
+                final long diskHits,
+                final long generated,
+                final long joined,
+                final long diskLoadTime,
+                final long generationTime,
+                final long diskSize) {
+            this.memoryHits = memoryHits;
+            this.diskHits = diskHits;
+            this.generated = generated;
+            this.joined = joined;
+            this.diskLoadTime = diskLoadTime;
+            this.generationTime = generationTime;
+            this.diskSize = diskSize;
+        }
+
+        public double hitRate() {
+            final long total = memoryHits + diskHits + generated;
+            return total == 0 ? 0 : (double) (memoryHits + diskHits) / total;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("memoryHits", memoryHits)
+                    .add("diskHits", diskHits)
+                    .add("generated", generated)
+                    .add("joined", joined)
+                    .add("hitRate", String.format("%.2f", hitRate()))
+                    .add("avgDiskLoadMs", diskHits == 0 ? 0 : diskLoadTime / diskHits)
+                    .add("avgGenerationMs", generated == 0 ? 0 : generationTime / generated)
+                    .add("diskSize", diskSize)
+                    .toString();
+        }
+    }
+}
@@ -129,6 +129,11 @@ public class AbstractConnectionManager {
     }
 
     public void updateConversationUi(boolean force) {
+        if (Config.UI_INVALIDATION_INTERVAL > 0) {
+            // the service coalesces ui updates itself
+            mXmppConnectionService.updateConversationUi();
+            return;
+        }
         synchronized (LAST_UI_UPDATE_CALL) {
             if (force || SystemClock.elapsedRealtime() - LAST_UI_UPDATE_CALL.get() >= UI_REFRESH_THRESHOLD) {
                 LAST_UI_UPDATE_CALL.set(SystemClock.elapsedRealtime());
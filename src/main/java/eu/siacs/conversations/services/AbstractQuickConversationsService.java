@@ -8,6 +8,7 @@ import android.content.pm.PackageManager;
 import com.google.common.collect.Iterables;
 
 import eu.siacs.conversations.BuildConfig;
+import eu.siacs.conversations.entities.Account;
 
 import java.util.Arrays;
 
@@ -76,4 +77,6 @@ public abstract class AbstractQuickConversationsService {
     public abstract void considerSyncBackground(boolean force);
 
     public abstract void handleSmsReceived(Intent intent);
+
+    public abstract void onAccountDeleted(Account account);
 }
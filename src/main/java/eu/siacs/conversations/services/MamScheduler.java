@@ -0,0 +1,233 @@
+package eu.siacs.conversations.services;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ComparisonChain;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Ordering;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.entities.Account;
+import eu.siacs.conversations.entities.Conversation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Decides when MAM queries are sent. At most {@link Config#MAM_MAX_PARALLEL_QUERIES} queries run
+ * at the same time per account and archive host; further queries wait in a queue. Whenever a slot
+ * frees up the waiting queries are ordered by: the conversation that is currently open, queries
+ * loading more history on request of the user, the catch-up of the account archive and then the
+ * order of the conversation list (pinned first, then most recently active).
+ *
+ * <p>The page size of catch-up queries adapts to the response time of the archive. Pages grow up
+ * to {@link Config#MAM_MAX_PAGE_SIZE} while the archive responds quickly and shrink when responses
+ * get slow.
+ */
+public final class MamScheduler {
+
+    private static final long FAST_RESPONSE = 1000;
+    private static final long SLOW_RESPONSE = 5000;
+    private static final int MIN_PAGE_SIZE = Config.PAGE_SIZE / 2;
+
+    private final XmppConnectionService service;
+    private final Consumer<MessageArchiveService.Query> sender;
+    private final Map<String, Archive> archives = new HashMap<>();
+
+    MamScheduler(
+            final XmppConnectionService service,
+            final Consumer<MessageArchiveService.Query> sender) {
+        this.service = service;
+        this.sender = sender;
+    }
+
+    void schedule(final MessageArchiveService.Query query) {
+        final List<MessageArchiveService.Query> ready;
+        synchronized (this) {
+            final Archive archive = archives.computeIfAbsent(key(query), Archive::new);
+            archive.queued.add(query);
+            ready = archive.poll();
+        }
+        send(ready);
+    }
+
+    /** Frees the slot of a query that received a response and records the response time. */
+    void onResponse(final MessageArchiveService.Query query) {
+        release(query, true);
+    }
+
+    /** Frees the slot of a query that was never sent. */
+    void release(final MessageArchiveService.Query query) {
+        release(query, false);
+    }
+
+    private void release(final MessageArchiveService.Query query, final boolean responded) {
+        final List<MessageArchiveService.Query> ready;
+        synchronized (this) {
+            final Archive archive = archives.get(key(query));
+            if (archive == null) {
+                return;
+            }
+            final Long sent = archive.running.remove(query);
+            if (sent != null && responded) {
+                archive.onResponseTime(SystemClock.elapsedRealtime() - sent);
+            }
+            ready = archive.poll();
+        }
+        send(ready);
+    }
+
+    /**
+     * @return true if the query was still waiting and has been removed from the queue
+     */
+    synchronized boolean cancel(final MessageArchiveService.Query query) {
+        final Archive archive = archives.get(key(query));
+        return archive != null && archive.queued.remove(query);
+    }
+
+    synchronized void cancel(final Account account) {
+        for (final Archive archive : archives.values()) {
+            archive.queued.removeIf(query -> query.getAccount() == account);
+        }
+    }
+
+    synchronized List<State> getState() {
+        final ImmutableList.Builder<State> builder = ImmutableList.builder();
+        for (final Archive archive : archives.values()) {
+            builder.add(
+                    new State(
+                            archive.key,
+                            archive.running.size(),
+                            archive.queued.size(),
+                            archive.pageSize,
+                            archive.averageResponseTime,
+                            archive.responses));
+        }
+        return builder.build();
+    }
+
+    private void send(final List<MessageArchiveService.Query> queries) {
+        for (final MessageArchiveService.Query query : queries) {
+            sender.accept(query);
+        }
+    }
+
+    private static String key(final MessageArchiveService.Query query) {
+        final Account account = query.getAccount();
+        final String host;
+        if (query.muc()) {
+            host = query.getWith().getDomain().toEscapedString();
+        } else {
+            host = account.getJid().getDomain().toEscapedString();
+        }
+        return account.getJid().asBareJid().toEscapedString() + " via " + host;
+    }
+
+    private int compare(
+            final MessageArchiveService.Query a,
+            final MessageArchiveService.Query b,
+            final Conversation open) {
+        final Conversation ca = a.getConversation();
+        final Conversation cb = b.getConversation();
+        return ComparisonChain.start()
+                .compareTrueFirst(open != null && ca == open, open != null && cb == open)
+                .compareFalseFirst(a.isCatchup(), b.isCatchup())
+                .compare(ca, cb, Ordering.<Conversation>natural().nullsFirst())
+                .result();
+    }
+
+    private final class Archive {
+        private final String key;
+        private final List<MessageArchiveService.Query> queued = new ArrayList<>();
+        private final Map<MessageArchiveService.Query, Long> running = new HashMap<>();
+        private int pageSize = Config.PAGE_SIZE;
+        private long averageResponseTime = -1;
+        private long responses = 0;
+
+        private Archive(final String key) {
+            this.key = key;
+        }
+
+        private List<MessageArchiveService.Query> poll() {
+            if (queued.isEmpty() || running.size() >= Config.MAM_MAX_PARALLEL_QUERIES) {
+                return Collections.emptyList();
+            }
+            final Conversation open = service.getNotificationService().getOpenConversation();
+            final List<MessageArchiveService.Query> ready = new ArrayList<>();
+            while (!queued.isEmpty() && running.size() < Config.MAM_MAX_PARALLEL_QUERIES) {
+                final Iterator<MessageArchiveService.Query> iterator = queued.iterator();
+                MessageArchiveService.Query next = iterator.next();
+                while (iterator.hasNext()) {
+                    final MessageArchiveService.Query candidate = iterator.next();
+                    if (compare(candidate, next, open) < 0) {
+                        next = candidate;
+                    }
+                }
+                queued.remove(next);
+                next.setPageSize(next.isCatchup() ? pageSize : Config.PAGE_SIZE);
+                running.put(next, SystemClock.elapsedRealtime());
+                ready.add(next);
+            }
+            return ready;
+        }
+
+        private void onResponseTime(final long responseTime) {
+            ++responses;
+            if (averageResponseTime < 0) {
+                averageResponseTime = responseTime;
+            } else {
+                averageResponseTime = (averageResponseTime * 3 + responseTime) / 4;
+            }
+            if (averageResponseTime < FAST_RESPONSE) {
+                pageSize = Math.min(pageSize * 2, Config.MAM_MAX_PAGE_SIZE);
+            } else if (averageResponseTime > SLOW_RESPONSE) {
+                pageSize = Math.max(pageSize / 2, MIN_PAGE_SIZE);
+            }
+        }
+    }
+
+    public static class State {
+        public final String archive;
+        public final int running;
+        public final int queued;
+        public final int pageSize;
+        public final long averageResponseTime;
+        public final long responses;
+
+        private State(
+                final String archive,
+                final int running,
+                final int queued,
+                final int pageSize,
+                final long averageResponseTime,
+                final long responses) {
+            this.archive = archive;
+            this.running = running;
+            this.queued = queued;
+            this.pageSize = pageSize;
+            this.averageResponseTime = averageResponseTime;
+            this.responses = responses;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("archive", archive)
+                    .add("running", running)
+                    .add("queued", queued)
+                    .add("pageSize", pageSize)
+                    .add("avgResponseMs", averageResponseTime)
+                    .add("responses", responses)
+                    .toString();
+        }
+    }
+}
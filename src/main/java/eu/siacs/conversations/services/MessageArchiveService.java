@@ -2,21 +2,26 @@ package eu.siacs.conversations.services;
 
 import static eu.siacs.conversations.utils.Random.SECURE_RANDOM;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.R;
 import eu.siacs.conversations.entities.Account;
 import eu.siacs.conversations.entities.Conversation;
 import eu.siacs.conversations.entities.Conversational;
+import eu.siacs.conversations.entities.Message;
 import eu.siacs.conversations.entities.ReceiptRequest;
 import eu.siacs.conversations.generator.AbstractGenerator;
 import eu.siacs.conversations.xml.Element;
@@ -24,7 +29,6 @@ import eu.siacs.conversations.xmpp.Jid;
 import eu.siacs.conversations.xmpp.OnAdvancedStreamFeaturesLoaded;
 import eu.siacs.conversations.xmpp.mam.MamReference;
 import im.conversations.android.xmpp.model.stanza.Iq;
-import im.conversations.android.xmpp.model.stanza.Message;
 
 public class MessageArchiveService implements OnAdvancedStreamFeaturesLoaded {
 
@@ -32,6 +36,7 @@ public class MessageArchiveService implements OnAdvancedStreamFeaturesLoaded {
 
     private final HashSet<Query> queries = new HashSet<>();
     private final ArrayList<Query> pendingQueries = new ArrayList<>();
+    private final MamScheduler scheduler;
 
     public enum Version {
         MAM_0("urn:xmpp:mam:0", true),
@@ -81,7 +86,7 @@ public class MessageArchiveService implements OnAdvancedStreamFeaturesLoaded {
             return false;
         }
 
-        public static Element findResult(Message packet) {
+        public static Element findResult(im.conversations.android.xmpp.model.stanza.Message packet) {
             for (Version version : values()) {
                 Element result = packet.findChild("result", version.namespace);
                 if (result != null) {
@@ -95,6 +100,7 @@ public class MessageArchiveService implements OnAdvancedStreamFeaturesLoaded {
 
     MessageArchiveService(final XmppConnectionService service) {
         this.mXmppConnectionService = service;
+        this.scheduler = new MamScheduler(service, this::send);
     }
 
     private void catchup(final Account account) {
@@ -106,6 +112,7 @@ public class MessageArchiveService implements OnAdvancedStreamFeaturesLoaded {
                 }
             }
         }
+        this.scheduler.cancel(account);
         MamReference mamReference = MamReference.max(
                 mXmppConnectionService.databaseBackend.getLastMessageReceived(account),
                 mXmppConnectionService.databaseBackend.getLastClearDate(account)
@@ -233,38 +240,11 @@ public class MessageArchiveService implements OnAdvancedStreamFeaturesLoaded {
             if (conversation != null && conversation.getStatus() == Conversation.STATUS_ARCHIVED) {
                 throw new IllegalStateException("Attempted to run MAM query for archived conversation");
             }
-            Log.d(Config.LOGTAG, account.getJid().asBareJid().toString() + ": running mam query " + query.toString());
-            final Iq packet = this.mXmppConnectionService.getIqGenerator().queryMessageArchiveManagement(query);
-            this.mXmppConnectionService.sendIqPacket(account, packet, (p) -> {
-                final Element fin = p.findChild("fin", query.version.namespace);
-                if (p.getType() == Iq.Type.TIMEOUT) {
-                    synchronized (this.queries) {
-                        this.queries.remove(query);
-                        if (query.hasCallback()) {
-                            query.callback(false);
-                        }
-                    }
-                } else if (p.getType() == Iq.Type.RESULT && fin != null) {
-                    final boolean running;
-                    synchronized (this.queries) {
-                        running = this.queries.contains(query);
-                    }
-                    if (running) {
-                        processFin(query, fin);
-                    } else {
-                        Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": ignoring MAM iq result because query had been killed");
-                    }
-                } else if (p.getType() == Iq.Type.RESULT && query.isLegacy()) {
-                    //do nothing
-                } else {
-                    Log.d(Config.LOGTAG, account.getJid().asBareJid().toString() + ": error executing mam: " + p.toString());
-                    try {
-                        finalizeQuery(query, true);
-                    } catch (final IllegalStateException e) {
-                        //ignored
-                    }
-                }
-            });
+            if (Config.MAM_SCHEDULER) {
+                this.scheduler.schedule(query);
+            } else {
+                this.send(query);
+            }
         } else {
             synchronized (this.pendingQueries) {
                 this.pendingQueries.add(query);
@@ -272,7 +252,60 @@ public class MessageArchiveService implements OnAdvancedStreamFeaturesLoaded {
         }
     }
 
+    private void send(final Query query) {
+        final Account account = query.getAccount();
+        if (account.getStatus() != Account.State.ONLINE) {
+            // the account went offline while the query was waiting for the scheduler
+            this.scheduler.release(query);
+            synchronized (this.pendingQueries) {
+                this.pendingQueries.add(query);
+            }
+            return;
+        }
+        Log.d(Config.LOGTAG, account.getJid().asBareJid().toString() + ": running mam query " + query.toString());
+        final Iq packet = this.mXmppConnectionService.getIqGenerator().queryMessageArchiveManagement(query);
+        this.mXmppConnectionService.sendIqPacket(account, packet, (p) -> {
+            final Element fin = p.findChild("fin", query.version.namespace);
+            if (p.getType() == Iq.Type.TIMEOUT) {
+                this.scheduler.release(query);
+                query.flush();
+                synchronized (this.queries) {
+                    this.queries.remove(query);
+                    if (query.hasCallback()) {
+                        query.callback(false);
+                    }
+                }
+            } else if (p.getType() == Iq.Type.RESULT && fin != null) {
+                this.scheduler.onResponse(query);
+                final boolean running;
+                synchronized (this.queries) {
+                    running = this.queries.contains(query);
+                }
+                if (running) {
+                    processFin(query, fin);
+                } else {
+                    Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": ignoring MAM iq result because query had been killed");
+                }
+            } else if (p.getType() == Iq.Type.RESULT && query.isLegacy()) {
+                this.scheduler.onResponse(query);
+            } else {
+                this.scheduler.onResponse(query);
+                Log.d(Config.LOGTAG, account.getJid().asBareJid().toString() + ": error executing mam: " + p.toString());
+                try {
+                    finalizeQuery(query, true);
+                } catch (final IllegalStateException e) {
+                    //ignored
+                }
+            }
+        });
+    }
+
+    public List<MamScheduler.State> getSchedulerState() {
+        return this.scheduler.getState();
+    }
+
     private void finalizeQuery(final Query query, boolean done) {
+        query.flush();
         synchronized (this.queries) {
             if (!this.queries.remove(query)) {
                 throw new IllegalStateException("Unable to remove query from queries");
@@ -430,6 +463,7 @@ public class MessageArchiveService implements OnAdvancedStreamFeaturesLoaded {
     private void kill(Query query) {
         Log.d(Config.LOGTAG, query.getAccount().getJid().asBareJid() + ": killing mam query prematurely");
         query.callback = null;
+        this.scheduler.cancel(query);
         this.finalizeQuery(query, false);
         if (query.isCatchup() && query.getActualMessageCount() > 0) {
             mXmppConnectionService.getNotificationService().finishBacklog(true, query.getAccount());
@@ -491,6 +525,11 @@ public class MessageArchiveService implements OnAdvancedStreamFeaturesLoaded {
         private XmppConnectionService.OnMoreMessagesLoaded callback = null;
         private boolean catchup = true;
         public final Version version;
+        private final long created = SystemClock.elapsedRealtime();
+        private final List<Message> ingested = new ArrayList<>();
+        private final Map<Conversation, Set<String>> knownServerMsgIds = new HashMap<>();
+        private boolean flushed = false;
+        private int pageSize = Config.PAGE_SIZE;
 
 
         Query(Conversation conversation, MamReference start, long end, boolean catchup) {
@@ -566,6 +605,14 @@ public class MessageArchiveService implements OnAdvancedStreamFeaturesLoaded {
             return this.pagingOrder;
         }
 
+        public int getPageSize() {
+            return pageSize;
+        }
+
+        void setPageSize(final int pageSize) {
+            this.pageSize = pageSize;
+        }
+
         public String getQueryId() {
             return queryId;
         }
@@ -632,6 +679,66 @@ public class MessageArchiveService implements OnAdvancedStreamFeaturesLoaded {
             return this.actualInThisQuery;
         }
 
+        /**
+         * Checks the server message id against the ids already stored for the conversation. The
+         * ids are loaded with one query per conversation and page, starting a day before the first
+         * result of the page to allow for clock skew between archive and local timestamps.
+         */
+        public boolean isKnownServerMsgId(final Conversation conversation, final Message message) {
+            final String serverMsgId = message.getServerMsgId();
+            if (serverMsgId == null) {
+                return false;
+            }
+            synchronized (this.ingested) {
+                Set<String> known = this.knownServerMsgIds.get(conversation);
+                if (known == null) {
+                    final long since = Math.max(0, message.getTimeSent() - Config.MILLISECONDS_IN_DAY);
+                    known = mXmppConnectionService.databaseBackend.getServerMsgIds(conversation, since);
+                    this.knownServerMsgIds.put(conversation, known);
+                }
+                return !known.add(serverMsgId);
+            }
+        }
+
+        /**
+         * Buffers the message until the page is finalized and all buffered messages are persisted
+         * in one transaction. Messages handed to the buffer can still be modified in memory;
+         * they are written in the state they are in when the page is flushed.
+         *
+         * @return false if the page has already been flushed and the caller has to persist the
+         *     message itself
+         */
+        public boolean ingest(final Message message) {
+            synchronized (this.ingested) {
+                if (this.flushed) {
+                    return false;
+                }
+                this.ingested.add(message);
+                return true;
+            }
+        }
+
+        private void flush() {
+            final List<Message> messages;
+            synchronized (this.ingested) {
+                if (this.flushed) {
+                    return;
+                }
+                this.flushed = true;
+                messages = new ArrayList<>(this.ingested);
+                this.ingested.clear();
+                this.knownServerMsgIds.clear();
+            }
+            if (messages.isEmpty()) {
+                return;
+            }
+            final long start = SystemClock.elapsedRealtime();
+            mXmppConnectionService.databaseBackend.createMessages(messages);
+            final long now = SystemClock.elapsedRealtime();
+            final long elapsed = Math.max(1, now - this.created);
+            Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": persisted " + messages.size() + " messages from mam page in " + (now - start) + "ms (" + (messages.size() * 1000L / elapsed) + " messages/s)");
+        }
+
         public boolean validFrom(Jid from) {
             if (muc()) {
                 return getWith().equals(from);
@@ -673,6 +780,7 @@ public class MessageArchiveService implements OnAdvancedStreamFeaturesLoaded {
                 builder.append(this.reference);
             }
             builder.append(", catchup=").append(catchup);
+            builder.append(", max=").append(pageSize);
             builder.append(", ns=").append(version.namespace);
             return builder.toString();
         }
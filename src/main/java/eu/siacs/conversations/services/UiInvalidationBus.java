@@ -0,0 +1,133 @@
+package eu.siacs.conversations.services;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableMap;
+
+import eu.siacs.conversations.Config;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Coalesces requests to update the UI. The first request for a target after a quiet period is
+ * delivered right away; further requests within {@link Config#UI_INVALIDATION_INTERVAL} only mark
+ * the target as dirty and are delivered as one update at the end of the interval. Updates are
+ * delivered on a dedicated thread, never on the thread that requested them.
+ */
+public final class UiInvalidationBus {
+
+    public enum Target {
+        CONVERSATIONS,
+        ACCOUNTS,
+        ROSTER,
+        MUC_ROSTER
+    }
+
+    private final ScheduledExecutorService executor =
+            Executors.newSingleThreadScheduledExecutor();
+    private final Consumer<Target> dispatcher;
+    private final Map<Target, Channel> channels = new EnumMap<>(Target.class);
+
+    UiInvalidationBus(final Consumer<Target> dispatcher) {
+        this.dispatcher = dispatcher;
+        for (final Target target : Target.values()) {
+            channels.put(target, new Channel(target));
+        }
+    }
+
+    void invalidate(final Target target) {
+        final Channel channel = channels.get(target);
+        channel.requested.incrementAndGet();
+        synchronized (channel) {
+            if (channel.scheduled) {
+                return;
+            }
+            final long delay =
+                    Math.max(
+                            0,
+                            channel.lastDelivery
+                                    + Config.UI_INVALIDATION_INTERVAL
+                                    - SystemClock.elapsedRealtime());
+            try {
+                executor.schedule(() -> deliver(channel), delay, TimeUnit.MILLISECONDS);
+            } catch (final RejectedExecutionException e) {
+                // the service has been destroyed; nobody is listening anymore
+                return;
+            }
+            channel.scheduled = true;
+        }
+    }
+
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    private void deliver(final Channel channel) {
+        synchronized (channel) {
+            // requests that arrive while listeners run schedule another delivery
+            channel.scheduled = false;
+            channel.lastDelivery = SystemClock.elapsedRealtime();
+        }
+        channel.delivered.incrementAndGet();
+        try {
+            dispatcher.accept(channel.target);
+        } catch (final RuntimeException e) {
+            // the executor would silently swallow the exception otherwise
+            Log.e(Config.LOGTAG, "ui listener failed to process update of " + channel.target, e);
+        }
+    }
+
+    public Statistics getStatistics() {
+        final ImmutableMap.Builder<Target, Long> requested = ImmutableMap.builder();
+        final ImmutableMap.Builder<Target, Long> delivered = ImmutableMap.builder();
+        for (final Channel channel : channels.values()) {
+            requested.put(channel.target, channel.requested.get());
+            delivered.put(channel.target, channel.delivered.get());
+        }
+        return new Statistics(requested.build(), delivered.build());
+    }
+
+    private static final class Channel {
+        private final Target target;
+        private final AtomicLong requested = new AtomicLong(0);
+        private final AtomicLong delivered = new AtomicLong(0);
+        private boolean scheduled = false;
+        private long lastDelivery = Long.MIN_VALUE / 2;
+
+        private Channel(final Target target) {
+            this.target = target;
+        }
+    }
+
+    public static class Statistics {
+        public final Map<Target, Long> requested;
+        public final Map<Target, Long> delivered;
+
+        private Statistics(final Map<Target, Long> requested, final Map<Target, Long> delivered) {
+            this.requested = requested;
+            this.delivered = delivered;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            final MoreObjects.ToStringHelper helper = MoreObjects.toStringHelper(this);
+            for (final Map.Entry<Target, Long> entry : requested.entrySet()) {
+                final long delivered = this.delivered.get(entry.getKey());
+                helper.add(entry.getKey().name(), delivered + "/" + entry.getValue());
+            }
+            return helper.toString();
+        }
+    }
+}
@@ -58,6 +58,8 @@ import com.google.common.base.Optional;
 import com.google.common.base.Strings;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 
 import org.conscrypt.Conscrypt;
 import org.jxmpp.stringprep.libidn.LibIdnXmppStringprep;
@@ -88,6 +90,7 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
@@ -206,6 +209,7 @@ public class XmppConnectionService extends Service {
     private final static Executor FILE_ATTACHMENT_EXECUTOR = Executors.newSingleThreadExecutor();
 
     private final ScheduledExecutorService internalPingExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final UiInvalidationBus uiInvalidationBus = new UiInvalidationBus(this::deliverUiUpdate);
     private final static SerialSingleThreadExecutor VIDEO_COMPRESSION_EXECUTOR = new SerialSingleThreadExecutor("VideoCompression");
     private final SerialSingleThreadExecutor mDatabaseWriterExecutor = new SerialSingleThreadExecutor("DatabaseWriter");
     private final SerialSingleThreadExecutor mDatabaseReaderExecutor = new SerialSingleThreadExecutor("DatabaseReader");
@@ -1137,6 +1141,7 @@ public class XmppConnectionService extends Service {
             long timestamp = getAutomaticMessageDeletionDate();
             if (timestamp > 0) {
                 databaseBackend.expireOldMessages(timestamp);
+                fileBackend.expireThumbnails(timestamp);
                 synchronized (XmppConnectionService.this.conversations) {
                     for (Conversation conversation : XmppConnectionService.this.conversations) {
                         conversation.expireOldMessages(timestamp);
@@ -1349,6 +1354,7 @@ public class XmppConnectionService extends Service {
         destroyed = false;
         fileObserver.stopWatching();
         internalPingExecutor.shutdown();
+        uiInvalidationBus.shutdown();
         super.onDestroy();
     }
 
@@ -1563,6 +1569,7 @@ public class XmppConnectionService extends Service {
         connection.setOnMessageAcknowledgeListener(this.mOnMessageAcknowledgedListener);
         connection.addOnAdvancedStreamFeaturesAvailableListener(this.mMessageArchiveService);
         connection.addOnAdvancedStreamFeaturesAvailableListener(this.mAvatarService);
+        connection.addOnAdvancedStreamFeaturesAvailableListener(this.mJingleConnectionManager);
         AxolotlService axolotlService = account.getAxolotlService();
         if (axolotlService != null) {
             connection.addOnAdvancedStreamFeaturesAvailableListener(axolotlService);
@@ -2096,6 +2103,7 @@ public class XmppConnectionService extends Service {
                 if (deletionDate > 0) {
                     Log.d(Config.LOGTAG, "deleting messages that are older than " + AbstractGenerator.getTimestamp(deletionDate));
                     databaseBackend.expireOldMessages(deletionDate);
+                    fileBackend.expireThumbnails(deletionDate);
                 }
                 Log.d(Config.LOGTAG, "restoring roster...");
                 for (final Account account : accounts) {
@@ -2113,21 +2121,65 @@ public class XmppConnectionService extends Service {
                     final long diffMessageRestore = SystemClock.elapsedRealtime() - startMessageRestore;
                     Log.d(Config.LOGTAG, "quickly restored " + quickLoad.getName() + " after " + diffMessageRestore + "ms");
                 }
+                final Map<String, DatabaseBackend.ConversationSummary> summaries;
+                if (Config.LAZY_MESSAGE_RESTORE) {
+                    summaries = databaseBackend.getConversationSummaries(this.conversations);
+                } else {
+                    summaries = null;
+                }
+                int deferred = 0;
                 for (Conversation conversation : this.conversations) {
-                    if (quickLoad != conversation) {
+                    if (quickLoad == conversation) {
+                        continue;
+                    }
+                    if (summaries == null) {
                         restoreMessages(conversation);
+                        continue;
+                    }
+                    final DatabaseBackend.ConversationSummary summary = summaries.get(conversation.getUuid());
+                    if (summary == null) {
+                        // no messages in database
+                        ++deferred;
+                    } else if (summary.requiresRestore()) {
+                        restoreMessages(conversation);
+                    } else {
+                        deferMessageRestore(conversation, summary);
+                        ++deferred;
                     }
                 }
                 mNotificationService.finishBacklog();
                 restoredFromDatabaseLatch.countDown();
                 final long diffMessageRestore = SystemClock.elapsedRealtime() - startMessageRestore;
-                Log.d(Config.LOGTAG, "finished restoring messages in " + diffMessageRestore + "ms");
+                Log.d(Config.LOGTAG, "finished restoring messages in " + diffMessageRestore + "ms (deferred " + deferred + " of " + this.conversations.size() + " conversations)");
                 updateConversationUi();
             };
             mDatabaseReaderExecutor.execute(runnable); //will contain one write command (expiry) but that's fine
         }
     }
 
+    private void deferMessageRestore(final Conversation conversation, final DatabaseBackend.ConversationSummary summary) {
+        conversation.deferMessageRestore(summary.latestMessage, summary.lastTransmitted, new Conversation.DeferredRestore() {
+            @Override
+            public List<Message> load() {
+                final long start = SystemClock.elapsedRealtime();
+                final List<Message> messages = databaseBackend.getMessages(conversation, Config.PAGE_SIZE);
+                Log.d(Config.LOGTAG, "restored messages of " + conversation.getJid().asBareJid() + " on first access in " + (SystemClock.elapsedRealtime() - start) + "ms");
+                return messages;
+            }
+        });
+    }
+
+    /**
+     * Restores the messages of a conversation whose restore has been deferred in the background
+     * and runs the callback once they are in place.
+     */
+    public void restoreDeferredMessages(final Conversation conversation, final Runnable onRestored) {
+        mDatabaseReaderExecutor.execute(() -> {
+            conversation.restoreDeferredMessages();
+            onRestored.run();
+        });
+    }
+
     private void restoreMessages(Conversation conversation) {
         conversation.addAll(0, databaseBackend.getMessages(conversation, Config.PAGE_SIZE));
         conversation.findUnsentTextMessages(message -> markMessage(message, Message.STATUS_WAITING));
@@ -2651,6 +2703,7 @@ public class XmppConnectionService extends Service {
             if (connected) {
                 account.getAxolotlService().deleteOmemoIdentity();
             }
+            final List<Conversation> removed = new ArrayList<>();
             for (final Conversation conversation : conversations) {
                 if (conversation.getAccount() == account) {
                     if (conversation.getMode() == Conversation.MODE_MULTI) {
@@ -2659,6 +2712,7 @@ public class XmppConnectionService extends Service {
                         }
                     }
                     conversations.remove(conversation);
+                    removed.add(conversation);
                     mNotificationService.clear(conversation);
                 }
             }
@@ -2666,9 +2720,14 @@ public class XmppConnectionService extends Service {
                 new Thread(() -> disconnect(account, !connected)).start();
             }
             final Runnable runnable = () -> {
+                final List<String> uuids = new ArrayList<>();
+                for (final Conversation conversation : removed) {
+                    uuids.addAll(databaseBackend.getFileMessageUuids(conversation));
+                }
                 if (!databaseBackend.deleteAccount(account)) {
                     Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": unable to delete account");
                 }
+                fileBackend.removeThumbnails(uuids);
             };
             mDatabaseWriterExecutor.execute(runnable);
             this.accounts.remove(account);
@@ -2676,6 +2735,7 @@ public class XmppConnectionService extends Service {
                 CallIntegrationConnectionService.unregisterPhoneAccount(this, account);
             }
             this.mRosterSyncTaskManager.clear(account);
+            this.mQuickConversationsService.onAccountDeleted(account);
             updateAccountUi();
             mNotificationService.updateErrorNotification();
             syncEnabledAccountSetting();
@@ -3716,6 +3776,11 @@ public class XmppConnectionService extends Service {
         updateConversationUi();
     }
 
+    public void updateMessages(final Collection<Message> messages) {
+        databaseBackend.updateMessages(messages);
+        updateConversationUi();
+    }
+
     public void createMessageAsync(final Message message) {
         mDatabaseWriterExecutor.execute(() -> databaseBackend.createMessage(message));
     }
@@ -4396,11 +4461,46 @@ public class XmppConnectionService extends Service {
     }
 
     public void updateConversationUi() {
-        for (OnConversationUpdate listener : threadSafeList(this.mOnConversationUpdates)) {
-            listener.onConversationUpdate();
+        invalidateUi(UiInvalidationBus.Target.CONVERSATIONS);
+    }
+
+    private void invalidateUi(final UiInvalidationBus.Target target) {
+        if (Config.UI_INVALIDATION_INTERVAL > 0) {
+            uiInvalidationBus.invalidate(target);
+        } else {
+            deliverUiUpdate(target);
+        }
+    }
+
+    private void deliverUiUpdate(final UiInvalidationBus.Target target) {
+        switch (target) {
+            case CONVERSATIONS -> {
+                for (final OnConversationUpdate listener : threadSafeList(this.mOnConversationUpdates)) {
+                    listener.onConversationUpdate();
+                }
+            }
+            case ACCOUNTS -> {
+                for (final OnAccountUpdate listener : threadSafeList(this.mOnAccountUpdates)) {
+                    listener.onAccountUpdate();
+                }
+            }
+            case ROSTER -> {
+                for (final OnRosterUpdate listener : threadSafeList(this.mOnRosterUpdates)) {
+                    listener.onRosterUpdate();
+                }
+            }
+            case MUC_ROSTER -> {
+                for (final OnMucRosterUpdate listener : threadSafeList(this.mOnMucRosterUpdate)) {
+                    listener.onMucRosterUpdate();
+                }
+            }
         }
     }
 
+    public UiInvalidationBus.Statistics getUiInvalidationStatistics() {
+        return uiInvalidationBus.getStatistics();
+    }
+
     public void notifyJingleRtpConnectionUpdate(final Account account, final Jid with, final String sessionId, final RtpEndUserState state) {
         for (OnJingleRtpConnectionUpdate listener : threadSafeList(this.onJingleRtpConnectionUpdate)) {
             listener.onJingleRtpConnectionUpdate(account, with, sessionId, state);
@@ -4414,15 +4514,11 @@ public class XmppConnectionService extends Service {
     }
 
     public void updateAccountUi() {
-        for (final OnAccountUpdate listener : threadSafeList(this.mOnAccountUpdates)) {
-            listener.onAccountUpdate();
-        }
+        invalidateUi(UiInvalidationBus.Target.ACCOUNTS);
     }
 
     public void updateRosterUi() {
-        for (OnRosterUpdate listener : threadSafeList(this.mOnRosterUpdates)) {
-            listener.onRosterUpdate();
-        }
+        invalidateUi(UiInvalidationBus.Target.ROSTER);
     }
 
     public boolean displayCaptchaRequest(Account account, String id, Data data, Bitmap captcha) {
@@ -4445,9 +4541,7 @@ public class XmppConnectionService extends Service {
     }
 
     public void updateMucRosterUi() {
-        for (OnMucRosterUpdate listener : threadSafeList(this.mOnMucRosterUpdate)) {
-            listener.onMucRosterUpdate();
-        }
+        invalidateUi(UiInvalidationBus.Target.MUC_ROSTER);
     }
 
     public void keyStatusUpdated(AxolotlService.FetchStatus report) {
@@ -4721,6 +4815,14 @@ public class XmppConnectionService extends Service {
         }
     }
 
+    public ListenableFuture<Iq> sendIqPacket(final Account account, final Iq packet) {
+        final XmppConnection connection = account.getXmppConnection();
+        if (connection == null) {
+            return Futures.immediateFailedFuture(new TimeoutException());
+        }
+        return connection.sendIqPacket(packet);
+    }
+
     public void sendPresence(final Account account) {
         sendPresence(account, checkListeners() && broadcastLastActivity());
     }
@@ -4866,8 +4968,10 @@ public class XmppConnectionService extends Service {
         conversation.setHasMessagesLeftOnServer(false); //avoid messages getting loaded through mam
         conversation.setLastClearHistory(clearDate, reference);
         Runnable runnable = () -> {
+            final List<String> uuids = databaseBackend.getFileMessageUuids(conversation);
             databaseBackend.deleteMessagesInConversation(conversation);
             databaseBackend.updateConversation(conversation);
+            fileBackend.removeThumbnails(uuids);
         };
         mDatabaseWriterExecutor.execute(runnable);
     }
@@ -5127,6 +5231,7 @@ public class XmppConnectionService extends Service {
         if (mBitmapCache.remove(uuid) != null) {
             Log.d(Config.LOGTAG, "deleted cached preview");
         }
+        fileBackend.removeThumbnail(uuid);
     }
 
     public interface OnMamPreferencesFetched {
@@ -2168,7 +2168,6 @@ public class ConversationFragment extends XmppFragment
                 (dialog, which) -> {
                     if (activity.xmppConnectionService.getFileBackend().deleteFile(message)) {
                         message.setDeleted(true);
-                        activity.xmppConnectionService.evictPreview(message.getUuid());
                         activity.xmppConnectionService.updateMessage(message, false);
                         activity.onConversationsListItemUpdated();
                         refresh();
@@ -2461,6 +2460,20 @@ public class ConversationFragment extends XmppFragment
             return false;
         }
 
+        if (conversation.isMessageRestorePending()) {
+            // don't show a conversation whose first page of messages is still in the database
+            activity.xmppConnectionService.restoreDeferredMessages(
+                    conversation,
+                    () ->
+                            runOnUiThread(
+                                    () -> {
+                                        if (this.conversation == conversation) {
+                                            reInit(conversation, hasExtras);
+                                        }
+                                    }));
+            return true;
+        }
+
         stopScrolling();
         Log.d(Config.LOGTAG, "reInit(hasExtras=" + hasExtras + ")");
 
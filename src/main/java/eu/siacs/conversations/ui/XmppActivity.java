@@ -945,7 +945,7 @@ public abstract class XmppActivity extends ActionBarActivity {
                         getResources(), null, task);
                 imageView.setImageDrawable(asyncDrawable);
                 try {
-                    task.execute(message);
+                    task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, message);
                 } catch (final RejectedExecutionException ignored) {
                     ignored.printStackTrace();
                 }
@@ -0,0 +1,281 @@
+package eu.siacs.conversations.utils;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.common.collect.ImmutableList;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.persistance.FileBackend;
+import eu.siacs.conversations.xmpp.Jid;
+
+import java.io.IOException;
+import java.net.IDN;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Establishes TCP connections to resolver results in the style of Happy Eyeballs (RFC 8305). The
+ * first candidate is tried right away; every time an attempt fails or the attempt delay expires
+ * without a connection the next candidate is started in parallel. The first socket to connect
+ * wins and all other attempts are cancelled.
+ *
+ * <p>Connect latency and failures are remembered per result for the lifetime of the process and
+ * used to order candidates on subsequent connection attempts. Preferred candidates (see-other-host,
+ * resume location, the last result that worked) are always tried first.
+ */
+public class ConnectionRacer {
+
+    private static final Executor EXECUTOR = Executors.newCachedThreadPool();
+
+    private static final long FAILURE_PENALTY_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final int MAX_HISTORY_SIZE = 256;
+    private static final Map<Resolver.Result, History> HISTORY = new ConcurrentHashMap<>();
+
+    private final Jid account;
+    private final List<Resolver.Result> candidates;
+    private final long attemptDelay;
+    private final int connectTimeout;
+
+    /**
+     * @param attemptDelay time to wait for a connection before starting the next attempt in
+     *     parallel. Passing the connect timeout or more makes attempts sequential
+     */
+    public ConnectionRacer(
+            final Jid account,
+            final Collection<Resolver.Result> preferred,
+            final Collection<Resolver.Result> results,
+            final long attemptDelay,
+            final int connectTimeout) {
+        this.account = account;
+        final LinkedHashSet<Resolver.Result> candidates = new LinkedHashSet<>(preferred);
+        final Map<Resolver.Result, Long> scores = new HashMap<>();
+        for (final Resolver.Result result : results) {
+            scores.put(result, score(result));
+        }
+        final List<Resolver.Result> ordered = new ArrayList<>(results);
+        // stable sort; results without history keep the order from the resolver
+        ordered.sort(Comparator.comparingLong(scores::get));
+        candidates.addAll(ordered);
+        this.candidates = new ArrayList<>(candidates);
+        this.attemptDelay = attemptDelay;
+        this.connectTimeout = connectTimeout;
+    }
+
+    private static long score(final Resolver.Result result) {
+        final History history = HISTORY.get(result);
+        if (history == null) {
+            return 0;
+        }
+        synchronized (history) {
+            if (history.lastFailure != 0
+                    && SystemClock.elapsedRealtime() - history.lastFailure
+                            < FAILURE_PENALTY_MILLIS) {
+                return Long.MAX_VALUE;
+            }
+            // known good results move ahead of unknown ones
+            return history.averageLatency - Integer.MAX_VALUE;
+        }
+    }
+
+    public boolean hasNext() {
+        return !candidates.isEmpty();
+    }
+
+    /**
+     * Races the remaining candidates. The result that connected is removed from the candidates
+     * as are all results that failed to connect. Calling this again after the caller rejected a
+     * connection (for example because TLS failed) starts a new race among the remaining ones.
+     *
+     * @throws UnknownHostException if none of the candidates could be connected to
+     */
+    public Connection next() throws UnknownHostException, InterruptedException {
+        final List<Resolver.Result> round = ImmutableList.copyOf(candidates);
+        final BlockingQueue<Attempt> outcomes = new LinkedBlockingQueue<>();
+        final List<Attempt> running = new ArrayList<>();
+        int started = 0;
+        try {
+            while (true) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedException();
+                }
+                if (started < round.size()) {
+                    final Attempt attempt = new Attempt(round.get(started++), outcomes);
+                    running.add(attempt);
+                    EXECUTOR.execute(attempt);
+                }
+                if (running.isEmpty()) {
+                    throw new UnknownHostException();
+                }
+                final Attempt outcome;
+                if (started < round.size()) {
+                    outcome = outcomes.poll(attemptDelay, TimeUnit.MILLISECONDS);
+                    if (outcome == null) {
+                        continue;
+                    }
+                } else {
+                    outcome = outcomes.take();
+                }
+                running.remove(outcome);
+                candidates.remove(outcome.result);
+                if (outcome.connected != null) {
+                    record(outcome.result, outcome.latency);
+                    Log.d(
+                            Config.LOGTAG,
+                            account
+                                    + ": connected to "
+                                    + outcome.address
+                                    + " after "
+                                    + outcome.latency
+                                    + "ms ("
+                                    + running.size()
+                                    + " other attempt(s) cancelled)");
+                    return new Connection(outcome.result, outcome.connected);
+                }
+                record(outcome.result, -1);
+                Log.d(
+                        Config.LOGTAG,
+                        account
+                                + ": unable to connect to "
+                                + outcome.address
+                                + " "
+                                + outcome.exception.getMessage()
+                                + "("
+                                + outcome.exception.getClass().getName()
+                                + ")");
+            }
+        } finally {
+            for (final Attempt attempt : running) {
+                attempt.cancel();
+            }
+        }
+    }
+
+    private static void record(final Resolver.Result result, final long latency) {
+        if (HISTORY.size() > MAX_HISTORY_SIZE) {
+            HISTORY.clear();
+        }
+        final History history = HISTORY.computeIfAbsent(result, r -> new History());
+        synchronized (history) {
+            if (latency < 0) {
+                history.lastFailure = SystemClock.elapsedRealtime();
+            } else {
+                history.lastFailure = 0;
+                history.averageLatency =
+                        history.averageLatency == 0
+                                ? latency
+                                : (history.averageLatency * 3 + latency) / 4;
+            }
+        }
+    }
+
+    private static InetSocketAddress address(final Resolver.Result result) {
+        if (result.getIp() != null) {
+            return new InetSocketAddress(result.getIp(), result.getPort());
+        } else {
+            return new InetSocketAddress(
+                    IDN.toASCII(result.getHostname().toString()), result.getPort());
+        }
+    }
+
+    private class Attempt implements Runnable {
+
+        private final Resolver.Result result;
+        private final BlockingQueue<Attempt> outcomes;
+        private final String address;
+        private Socket socket;
+        private boolean cancelled = false;
+        private Socket connected;
+        private IOException exception;
+        private long latency;
+
+        private Attempt(final Resolver.Result result, final BlockingQueue<Attempt> outcomes) {
+            this.result = result;
+            this.outcomes = outcomes;
+            this.address =
+                    (result.getHostname() == null ? "" : result.getHostname() + "/")
+                            + (result.getIp() == null ? "" : result.getIp().getHostAddress())
+                            + ":"
+                            + result.getPort();
+        }
+
+        @Override
+        public void run() {
+            final long start = SystemClock.elapsedRealtime();
+            final Socket socket = new Socket();
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                this.socket = socket;
+            }
+            Log.d(
+                    Config.LOGTAG,
+                    account
+                            + ": using values from resolver "
+                            + address
+                            + " tls: "
+                            + result.isDirectTls());
+            try {
+                socket.connect(address(result), connectTimeout);
+                synchronized (this) {
+                    if (cancelled) {
+                        FileBackend.close(socket);
+                        return;
+                    }
+                    this.latency = SystemClock.elapsedRealtime() - start;
+                    this.connected = socket;
+                }
+            } catch (final IOException | RuntimeException e) {
+                FileBackend.close(socket);
+                synchronized (this) {
+                    if (cancelled) {
+                        return;
+                    }
+                    this.exception = e instanceof IOException ? (IOException) e : new IOException(e);
+                }
+            }
+            outcomes.add(this);
+        }
+
+        private synchronized void cancel() {
+            cancelled = true;
+            if (socket != null && connected == null) {
+                // closing the socket aborts a pending connect
+                FileBackend.close(socket);
+            } else if (connected != null) {
+                // connected after the winner but before we got to read the outcome
+                FileBackend.close(connected);
+            }
+        }
+    }
+
+    private static class History {
+        private long averageLatency = 0;
+        private long lastFailure = 0;
+    }
+
+    public static class Connection {
+        public final Resolver.Result result;
+        public final Socket socket;
+
+        private Connection(final Resolver.Result result, final Socket socket) {
+            this.result = result;
+            this.socket = socket;
+        }
+    }
+}
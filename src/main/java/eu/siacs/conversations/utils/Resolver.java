@@ -103,7 +103,9 @@ public class Resolver {
         }
     }
 
-    public static void clearCache() {}
+    public static void clearCache() {
+        AndroidDNSClient.clearCache();
+    }
 
     public static boolean useDirectTls(final int port) {
         return port == 443 || port == 5223;
@@ -0,0 +1,163 @@
+package eu.siacs.conversations.utils;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import eu.siacs.conversations.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timer wheel for large numbers of timeouts that usually get cancelled before they
+ * expire. Scheduling and cancelling are O(1). Timeouts fire with a precision of one tick on the
+ * thread of the wheel, so tasks should be short.
+ *
+ * <p>The wheel only ticks while there are pending timeouts to avoid waking up the device.
+ */
+public class TimerWheel {
+
+    private final String name;
+    private final long tickDuration;
+    private final List<Set<Timeout>> buckets;
+    private final ScheduledExecutorService executor;
+
+    private long start;
+    private long processedTicks = 0;
+    private int pending = 0;
+    private ScheduledFuture<?> ticker;
+
+    /**
+     * @param name used to name the thread and in log messages
+     * @param tickDuration the precision of the wheel in milliseconds
+     * @param buckets the number of buckets. Timeouts longer than buckets * tickDuration stay on
+     *     the wheel for multiple rounds
+     */
+    public TimerWheel(final String name, final long tickDuration, final int buckets) {
+        if (tickDuration <= 0 || buckets <= 0) {
+            throw new IllegalArgumentException("tick duration and buckets must be positive");
+        }
+        this.name = name;
+        this.tickDuration = tickDuration;
+        final List<Set<Timeout>> list = new ArrayList<>(buckets);
+        for (int i = 0; i < buckets; ++i) {
+            list.add(new HashSet<>());
+        }
+        this.buckets = Collections.unmodifiableList(list);
+        this.executor =
+                Executors.newSingleThreadScheduledExecutor(
+                        r -> {
+                            final Thread thread = new Thread(r, name);
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+    }
+
+    public synchronized Timeout schedule(final Runnable task, final long delay) {
+        if (ticker == null) {
+            this.start = SystemClock.elapsedRealtime();
+            this.processedTicks = 0;
+            this.ticker =
+                    executor.scheduleWithFixedDelay(
+                            this::tick, tickDuration, tickDuration, TimeUnit.MILLISECONDS);
+        }
+        final long elapsed = SystemClock.elapsedRealtime() - start;
+        final long deadline = Math.max(processedTicks + 1, divideRoundingUp(elapsed + delay));
+        final Timeout timeout = new Timeout(task, deadline);
+        buckets.get((int) (deadline % buckets.size())).add(timeout);
+        ++pending;
+        return timeout;
+    }
+
+    private long divideRoundingUp(final long duration) {
+        return (duration + tickDuration - 1) / tickDuration;
+    }
+
+    private void tick() {
+        final List<Timeout> expired = new ArrayList<>();
+        synchronized (this) {
+            final long currentTick = (SystemClock.elapsedRealtime() - start) / tickDuration;
+            if (currentTick - processedTicks >= buckets.size()) {
+                // ticks were delayed (device was asleep) for more than a round; visit every bucket
+                for (final Set<Timeout> bucket : buckets) {
+                    expire(bucket, currentTick, expired);
+                }
+                processedTicks = currentTick;
+            } else {
+                while (processedTicks < currentTick) {
+                    ++processedTicks;
+                    expire(
+                            buckets.get((int) (processedTicks % buckets.size())),
+                            currentTick,
+                            expired);
+                }
+            }
+            if (pending == 0 && ticker != null) {
+                ticker.cancel(false);
+                ticker = null;
+            }
+        }
+        for (final Timeout timeout : expired) {
+            try {
+                timeout.task.run();
+            } catch (final RuntimeException e) {
+                Log.e(Config.LOGTAG, "timeout task on timer wheel '" + name + "' failed", e);
+            }
+        }
+    }
+
+    private void expire(
+            final Set<Timeout> bucket, final long currentTick, final List<Timeout> expired) {
+        final Iterator<Timeout> iterator = bucket.iterator();
+        while (iterator.hasNext()) {
+            final Timeout timeout = iterator.next();
+            if (timeout.deadline <= currentTick) {
+                iterator.remove();
+                timeout.expired = true;
+                --pending;
+                expired.add(timeout);
+            }
+        }
+    }
+
+    public synchronized int pending() {
+        return pending;
+    }
+
+    public class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private boolean expired = false;
+        private boolean cancelled = false;
+
+        private Timeout(final Runnable task, final long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return true if the timeout was cancelled; false if it had already expired or was
+         *     cancelled before
+         */
+        public boolean cancel() {
+            synchronized (TimerWheel.this) {
+                if (expired || cancelled) {
+                    return false;
+                }
+                cancelled = true;
+                if (buckets.get((int) (deadline % buckets.size())).remove(this)) {
+                    --pending;
+                }
+                return true;
+            }
+        }
+    }
+}
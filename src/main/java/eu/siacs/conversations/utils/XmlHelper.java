@@ -11,14 +11,34 @@ import java.util.Collections;
 import java.util.List;
 
 public class XmlHelper {
-    public static String encodeEntities(String content) {
-        content = content.replace("&", "&amp;");
-        content = content.replace("<", "&lt;");
-        content = content.replace(">", "&gt;");
-        content = content.replace("\"", "&quot;");
-        content = content.replace("'", "&apos;");
-        content = content.replaceAll("[\\p{Cntrl}&&[^\n\t\r]]", "");
-        return content;
+    public static String encodeEntities(final String content) {
+        final int length = content.length();
+        StringBuilder builder = null;
+        for (int i = 0; i < length; ++i) {
+            final char c = content.charAt(i);
+            final String replacement;
+            switch (c) {
+                case '&' -> replacement = "&amp;";
+                case '<' -> replacement = "&lt;";
+                case '>' -> replacement = "&gt;";
+                case '"' -> replacement = "&quot;";
+                case '\'' -> replacement = "&apos;";
+                case '\n', '\t', '\r' -> replacement = null;
+                default -> replacement = c < 0x20 || c == 0x7f ? "" : null;
+            }
+            if (replacement == null) {
+                if (builder != null) {
+                    builder.append(c);
+                }
+            } else {
+                if (builder == null) {
+                    builder = new StringBuilder(length + 16);
+                    builder.append(content, 0, i);
+                }
+                builder.append(replacement);
+            }
+        }
+        return builder == null ? content : builder.toString();
     }
 
     public static String printElementNames(final Element element) {
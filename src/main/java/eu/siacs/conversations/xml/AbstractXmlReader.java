@@ -0,0 +1,40 @@
+package eu.siacs.conversations.xml;
+
+import im.conversations.android.xmpp.model.StreamElement;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+public abstract class AbstractXmlReader implements Closeable {
+
+    public abstract void setInputStream(InputStream inputStream) throws IOException;
+
+    public abstract void reset() throws IOException;
+
+    public abstract Tag readTag() throws IOException;
+
+    public abstract Element readElement(Tag currentTag) throws IOException;
+
+    public <T extends StreamElement> T readElement(final Tag current, final Class<T> clazz)
+            throws IOException {
+        final Element element = readElement(current);
+        if (clazz.isInstance(element)) {
+            return clazz.cast(element);
+        }
+        throw new IOException(
+                String.format("Read unexpected {%s}%s", element.getNamespace(), element.getName()));
+    }
+
+    public static AbstractXmlReader create(final Engine engine) {
+        return switch (engine) {
+            case PULL_PARSER -> new XmlReader();
+            case STREAMING -> new StreamingXmlReader();
+        };
+    }
+
+    public enum Engine {
+        PULL_PARSER,
+        STREAMING
+    }
+}
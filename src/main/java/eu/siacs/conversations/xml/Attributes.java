@@ -0,0 +1,234 @@
+package eu.siacs.conversations.xml;
+
+import androidx.annotation.NonNull;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Compact attribute storage for {@link Element} and {@link Tag}. Most elements have between one
+ * and four attributes, so instead of a hash table the attributes are kept in two flat arrays that
+ * are scanned linearly. The namespace has its own field and is reported as the {@code xmlns}
+ * attribute.
+ *
+ * <p>Like {@link java.util.Hashtable}, which was used before, keys and values must not be null.
+ * Unlike Hashtable instances are not synchronized; elements must not be modified concurrently.
+ * Attributes are iterated in insertion order, with the namespace first.
+ */
+public final class Attributes extends AbstractMap<String, String> {
+
+    private static final String XMLNS = "xmlns";
+    private static final String[] EMPTY = new String[0];
+
+    private String namespace;
+    private String[] keys = EMPTY;
+    private String[] values = EMPTY;
+    private int size = 0;
+
+    public Attributes() {}
+
+    public Attributes(final Map<String, String> attributes) {
+        if (attributes instanceof Attributes other) {
+            this.namespace = other.namespace;
+            this.keys = Arrays.copyOf(other.keys, other.size);
+            this.values = Arrays.copyOf(other.values, other.size);
+            this.size = other.size;
+        } else {
+            putAll(attributes);
+        }
+    }
+
+    public String getNamespace() {
+        return namespace;
+    }
+
+    public void setNamespace(final String namespace) {
+        this.namespace = namespace;
+    }
+
+    private int indexOf(final Object key) {
+        for (int i = 0; i < size; ++i) {
+            final String k = keys[i];
+            if (k == key || k.equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String get(final Object key) {
+        if (XMLNS.equals(key)) {
+            return namespace;
+        }
+        final int index = indexOf(key);
+        return index < 0 ? null : values[index];
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public String put(final String key, final String value) {
+        Objects.requireNonNull(key);
+        Objects.requireNonNull(value);
+        if (XMLNS.equals(key)) {
+            final String previous = namespace;
+            this.namespace = value;
+            return previous;
+        }
+        final int index = indexOf(key);
+        if (index >= 0) {
+            final String previous = values[index];
+            values[index] = value;
+            return previous;
+        }
+        if (size == keys.length) {
+            final int capacity = size == 0 ? 4 : size * 2;
+            keys = Arrays.copyOf(keys, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        keys[size] = key;
+        values[size] = value;
+        ++size;
+        return null;
+    }
+
+    @Override
+    public String remove(final Object key) {
+        if (XMLNS.equals(key)) {
+            final String previous = namespace;
+            this.namespace = null;
+            return previous;
+        }
+        final int index = indexOf(key);
+        if (index < 0) {
+            return null;
+        }
+        final String previous = values[index];
+        removeAt(index);
+        return previous;
+    }
+
+    private void removeAt(final int index) {
+        final int moved = size - index - 1;
+        if (moved > 0) {
+            System.arraycopy(keys, index + 1, keys, index, moved);
+            System.arraycopy(values, index + 1, values, index, moved);
+        }
+        --size;
+        keys[size] = null;
+        values[size] = null;
+    }
+
+    @Override
+    public void clear() {
+        this.namespace = null;
+        Arrays.fill(keys, 0, size, null);
+        Arrays.fill(values, 0, size, null);
+        this.size = 0;
+    }
+
+    @Override
+    public int size() {
+        return namespace == null ? size : size + 1;
+    }
+
+    /** Key of the attribute at {@code index}; 0 ≤ index < {@link #size()}. */
+    public String keyAt(final int index) {
+        if (namespace == null) {
+            return keys[index];
+        }
+        return index == 0 ? XMLNS : keys[index - 1];
+    }
+
+    /** Value of the attribute at {@code index}; 0 ≤ index < {@link #size()}. */
+    public String valueAt(final int index) {
+        if (namespace == null) {
+            return values[index];
+        }
+        return index == 0 ? namespace : values[index - 1];
+    }
+
+    @NonNull
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        return new AbstractSet<>() {
+            @NonNull
+            @Override
+            public Iterator<Entry<String, String>> iterator() {
+                return new EntryIterator();
+            }
+
+            @Override
+            public int size() {
+                return Attributes.this.size();
+            }
+        };
+    }
+
+    private final class EntryIterator implements Iterator<Entry<String, String>> {
+
+        private int next = 0;
+        private int last = -1;
+
+        @Override
+        public boolean hasNext() {
+            return next < size();
+        }
+
+        @Override
+        public Entry<String, String> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            last = next++;
+            return new SimpleImmutableEntry<>(keyAt(last), valueAt(last));
+        }
+
+        @Override
+        public void remove() {
+            if (last < 0) {
+                throw new IllegalStateException();
+            }
+            Attributes.this.remove(keyAt(last));
+            next = last;
+            last = -1;
+        }
+    }
+
+    /**
+     * Returns the canonical instance for common attribute names so parsed elements don’t each
+     * hold their own copy of the same few strings.
+     */
+    public static String intern(final String key) {
+        return switch (key) {
+            case "to" -> "to";
+            case "from" -> "from";
+            case "id" -> "id";
+            case "type" -> "type";
+            case "xml:lang" -> "xml:lang";
+            case "by" -> "by";
+            case "jid" -> "jid";
+            case "node" -> "node";
+            case "name" -> "name";
+            case "var" -> "var";
+            case "stamp" -> "stamp";
+            case "affiliation" -> "affiliation";
+            case "role" -> "role";
+            case "nick" -> "nick";
+            case "rid" -> "rid";
+            case "sid" -> "sid";
+            case "queryid" -> "queryid";
+            default -> key;
+        };
+    }
+}
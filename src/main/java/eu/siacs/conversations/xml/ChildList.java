@@ -0,0 +1,90 @@
+package eu.siacs.conversations.xml;
+
+import com.google.common.collect.ImmutableList;
+
+import eu.siacs.conversations.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.UnaryOperator;
+
+/**
+ * The children of an {@link Element}. Lists with at least {@link
+ * Config#ELEMENT_CHILD_INDEX_THRESHOLD} children lazily build an index by element name and by
+ * class on the first lookup. The index is rebuilt after the list has been modified; it is shared
+ * by all elements that share the list (see {@link Element#setChildren(List)}).
+ */
+final class ChildList extends ArrayList<Element> {
+
+    private volatile Index index;
+
+    /**
+     * @return null if the list is too small to be worth indexing
+     */
+    Index index() {
+        if (size() < Config.ELEMENT_CHILD_INDEX_THRESHOLD) {
+            return null;
+        }
+        final Index current = this.index;
+        if (current != null && current.modCount == this.modCount) {
+            return current;
+        }
+        // concurrent readers might both build an index; they are equal so either one wins
+        final Index index = new Index(this, this.modCount);
+        this.index = index;
+        return index;
+    }
+
+    @Override
+    public Element set(final int i, final Element element) {
+        // ArrayList doesn’t count replacements as modification
+        ++modCount;
+        return super.set(i, element);
+    }
+
+    @Override
+    public void replaceAll(final UnaryOperator<Element> operator) {
+        ++modCount;
+        super.replaceAll(operator);
+    }
+
+    static final class Index {
+        private final int modCount;
+        private final Map<String, List<Element>> byName = new HashMap<>();
+        private final Map<Class<?>, List<Element>> byClass = new HashMap<>();
+
+        private Index(final List<Element> children, final int modCount) {
+            this.modCount = modCount;
+            final Map<String, ImmutableList.Builder<Element>> byName = new HashMap<>();
+            final Map<Class<?>, ImmutableList.Builder<Element>> byClass = new HashMap<>();
+            for (final Element child : children) {
+                byName.computeIfAbsent(child.getName(), n -> ImmutableList.builder()).add(child);
+                // index every superclass as well so lookups keep isInstance() semantics
+                for (Class<?> clazz = child.getClass();
+                        clazz != null && clazz != Element.class;
+                        clazz = clazz.getSuperclass()) {
+                    byClass.computeIfAbsent(clazz, c -> ImmutableList.builder()).add(child);
+                }
+            }
+            for (final var entry : byName.entrySet()) {
+                this.byName.put(entry.getKey(), entry.getValue().build());
+            }
+            for (final var entry : byClass.entrySet()) {
+                this.byClass.put(entry.getKey(), entry.getValue().build());
+            }
+        }
+
+        List<Element> byName(final String name) {
+            final List<Element> elements = byName.get(name);
+            return elements == null ? Collections.emptyList() : elements;
+        }
+
+        List<Element> byClass(final Class<?> clazz) {
+            final List<Element> elements = byClass.get(clazz);
+            return elements == null ? Collections.emptyList() : elements;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package eu.siacs.conversations.xml;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.google.common.base.Optional;
 import com.google.common.base.Strings;
@@ -8,7 +9,6 @@ import com.google.common.primitives.Ints;
 import com.google.common.primitives.Longs;
 
 import java.util.ArrayList;
-import java.util.Hashtable;
 import java.util.List;
 
 import eu.siacs.conversations.utils.XmlHelper;
@@ -18,9 +18,9 @@ import im.conversations.android.xmpp.model.stanza.Message;
 
 public class Element {
     private final String name;
-    private Hashtable<String, String> attributes = new Hashtable<>();
+    private Attributes attributes = new Attributes();
     private String content;
-    protected List<Element> children = new ArrayList<>();
+    protected List<Element> children = new ChildList();
 
     public Element(String name) {
         this.name = name;
@@ -58,7 +58,27 @@ public class Element {
         return this;
     }
 
+    /**
+     * @return the children of the given class (including subclasses) in document order or null
+     *     if the children aren’t indexed and have to be scanned
+     */
+    @Nullable
+    protected final List<Element> findIndexedChildren(final Class<?> clazz) {
+        final ChildList.Index index = index();
+        return index == null ? null : index.byClass(clazz);
+    }
+
+    @Nullable
+    private ChildList.Index index() {
+        return this.children instanceof ChildList childList ? childList.index() : null;
+    }
+
     public Element findChild(String name) {
+        final ChildList.Index index = index();
+        if (index != null) {
+            final List<Element> elements = index.byName(name);
+            return elements.isEmpty() ? null : elements.get(0);
+        }
         for (Element child : this.children) {
             if (child.getName().equals(name)) {
                 return child;
@@ -77,8 +97,10 @@ public class Element {
     }
 
     public Element findChild(String name, String xmlns) {
-        for (Element child : this.children) {
-            if (name.equals(child.getName()) && xmlns.equals(child.getAttribute("xmlns"))) {
+        final ChildList.Index index = index();
+        final List<Element> candidates = index == null ? this.children : index.byName(name);
+        for (Element child : candidates) {
+            if (name.equals(child.getName()) && xmlns.equals(child.getNamespace())) {
                 return child;
             }
         }
@@ -88,7 +110,7 @@ public class Element {
     public Element findChildEnsureSingle(String name, String xmlns) {
         final List<Element> results = new ArrayList<>();
         for (Element child : this.children) {
-            if (name.equals(child.getName()) && xmlns.equals(child.getAttribute("xmlns"))) {
+            if (name.equals(child.getName()) && xmlns.equals(child.getNamespace())) {
                 results.add(child);
             }
         }
@@ -146,17 +168,13 @@ public class Element {
         this.attributes.remove(name);
     }
 
-    public Element setAttributes(Hashtable<String, String> attributes) {
+    public Element setAttributes(Attributes attributes) {
         this.attributes = attributes;
         return this;
     }
 
     public String getAttribute(String name) {
-        if (this.attributes.containsKey(name)) {
-            return this.attributes.get(name);
-        } else {
-            return null;
-        }
+        return this.attributes.get(name);
     }
 
     public long getLongAttribute(final String name) {
@@ -184,7 +202,7 @@ public class Element {
         return null;
     }
 
-    public Hashtable<String, String> getAttributes() {
+    public Attributes getAttributes() {
         return this.attributes;
     }
 
@@ -234,6 +252,6 @@ public class Element {
     }
 
     public String getNamespace() {
-        return getAttribute("xmlns");
+        return this.attributes.getNamespace();
     }
 }
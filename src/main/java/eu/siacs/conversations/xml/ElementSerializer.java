@@ -0,0 +1,175 @@
+package eu.siacs.conversations.xml;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Serializes {@link Element}s and {@link Tag}s into a reusable UTF-8 byte buffer. Produces the
+ * same output as {@link Element#toString()} but without intermediate Strings and with a single
+ * pass entity escaper that has the same semantics as {@link
+ * eu.siacs.conversations.utils.XmlHelper#encodeEntities(String)}.
+ *
+ * <p>Instances are not thread safe.
+ */
+public class ElementSerializer {
+
+    private static final int INITIAL_CAPACITY = 8 * 1024;
+    // don’t hold on to buffers grown by the occasional huge stanza (avatars, bundles)
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int size = 0;
+
+    public int size() {
+        return size;
+    }
+
+    public void write(final Element element) {
+        final String name = element.getName();
+        final String content = element.getContent();
+        final List<Element> children = element.getChildren();
+        append('<');
+        appendRaw(name);
+        appendAttributes(element.getAttributes());
+        if (content == null && children.isEmpty()) {
+            append('/');
+            append('>');
+            return;
+        }
+        append('>');
+        if (content != null) {
+            appendEscaped(content);
+        } else {
+            for (final Element child : children) {
+                write(child);
+            }
+        }
+        append('<');
+        append('/');
+        appendRaw(name);
+        append('>');
+    }
+
+    public void write(final Tag tag) {
+        append('<');
+        if (tag.type == Tag.END) {
+            append('/');
+        }
+        appendRaw(tag.name);
+        if (tag.type != Tag.END) {
+            appendAttributes(tag.attributes);
+        }
+        if (tag.type == Tag.EMPTY) {
+            append('/');
+        }
+        append('>');
+    }
+
+    public void write(final String raw) {
+        appendRaw(raw);
+    }
+
+    public void writeTo(final OutputStream outputStream) throws IOException {
+        outputStream.write(buffer, 0, size);
+        reset();
+    }
+
+    public void reset() {
+        size = 0;
+        if (buffer.length > MAX_RETAINED_CAPACITY) {
+            buffer = new byte[INITIAL_CAPACITY];
+        }
+    }
+
+    private void appendAttributes(final Attributes attributes) {
+        for (int i = 0; i < attributes.size(); ++i) {
+            append(' ');
+            appendRaw(attributes.keyAt(i));
+            append('=');
+            append('"');
+            appendEscaped(attributes.valueAt(i));
+            append('"');
+        }
+    }
+
+    private void appendRaw(final String value) {
+        final int length = value.length();
+        for (int i = 0; i < length; ++i) {
+            i = appendChar(value, i);
+        }
+    }
+
+    private void appendEscaped(final String value) {
+        final int length = value.length();
+        for (int i = 0; i < length; ++i) {
+            final char c = value.charAt(i);
+            switch (c) {
+                case '&' -> appendAscii("&amp;");
+                case '<' -> appendAscii("&lt;");
+                case '>' -> appendAscii("&gt;");
+                case '"' -> appendAscii("&quot;");
+                case '\'' -> appendAscii("&apos;");
+                case '\n', '\t', '\r' -> append(c);
+                default -> {
+                    if (c >= 0x20 && c != 0x7f) {
+                        i = appendChar(value, i);
+                    }
+                }
+            }
+        }
+    }
+
+    private void appendAscii(final String value) {
+        for (int i = 0; i < value.length(); ++i) {
+            append(value.charAt(i));
+        }
+    }
+
+    /**
+     * Appends the UTF-8 encoding of the character at index i.
+     *
+     * @return the index of the last char consumed (differs from i for surrogate pairs)
+     */
+    private int appendChar(final String value, final int i) {
+        final char c = value.charAt(i);
+        if (c < 0x80) {
+            append(c);
+        } else if (c < 0x800) {
+            ensureCapacity(2);
+            buffer[size++] = (byte) (0xc0 | (c >> 6));
+            buffer[size++] = (byte) (0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c)
+                && i + 1 < value.length()
+                && Character.isLowSurrogate(value.charAt(i + 1))) {
+            final int codePoint = Character.toCodePoint(c, value.charAt(i + 1));
+            ensureCapacity(4);
+            buffer[size++] = (byte) (0xf0 | (codePoint >> 18));
+            buffer[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+            buffer[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+            buffer[size++] = (byte) (0x80 | (codePoint & 0x3f));
+            return i + 1;
+        } else if (Character.isSurrogate(c)) {
+            // unpaired surrogate; write the replacement OutputStreamWriter would use
+            append('?');
+        } else {
+            ensureCapacity(3);
+            buffer[size++] = (byte) (0xe0 | (c >> 12));
+            buffer[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            buffer[size++] = (byte) (0x80 | (c & 0x3f));
+        }
+        return i;
+    }
+
+    private void append(final int asciiChar) {
+        ensureCapacity(1);
+        buffer[size++] = (byte) asciiChar;
+    }
+
+    private void ensureCapacity(final int additional) {
+        if (size + additional > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + additional));
+        }
+    }
+}
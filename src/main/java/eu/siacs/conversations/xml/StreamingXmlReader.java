@@ -0,0 +1,651 @@
+package eu.siacs.conversations.xml;
+
+import im.conversations.android.xmpp.ExtensionFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Stream reader that parses XMPP directly from a reusable byte buffer instead of going through
+ * {@link org.xmlpull.v1.XmlPullParser}. Stream level elements (the stream header and top level
+ * stanzas) are still reported as {@link Tag}s but everything below that is built into {@link
+ * Element} trees directly without intermediate tags. Element names and namespaces are interned.
+ *
+ * <p>The produced trees are identical to the ones produced by {@link XmlReader}: namespaces are
+ * resolved and stored in the xmlns attribute, namespace declarations are not reported as
+ * attributes and only text that directly follows a start tag becomes the content of an element.
+ * Unlike XmlReader whitespace between stanzas is never reported and DOCTYPE declarations (which
+ * are forbidden in XMPP) are rejected.
+ */
+public class StreamingXmlReader extends AbstractXmlReader {
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+    // number of already consumed bytes that are kept when refilling the buffer
+    private static final int PUSHBACK = 2;
+    private static final String XML_NAMESPACE = "http://www.w3.org/XML/1998/namespace";
+    private static final String NO_NAMESPACE = "";
+
+    private final byte[] buffer = new byte[PUSHBACK + BUFFER_SIZE];
+    private int position = 0;
+    private int limit = 0;
+    private InputStream is;
+
+    private byte[] scratch = new byte[256];
+    private int scratchLength = 0;
+
+    private final NameTable names = new NameTable();
+    private final NamespaceScope namespaces = new NamespaceScope();
+
+    // attributes of the start tag that is currently being parsed
+    private String[] attributeNames = new String[8];
+    private String[] attributeValues = new String[8];
+    private int attributeCount = 0;
+
+    // set when the last start tag was an empty element tag (<foo/>)
+    private boolean pendingEnd = false;
+    private String pendingEndName = null;
+
+    @Override
+    public void setInputStream(final InputStream inputStream) throws IOException {
+        if (inputStream == null) {
+            throw new IOException();
+        }
+        this.is = inputStream;
+        this.position = 0;
+        this.limit = 0;
+        resetState();
+    }
+
+    @Override
+    public void reset() throws IOException {
+        if (this.is == null) {
+            throw new IOException();
+        }
+        // unlike the pull parser we keep buffered bytes; they belong to the restarted stream
+        resetState();
+    }
+
+    private void resetState() {
+        this.namespaces.clear();
+        this.pendingEnd = false;
+        this.pendingEndName = null;
+    }
+
+    @Override
+    public void close() {
+        this.is = null;
+    }
+
+    @Override
+    public Tag readTag() throws IOException {
+        if (pendingEnd) {
+            pendingEnd = false;
+            namespaces.pop();
+            return Tag.end(pendingEndName);
+        }
+        while (this.is != null) {
+            final int b = read();
+            if (b == -1) {
+                return null;
+            }
+            if (b == '<') {
+                final int next = readOrThrow();
+                if (next == '/') {
+                    return Tag.end(readEndTag());
+                } else if (next == '?') {
+                    skipProcessingInstruction();
+                } else if (next == '!') {
+                    if (readMarkup()) {
+                        final String text = readText();
+                        if (!isWhitespace(text)) {
+                            return Tag.no(text);
+                        }
+                    }
+                } else {
+                    unread();
+                    final String name = readStartTag();
+                    final Tag tag = Tag.start(name);
+                    final Attributes attributes = tag.getAttributes();
+                    for (int i = 0; i < attributeCount; ++i) {
+                        attributes.put(attributeNames[i], attributeValues[i]);
+                    }
+                    attributes.setNamespace(namespaces.currentElementNamespace());
+                    if (pendingEnd) {
+                        pendingEndName = name;
+                    }
+                    return tag;
+                }
+            } else {
+                unread();
+                scratchLength = 0;
+                final String text = readText();
+                if (!isWhitespace(text)) {
+                    return Tag.no(text);
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Element readElement(final Tag currentTag) throws IOException {
+        final Attributes attributes = currentTag.getAttributes();
+        final Element element =
+                ExtensionFactory.create(currentTag.getName(), attributes.getNamespace());
+        element.setAttributes(attributes);
+        if (pendingEnd) {
+            pendingEnd = false;
+            namespaces.pop();
+            return element;
+        }
+        readChildren(element);
+        return element;
+    }
+
+    private void readChildren(final Element element) throws IOException {
+        boolean first = true;
+        while (true) {
+            if (this.is == null) {
+                throw new IOException("interrupted mid tag");
+            }
+            final int b = readOrThrow();
+            if (b == '<') {
+                final int next = readOrThrow();
+                if (next == '/') {
+                    final String name = readEndTag();
+                    if (!name.equals(element.getName())) {
+                        throw new IOException(
+                                String.format(
+                                        "expected end tag %s but got %s", element.getName(), name));
+                    }
+                    return;
+                } else if (next == '?') {
+                    skipProcessingInstruction();
+                } else if (next == '!') {
+                    if (readMarkup()) {
+                        final String text = readText();
+                        if (first) {
+                            element.setContent(text);
+                        }
+                        first = false;
+                    }
+                } else {
+                    unread();
+                    final String name = readStartTag();
+                    final String namespace = namespaces.currentElementNamespace();
+                    final Element child = ExtensionFactory.create(name, namespace);
+                    final Attributes attributes = new Attributes();
+                    for (int i = 0; i < attributeCount; ++i) {
+                        attributes.put(attributeNames[i], attributeValues[i]);
+                    }
+                    attributes.setNamespace(namespace);
+                    child.setAttributes(attributes);
+                    element.addChild(child);
+                    if (pendingEnd) {
+                        pendingEnd = false;
+                        namespaces.pop();
+                    } else {
+                        readChildren(child);
+                    }
+                    first = false;
+                }
+            } else {
+                unread();
+                scratchLength = 0;
+                final String text = readText();
+                if (first) {
+                    element.setContent(text);
+                }
+                first = false;
+            }
+        }
+    }
+
+    /**
+     * Reads a start tag after the opening bracket. Attributes are stored in attributeNames and
+     * attributeValues, namespace declarations are pushed onto the namespace scope.
+     *
+     * @return the local name of the element
+     */
+    private String readStartTag() throws IOException {
+        final String qualifiedName = readName();
+        namespaces.push();
+        attributeCount = 0;
+        while (true) {
+            int b = skipWhitespace();
+            if (b == '>') {
+                pendingEnd = false;
+                break;
+            } else if (b == '/') {
+                if (readOrThrow() != '>') {
+                    throw new IOException("malformed empty element tag");
+                }
+                pendingEnd = true;
+                break;
+            }
+            unread();
+            final String attributeName = readName();
+            if (skipWhitespace() != '=') {
+                throw new IOException("expected = after attribute " + attributeName);
+            }
+            final int quote = skipWhitespace();
+            if (quote != '"' && quote != '\'') {
+                throw new IOException("expected quote for attribute " + attributeName);
+            }
+            final String value = readAttributeValue(quote);
+            if ("xmlns".equals(attributeName)) {
+                namespaces.declare(null, names.intern(value));
+            } else if (attributeName.startsWith("xmlns:")) {
+                namespaces.declare(
+                        names.intern(attributeName.substring(6)), names.intern(value));
+            } else {
+                addAttribute(attributeName, value);
+            }
+        }
+        final int colon = qualifiedName.indexOf(':');
+        final String prefix;
+        final String localName;
+        if (colon == -1) {
+            prefix = null;
+            localName = qualifiedName;
+        } else {
+            prefix = qualifiedName.substring(0, colon);
+            localName = names.intern(qualifiedName.substring(colon + 1));
+        }
+        final String namespace = namespaces.resolve(prefix);
+        if (namespace == null) {
+            throw new IOException("undeclared prefix " + prefix);
+        }
+        namespaces.setElementNamespace(namespace);
+        return localName;
+    }
+
+    private void addAttribute(final String name, final String value) throws IOException {
+        for (int i = 0; i < attributeCount; ++i) {
+            if (attributeNames[i].equals(name)) {
+                throw new IOException("duplicate attribute " + name);
+            }
+        }
+        if (attributeCount == attributeNames.length) {
+            attributeNames = Arrays.copyOf(attributeNames, attributeCount * 2);
+            attributeValues = Arrays.copyOf(attributeValues, attributeCount * 2);
+        }
+        attributeNames[attributeCount] = name;
+        attributeValues[attributeCount] = value;
+        ++attributeCount;
+    }
+
+    private String readEndTag() throws IOException {
+        final String qualifiedName = readName();
+        if (skipWhitespace() != '>') {
+            throw new IOException("malformed end tag " + qualifiedName);
+        }
+        namespaces.pop();
+        final int colon = qualifiedName.indexOf(':');
+        return colon == -1 ? qualifiedName : names.intern(qualifiedName.substring(colon + 1));
+    }
+
+    private String readName() throws IOException {
+        scratchLength = 0;
+        int b = readOrThrow();
+        while (!isWhitespace(b) && b != '=' && b != '>' && b != '/') {
+            if (b == '<' || b == '"' || b == '\'') {
+                throw new IOException("unexpected character in name");
+            }
+            append(b);
+            b = readOrThrow();
+        }
+        unread();
+        if (scratchLength == 0) {
+            throw new IOException("empty name");
+        }
+        return names.intern(scratch, scratchLength);
+    }
+
+    private String readAttributeValue(final int quote) throws IOException {
+        scratchLength = 0;
+        int b = readOrThrow();
+        while (b != quote) {
+            if (b == '<') {
+                throw new IOException("unexpected < in attribute value");
+            } else if (b == '&') {
+                readEntity();
+            } else if (b == '\t' || b == '\n' || b == '\r') {
+                append(' ');
+            } else {
+                append(b);
+            }
+            b = readOrThrow();
+        }
+        return new String(scratch, 0, scratchLength, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads character data up to (but excluding) the next markup. CDATA sections and comments
+     * directly following the text are merged into it to mimic the coalescing of {@link
+     * org.xmlpull.v1.XmlPullParser#next()}. Appends to whatever is already in scratch; callers
+     * reset scratch unless it holds a CDATA section that has been read by {@link #readMarkup()}.
+     */
+    private String readText() throws IOException {
+        while (true) {
+            final int b = read();
+            if (b == -1) {
+                break;
+            } else if (b == '<') {
+                final int next = readOrThrow();
+                if (next == '!') {
+                    continueMarkup();
+                    continue;
+                }
+                unread();
+                unread();
+                break;
+            } else if (b == '&') {
+                readEntity();
+            } else if (b == '\r') {
+                append('\n');
+                if (peek() == '\n') {
+                    read();
+                }
+            } else {
+                append(b);
+            }
+        }
+        final String text = new String(scratch, 0, scratchLength, StandardCharsets.UTF_8);
+        scratchLength = 0;
+        return text;
+    }
+
+    /**
+     * Reads markup starting with {@code <!}. Comments are skipped, the content of CDATA sections
+     * is appended to scratch.
+     *
+     * @return true if the markup was a CDATA section
+     */
+    private boolean readMarkup() throws IOException {
+        scratchLength = 0;
+        return continueMarkup();
+    }
+
+    private boolean continueMarkup() throws IOException {
+        final int b = readOrThrow();
+        if (b == '-') {
+            expect('-');
+            int dashes = 0;
+            while (true) {
+                final int c = readOrThrow();
+                if (c == '>' && dashes >= 2) {
+                    return false;
+                }
+                dashes = c == '-' ? dashes + 1 : 0;
+            }
+        } else if (b == '[') {
+            for (final char c : "CDATA[".toCharArray()) {
+                expect(c);
+            }
+            int brackets = 0;
+            while (true) {
+                final int c = readOrThrow();
+                if (c == '>' && brackets >= 2) {
+                    scratchLength -= 2;
+                    return true;
+                }
+                brackets = c == ']' ? brackets + 1 : 0;
+                append(c);
+            }
+        } else {
+            throw new IOException("DOCTYPE and other declarations are not allowed");
+        }
+    }
+
+    private void skipProcessingInstruction() throws IOException {
+        int previous = 0;
+        while (true) {
+            final int b = readOrThrow();
+            if (b == '>' && previous == '?') {
+                return;
+            }
+            previous = b;
+        }
+    }
+
+    private void readEntity() throws IOException {
+        final int start = scratchLength;
+        int b = readOrThrow();
+        while (b != ';') {
+            if (scratchLength - start > 10) {
+                throw new IOException("entity reference too long");
+            }
+            append(b);
+            b = readOrThrow();
+        }
+        final String entity =
+                new String(scratch, start, scratchLength - start, StandardCharsets.US_ASCII);
+        scratchLength = start;
+        switch (entity) {
+            case "lt" -> append('<');
+            case "gt" -> append('>');
+            case "amp" -> append('&');
+            case "quot" -> append('"');
+            case "apos" -> append('\'');
+            default -> {
+                final int codePoint;
+                try {
+                    if (entity.startsWith("#x")) {
+                        codePoint = Integer.parseInt(entity.substring(2), 16);
+                    } else if (entity.startsWith("#")) {
+                        codePoint = Integer.parseInt(entity.substring(1));
+                    } else {
+                        throw new IOException("unresolved entity &" + entity + ";");
+                    }
+                } catch (final NumberFormatException e) {
+                    throw new IOException("invalid character reference &" + entity + ";", e);
+                }
+                if (!Character.isValidCodePoint(codePoint)) {
+                    throw new IOException("invalid character reference &" + entity + ";");
+                }
+                final byte[] bytes =
+                        new String(Character.toChars(codePoint)).getBytes(StandardCharsets.UTF_8);
+                for (final byte value : bytes) {
+                    append(value & 0xff);
+                }
+            }
+        }
+    }
+
+    private void expect(final int expected) throws IOException {
+        if (readOrThrow() != expected) {
+            throw new IOException("malformed markup. expected " + (char) expected);
+        }
+    }
+
+    private int skipWhitespace() throws IOException {
+        int b = readOrThrow();
+        while (isWhitespace(b)) {
+            b = readOrThrow();
+        }
+        return b;
+    }
+
+    private void append(final int b) {
+        if (scratchLength == scratch.length) {
+            scratch = Arrays.copyOf(scratch, scratch.length * 2);
+        }
+        scratch[scratchLength++] = (byte) b;
+    }
+
+    private int read() throws IOException {
+        if (position == limit) {
+            final InputStream inputStream = this.is;
+            if (inputStream == null) {
+                return -1;
+            }
+            final int keep = Math.min(limit, PUSHBACK);
+            System.arraycopy(buffer, limit - keep, buffer, 0, keep);
+            final int count = inputStream.read(buffer, keep, BUFFER_SIZE);
+            if (count <= 0) {
+                return -1;
+            }
+            position = keep;
+            limit = keep + count;
+        }
+        return buffer[position++] & 0xff;
+    }
+
+    private int readOrThrow() throws IOException {
+        final int b = read();
+        if (b == -1) {
+            throw new IOException("interrupted mid tag");
+        }
+        return b;
+    }
+
+    private int peek() throws IOException {
+        final int b = read();
+        if (b != -1) {
+            unread();
+        }
+        return b;
+    }
+
+    // steps back over up to PUSHBACK bytes that have just been returned by read()
+    private void unread() {
+        --position;
+    }
+
+    private static boolean isWhitespace(final int b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+
+    private static boolean isWhitespace(final String text) {
+        for (int i = 0; i < text.length(); ++i) {
+            if (!isWhitespace(text.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class NamespaceScope {
+
+        private String[] prefixes = new String[16];
+        private String[] uris = new String[16];
+        private int declarations = 0;
+
+        private int[] frames = new int[16];
+        private String[] elementNamespaces = new String[16];
+        private int depth = 0;
+
+        void clear() {
+            this.declarations = 0;
+            this.depth = 0;
+        }
+
+        void push() {
+            if (depth == frames.length) {
+                frames = Arrays.copyOf(frames, depth * 2);
+                elementNamespaces = Arrays.copyOf(elementNamespaces, depth * 2);
+            }
+            frames[depth] = declarations;
+            elementNamespaces[depth] = null;
+            ++depth;
+        }
+
+        void pop() throws IOException {
+            if (depth == 0) {
+                throw new IOException("unbalanced end tag");
+            }
+            --depth;
+            declarations = frames[depth];
+        }
+
+        void declare(final String prefix, final String uri) {
+            if (declarations == prefixes.length) {
+                prefixes = Arrays.copyOf(prefixes, declarations * 2);
+                uris = Arrays.copyOf(uris, declarations * 2);
+            }
+            prefixes[declarations] = prefix;
+            uris[declarations] = uri;
+            ++declarations;
+        }
+
+        String resolve(final String prefix) {
+            if ("xml".equals(prefix)) {
+                return XML_NAMESPACE;
+            }
+            for (int i = declarations - 1; i >= 0; --i) {
+                final String candidate = prefixes[i];
+                if (prefix == null ? candidate == null : prefix.equals(candidate)) {
+                    return uris[i];
+                }
+            }
+            return prefix == null ? NO_NAMESPACE : null;
+        }
+
+        void setElementNamespace(final String namespace) {
+            elementNamespaces[depth - 1] = namespace;
+        }
+
+        String currentElementNamespace() {
+            return elementNamespaces[depth - 1];
+        }
+    }
+
+    /**
+     * Bounded intern table for element names, attribute names and namespaces. Lookups are done on
+     * the raw bytes so that known names do not allocate.
+     */
+    private static class NameTable {
+
+        private static final int CAPACITY = 4096;
+        private static final int MAX_ENTRIES = CAPACITY / 2;
+        private static final int MAX_NAME_LENGTH = 128;
+
+        private final byte[][] keys = new byte[CAPACITY][];
+        private final String[] values = new String[CAPACITY];
+        private int size = 0;
+
+        String intern(final byte[] bytes, final int length) {
+            if (length > MAX_NAME_LENGTH) {
+                return new String(bytes, 0, length, StandardCharsets.UTF_8);
+            }
+            int hash = 1;
+            for (int i = 0; i < length; ++i) {
+                hash = 31 * hash + bytes[i];
+            }
+            int index = (hash ^ (hash >>> 16)) & (CAPACITY - 1);
+            while (keys[index] != null) {
+                if (matches(keys[index], bytes, length)) {
+                    return values[index];
+                }
+                index = (index + 1) & (CAPACITY - 1);
+            }
+            final String value = new String(bytes, 0, length, StandardCharsets.UTF_8);
+            if (size < MAX_ENTRIES) {
+                keys[index] = Arrays.copyOf(bytes, length);
+                values[index] = value;
+                ++size;
+            }
+            return value;
+        }
+
+        private static boolean matches(final byte[] key, final byte[] bytes, final int length) {
+            if (key.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; ++i) {
+                if (key[i] != bytes[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        String intern(final String value) {
+            final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            return intern(bytes, bytes.length);
+        }
+    }
+}
@@ -2,10 +2,6 @@ package eu.siacs.conversations.xml;
 
 import androidx.annotation.NonNull;
 
-import java.util.Hashtable;
-import java.util.Map.Entry;
-import java.util.Set;
-
 import eu.siacs.conversations.utils.XmlHelper;
 
 public class Tag {
@@ -16,7 +12,7 @@ public class Tag {
 
     protected int type;
     protected String name;
-    protected Hashtable<String, String> attributes = new Hashtable<String, String>();
+    protected Attributes attributes = new Attributes();
 
     protected Tag(int type, String name) {
         this.type = type;
@@ -44,7 +40,7 @@ public class Tag {
     }
 
     public String identifier() {
-        return String.format("%s#%s", name, this.attributes.get("xmlns"));
+        return String.format("%s#%s", name, this.attributes.getNamespace());
     }
 
     public String getAttribute(final String attrName) {
@@ -56,7 +52,7 @@ public class Tag {
         return this;
     }
 
-    public void setAttributes(final Hashtable<String, String> attributes) {
+    public void setAttributes(final Attributes attributes) {
         this.attributes = attributes;
     }
 
@@ -68,7 +64,9 @@ public class Tag {
     }
 
     public boolean isStart(final String name, final String namespace) {
-        return isStart(name) && namespace != null && namespace.equals(this.getAttribute("xmlns"));
+        return isStart(name)
+                && namespace != null
+                && namespace.equals(this.attributes.getNamespace());
     }
 
     public boolean isEnd(String needle) {
@@ -89,12 +87,11 @@ public class Tag {
         }
         tagOutput.append(name);
         if (type != END) {
-            final Set<Entry<String, String>> attributeSet = attributes.entrySet();
-            for (final Entry<String, String> entry : attributeSet) {
+            for (int i = 0; i < attributes.size(); ++i) {
                 tagOutput.append(' ');
-                tagOutput.append(entry.getKey());
+                tagOutput.append(attributes.keyAt(i));
                 tagOutput.append("=\"");
-                tagOutput.append(XmlHelper.encodeEntities(entry.getValue()));
+                tagOutput.append(XmlHelper.encodeEntities(attributes.valueAt(i)));
                 tagOutput.append('"');
             }
         }
@@ -105,7 +102,7 @@ public class Tag {
         return tagOutput.toString();
     }
 
-    public Hashtable<String, String> getAttributes() {
+    public Attributes getAttributes() {
         return this.attributes;
     }
 }
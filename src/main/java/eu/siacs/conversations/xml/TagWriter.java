@@ -1,23 +1,49 @@
 package eu.siacs.conversations.xml;
 
+import android.os.SystemClock;
 import android.util.Log;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.common.base.MoreObjects;
+
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import eu.siacs.conversations.Config;
 import im.conversations.android.xmpp.model.StreamElement;
+import im.conversations.android.xmpp.model.sm.Request;
 
 public class TagWriter {
 
-    private OutputStreamWriter outputStream;
+    // stop draining the queue once this many bytes are buffered and write them out
+    private static final int MAX_BATCH_BYTES = 32 * 1024;
+
+    private final boolean batched;
+    private OutputStream outputStream;
+    private OutputStreamWriter outputStreamWriter;
+    private final Object writeLock = new Object();
+    private final ElementSerializer asyncSerializer = new ElementSerializer();
+    private final ElementSerializer syncSerializer = new ElementSerializer();
     private boolean finished = false;
 
+    private final AtomicLong bytesWritten = new AtomicLong(0);
+    private final AtomicLong elementsWritten = new AtomicLong(0);
+    private final AtomicLong flushes = new AtomicLong(0);
+    private final long created = SystemClock.elapsedRealtime();
+
     private final LinkedBlockingQueue<StreamElement> writeQueue = new LinkedBlockingQueue<>();
+    // never written. queued to make an idle writer thread consult the drain listener
+    private final StreamElement wakeUp = new Request();
+    private volatile DrainListener drainListener = null;
     private CountDownLatch stanzaWriterCountDownLatch = null;
 
     private final Thread asyncStanzaWriter = new Thread() {
@@ -31,9 +57,21 @@ public class TagWriter {
                 }
                 try {
                     final var output = writeQueue.take();
-                    outputStream.write(output.toString());
-                    if (writeQueue.isEmpty()) {
-                        outputStream.flush();
+                    if (batched) {
+                        writeBatch(output);
+                    } else {
+                        if (output != wakeUp) {
+                            outputStreamWriter.write(output.toString());
+                            elementsWritten.incrementAndGet();
+                        }
+                        if (writeQueue.isEmpty()) {
+                            for (final StreamElement trailer : onDrain()) {
+                                outputStreamWriter.write(trailer.toString());
+                                elementsWritten.incrementAndGet();
+                            }
+                            outputStreamWriter.flush();
+                            flushes.incrementAndGet();
+                        }
                     }
                 } catch (Exception e) {
                     break;
@@ -45,20 +83,93 @@ public class TagWriter {
     };
 
     public TagWriter() {
+        this(Config.BATCHED_TAG_WRITER);
+    }
+
+    /**
+     * @param batched when true all queued stanzas are serialized into one UTF-8 buffer and sent
+     *     with a single write and flush (one TLS record for most batches). Otherwise every stanza
+     *     is converted to a String and written through an OutputStreamWriter.
+     */
+    public TagWriter(final boolean batched) {
+        this.batched = batched;
+    }
+
+    private void writeBatch(final StreamElement first) throws IOException {
+        StreamElement element = first;
+        do {
+            if (element != wakeUp) {
+                asyncSerializer.write(element);
+                elementsWritten.incrementAndGet();
+            }
+        } while (asyncSerializer.size() < MAX_BATCH_BYTES
+                && (element = writeQueue.poll()) != null);
+        // the batch may also have ended on the size limit with nothing left in the queue
+        if (writeQueue.isEmpty()) {
+            for (final StreamElement trailer : onDrain()) {
+                asyncSerializer.write(trailer);
+                elementsWritten.incrementAndGet();
+            }
+        }
+        if (asyncSerializer.size() == 0) {
+            return;
+        }
+        synchronized (writeLock) {
+            final OutputStream outputStream = this.outputStream;
+            if (outputStream == null) {
+                throw new IOException("output stream was null");
+            }
+            bytesWritten.addAndGet(asyncSerializer.size());
+            asyncSerializer.writeTo(outputStream);
+            if (writeQueue.isEmpty()) {
+                outputStream.flush();
+                flushes.incrementAndGet();
+            }
+        }
+    }
+
+    private List<StreamElement> onDrain() {
+        final DrainListener listener = this.drainListener;
+        final List<StreamElement> trailer = listener == null ? null : listener.onDrain();
+        return trailer == null ? Collections.emptyList() : trailer;
+    }
+
+    public void setDrainListener(@Nullable final DrainListener listener) {
+        this.drainListener = listener;
+    }
+
+    /** Makes the writer thread consult the drain listener even if nothing else is queued. */
+    public void drain() {
+        writeStanzaAsync(wakeUp);
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
     }
 
     public synchronized void setOutputStream(OutputStream out) throws IOException {
         if (out == null) {
             throw new IOException();
         }
-        this.outputStream = new OutputStreamWriter(out);
+        synchronized (writeLock) {
+            this.outputStream = out;
+            this.outputStreamWriter = new OutputStreamWriter(out);
+        }
     }
 
     public void beginDocument() throws IOException {
         if (outputStream == null) {
             throw new IOException("output stream was null");
         }
-        outputStream.write("<?xml version='1.0'?>");
+        if (batched) {
+            synchronized (writeLock) {
+                syncSerializer.write("<?xml version='1.0'?>");
+                bytesWritten.addAndGet(syncSerializer.size());
+                syncSerializer.writeTo(outputStream);
+            }
+        } else {
+            outputStreamWriter.write("<?xml version='1.0'?>");
+        }
     }
 
     public void writeTag(final Tag tag) throws IOException {
@@ -69,9 +180,17 @@ public class TagWriter {
         if (outputStream == null) {
             throw new IOException("output stream was null");
         }
-        outputStream.write(tag.toString());
-        if (flush) {
-            outputStream.flush();
+        if (batched) {
+            synchronized (writeLock) {
+                syncSerializer.write(tag);
+                writeSync(flush);
+            }
+        } else {
+            outputStreamWriter.write(tag.toString());
+            if (flush) {
+                outputStreamWriter.flush();
+                flushes.incrementAndGet();
+            }
         }
     }
 
@@ -79,8 +198,26 @@ public class TagWriter {
         if (outputStream == null) {
             throw new IOException("output stream was null");
         }
-        outputStream.write(element.toString());
-        outputStream.flush();
+        elementsWritten.incrementAndGet();
+        if (batched) {
+            synchronized (writeLock) {
+                syncSerializer.write(element);
+                writeSync(true);
+            }
+        } else {
+            outputStreamWriter.write(element.toString());
+            outputStreamWriter.flush();
+            flushes.incrementAndGet();
+        }
+    }
+
+    private void writeSync(final boolean flush) throws IOException {
+        bytesWritten.addAndGet(syncSerializer.size());
+        syncSerializer.writeTo(outputStream);
+        if (flush) {
+            outputStream.flush();
+            flushes.incrementAndGet();
+        }
     }
 
     public void writeStanzaAsync(StreamElement stanza) {
@@ -114,6 +251,14 @@ public class TagWriter {
         return outputStream != null;
     }
 
+    public Statistics getStatistics() {
+        return new Statistics(
+                bytesWritten.get(),
+                elementsWritten.get(),
+                flushes.get(),
+                SystemClock.elapsedRealtime() - created);
+    }
+
     public synchronized void forceClose() {
         asyncStanzaWriter.interrupt();
         if (outputStream != null) {
@@ -124,5 +269,56 @@ public class TagWriter {
             }
         }
         outputStream = null;
+        outputStreamWriter = null;
+    }
+
+    public interface DrainListener {
+        /**
+         * Called on the writer thread whenever the queue has been drained, right before the output
+         * is flushed. Returned elements are written as part of the same flush.
+         */
+        @Nullable
+        List<StreamElement> onDrain();
+    }
+
+    public static class Statistics {
+        // only counted in batched mode; the legacy writer never sees the encoded bytes
+        public final long bytes;
+        public final long elements;
+        public final long flushes;
+        public final long duration;
+
+        private Statistics(
+                final long bytes, final long elements, final long flushes, final long duration) {
+            this.bytes = bytes;
+            this.elements = elements;
+            this.flushes = flushes;
+            this.duration = duration;
+        }
+
+        public double bytesPerSecond() {
+            return duration <= 0 ? 0 : bytes * 1000d / duration;
+        }
+
+        public double flushesPerSecond() {
+            return duration <= 0 ? 0 : flushes * 1000d / duration;
+        }
+
+        public double elementsPerFlush() {
+            return flushes == 0 ? 0 : (double) elements / flushes;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("bytes", bytes)
+                    .add("elements", elements)
+                    .add("flushes", flushes)
+                    .add("bytes/s", String.format("%.1f", bytesPerSecond()))
+                    .add("flushes/s", String.format("%.2f", flushesPerSecond()))
+                    .add("elements/flush", String.format("%.2f", elementsPerFlush()))
+                    .toString();
+        }
     }
 }
@@ -6,18 +6,15 @@ import android.util.Xml;
 import eu.siacs.conversations.Config;
 
 import im.conversations.android.xmpp.ExtensionFactory;
-import im.conversations.android.xmpp.model.Extension;
-import im.conversations.android.xmpp.model.StreamElement;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
-import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 
-public class XmlReader implements Closeable {
+public class XmlReader extends AbstractXmlReader {
 	private final XmlPullParser parser;
 	private InputStream is;
 
@@ -30,6 +27,7 @@ public class XmlReader implements Closeable {
 		}
 	}
 
+	@Override
 	public void setInputStream(InputStream inputStream) throws IOException {
 		if (inputStream == null) {
 			throw new IOException();
@@ -42,6 +40,7 @@ public class XmlReader implements Closeable {
 		}
 	}
 
+	@Override
 	public void reset() throws IOException {
 		if (this.is == null) {
 			throw new IOException();
@@ -58,6 +57,7 @@ public class XmlReader implements Closeable {
 		this.is = null;
 	}
 
+	@Override
 	public Tag readTag() throws IOException {
 		try {
 			while (this.is != null && parser.next() != XmlPullParser.END_DOCUMENT) {
@@ -72,10 +72,11 @@ public class XmlReader implements Closeable {
 						} else {
 							name = parser.getAttributeName(i);
 						}
+						name = Attributes.intern(name);
 						tag.setAttribute(name,parser.getAttributeValue(i));
 					}
 					if (xmlns != null) {
-						tag.setAttribute("xmlns", xmlns);
+						tag.getAttributes().setNamespace(xmlns);
 					}
 					return tag;
 				} else if (parser.getEventType() == XmlPullParser.END_TAG) {
@@ -91,22 +92,13 @@ public class XmlReader implements Closeable {
 		return null;
 	}
 
-	public <T extends StreamElement> T readElement(final Tag current, final Class<T> clazz)
-			throws IOException {
-		final Element element = readElement(current);
-		if (clazz.isInstance(element)) {
-			return clazz.cast(element);
-		}
-		throw new IOException(
-				String.format("Read unexpected {%s}%s", element.getNamespace(), element.getName()));
-	}
-
+	@Override
 	public Element readElement(final Tag currentTag) throws IOException {
 		final var attributes = currentTag.getAttributes();
-		final var namespace = attributes.get("xmlns");
+		final var namespace = attributes.getNamespace();
 		final var name = currentTag.getName();
 		final Element element = ExtensionFactory.create(name, namespace);
-		element.setAttributes(currentTag.getAttributes());
+		element.setAttributes(attributes);
 		Tag nextTag = this.readTag();
 		if (nextTag == null) {
 			throw new IOException("interrupted mid tag");
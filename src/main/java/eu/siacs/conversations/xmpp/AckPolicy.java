@@ -0,0 +1,169 @@
+package eu.siacs.conversations.xmpp;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import com.google.common.base.MoreObjects;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.xml.TagWriter;
+
+import im.conversations.android.xmpp.model.StreamElement;
+import im.conversations.android.xmpp.model.sm.Ack;
+import im.conversations.android.xmpp.model.sm.Request;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Decides when to send stream management ack requests ({@code <r/>}) and coalesces outbound acks
+ * ({@code <a/>}).
+ *
+ * <p>Instead of requesting an ack after every message, a request is appended once the write queue
+ * has been drained, so a burst of messages gets a single {@code <r/>} that is sent in the same
+ * write as the last message. During long bursts that don’t let the queue drain a request is sent
+ * right away after {@link Config#SM_ACK_REQUEST_MAX_STANZAS} messages, {@link
+ * Config#SM_ACK_REQUEST_MAX_BYTES} bytes or {@link Config#SM_ACK_REQUEST_MAX_DELAY} milliseconds
+ * since the last request.
+ *
+ * <p>Requests from the server are answered with one ack per drain of the write queue carrying the
+ * stanza count at the time it is written.
+ *
+ * <p>This only changes when requests and acks are sent. Unacknowledged stanzas stay in the stanza
+ * queue of {@link XmppConnection} until the server acknowledges them.
+ */
+public class AckPolicy implements TagWriter.DrainListener {
+
+    private final IntSupplier stanzasReceived;
+    private final LongSupplier bytesWritten;
+
+    private boolean requestOnDrain = false;
+    private boolean ackOnDrain = false;
+    private int unrequestedStanzas = 0;
+    private long bytesAtLastRequest = 0;
+    private long lastRequest = 0;
+
+    private long stanzas = 0;
+    private long requestsSent = 0;
+    private long requestsReceived = 0;
+    private long acksSent = 0;
+
+    /**
+     * @param stanzasReceived the number of stanzas received in the current session
+     * @param bytesWritten the number of bytes written to the current stream
+     */
+    public AckPolicy(final IntSupplier stanzasReceived, final LongSupplier bytesWritten) {
+        this.stanzasReceived = stanzasReceived;
+        this.bytesWritten = bytesWritten;
+    }
+
+    /** Resets the per stream state. Called whenever a new stream or session starts. */
+    public synchronized void reset() {
+        this.requestOnDrain = false;
+        this.ackOnDrain = false;
+        this.unrequestedStanzas = 0;
+        this.bytesAtLastRequest = bytesWritten.getAsLong();
+        this.lastRequest = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Has to be called before a stanza that we want to have acknowledged is queued for writing.
+     *
+     * @return true if an ack request should be sent right after the stanza. Otherwise one will be
+     *     appended once the write queue has been drained
+     */
+    public synchronized boolean onStanzaSent() {
+        ++stanzas;
+        ++unrequestedStanzas;
+        final long now = SystemClock.elapsedRealtime();
+        final long bytes = bytesWritten.getAsLong();
+        if (unrequestedStanzas >= Config.SM_ACK_REQUEST_MAX_STANZAS
+                || bytes - bytesAtLastRequest >= Config.SM_ACK_REQUEST_MAX_BYTES
+                || now - lastRequest >= Config.SM_ACK_REQUEST_MAX_DELAY) {
+            onRequestSent(bytes, now);
+            return true;
+        }
+        requestOnDrain = true;
+        return false;
+    }
+
+    private void onRequestSent(final long bytesWritten, final long now) {
+        ++requestsSent;
+        this.requestOnDrain = false;
+        this.unrequestedStanzas = 0;
+        this.bytesAtLastRequest = bytesWritten;
+        this.lastRequest = now;
+    }
+
+    /**
+     * @return true if the writer has to be woken up to send the ack. False if an ack is already
+     *     pending
+     */
+    public synchronized boolean onAckRequested() {
+        ++requestsReceived;
+        if (ackOnDrain) {
+            return false;
+        }
+        ackOnDrain = true;
+        return true;
+    }
+
+    @Override
+    public synchronized List<StreamElement> onDrain() {
+        if (!ackOnDrain && !requestOnDrain) {
+            return null;
+        }
+        final List<StreamElement> trailer = new ArrayList<>(2);
+        if (ackOnDrain) {
+            ackOnDrain = false;
+            ++acksSent;
+            trailer.add(new Ack(stanzasReceived.getAsInt()));
+        }
+        if (requestOnDrain) {
+            onRequestSent(bytesWritten.getAsLong(), SystemClock.elapsedRealtime());
+            trailer.add(new Request());
+        }
+        return trailer;
+    }
+
+    public synchronized Statistics getStatistics() {
+        return new Statistics(stanzas, requestsSent, requestsReceived, acksSent);
+    }
+
+    public static class Statistics {
+        public final long stanzas;
+        public final long requestsSent;
+        public final long requestsReceived;
+        public final long acksSent;
+
+        private Statistics(
+                final long stanzas,
+                final long requestsSent,
+                final long requestsReceived,
+                final long acksSent) {
+            this.stanzas = stanzas;
+            this.requestsSent = requestsSent;
+            this.requestsReceived = requestsReceived;
+            this.acksSent = acksSent;
+        }
+
+        public double requestsPerStanza() {
+            return stanzas == 0 ? 0 : (double) requestsSent / stanzas;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("stanzas", stanzas)
+                    .add("requestsSent", requestsSent)
+                    .add("requests/stanza", String.format("%.2f", requestsPerStanza()))
+                    .add("requestsReceived", requestsReceived)
+                    .add("acksSent", acksSent)
+                    .toString();
+        }
+    }
+}
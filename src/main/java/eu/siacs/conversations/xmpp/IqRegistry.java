@@ -0,0 +1,256 @@
+package eu.siacs.conversations.xmpp;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableMap;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.entities.Account;
+import eu.siacs.conversations.utils.TimerWheel;
+import eu.siacs.conversations.xml.Element;
+
+import im.conversations.android.xmpp.model.stanza.Iq;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+
+/**
+ * The IQ requests of a connection that are waiting for a response. Each request can have a
+ * deadline after which its callback is invoked with {@link Iq#TIMEOUT}, so a single lost response
+ * doesn’t stall the feature waiting on it until the next disconnect. Deadlines are tracked on a
+ * timer wheel shared by all connections; the callbacks themselves are handed to the connection so
+ * a slow callback doesn’t delay the timeouts of other connections.
+ *
+ * <p>Also keeps the number of requests in flight and a histogram of response times per namespace
+ * of the request.
+ */
+public class IqRegistry {
+
+    private static final TimerWheel TIMER_WHEEL = new TimerWheel("IqTimeouts", 500, 512);
+
+    // upper bounds (inclusive) of the latency histogram buckets in milliseconds
+    private static final long[] LATENCY_BUCKETS = {100, 250, 500, 1000, 2500, 5000, 10000, 30000};
+
+    private final Account account;
+    private final TimeoutExecutor timeoutExecutor;
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+    private final Map<String, NamespaceStatistics> statistics = new ConcurrentHashMap<>();
+
+    public IqRegistry(final Account account, final TimeoutExecutor timeoutExecutor) {
+        this.account = account;
+        this.timeoutExecutor = timeoutExecutor;
+    }
+
+    /**
+     * @param timeout in milliseconds. Zero or less to only fail the callback when the registry is
+     *     cleared
+     */
+    public void register(final Iq request, final Consumer<Iq> callback, final long timeout) {
+        final String id = request.getId();
+        final NamespaceStatistics statistics =
+                this.statistics.computeIfAbsent(namespace(request), ns -> new NamespaceStatistics());
+        final Pending entry = new Pending(request, callback, statistics);
+        statistics.inFlight.incrementAndGet();
+        final Pending previous = this.pending.put(id, entry);
+        if (previous != null) {
+            Log.w(
+                    Config.LOGTAG,
+                    account.getJid().asBareJid() + ": replacing callback for iq with id " + id);
+            previous.finish();
+        }
+        if (timeout > 0) {
+            entry.timeout = TIMER_WHEEL.schedule(() -> expire(id, entry), timeout);
+        }
+    }
+
+    private void expire(final String id, final Pending entry) {
+        if (!this.pending.remove(id, entry)) {
+            return;
+        }
+        entry.finish();
+        entry.statistics.timeouts.incrementAndGet();
+        Log.d(
+                Config.LOGTAG,
+                account.getJid().asBareJid()
+                        + ": no response to iq ("
+                        + namespace(entry.request)
+                        + ") with id "
+                        + id
+                        + " after "
+                        + (SystemClock.elapsedRealtime() - entry.sent)
+                        + "ms");
+        timeoutExecutor.execute(
+                entry.request,
+                () -> {
+                    try {
+                        entry.callback.accept(Iq.TIMEOUT);
+                    } catch (final Throwable throwable) {
+                        // state changes are left to the reader thread
+                        Log.d(
+                                Config.LOGTAG,
+                                account.getJid().asBareJid() + ": iq timeout callback threw",
+                                throwable);
+                    }
+                });
+    }
+
+    /** The request a response with this id would answer or null if there is none pending. */
+    public Iq getRequest(final String id) {
+        final Pending entry = id == null ? null : this.pending.get(id);
+        return entry == null ? null : entry.request;
+    }
+
+    /**
+     * Removes the request that has been answered by the response with this id.
+     *
+     * @return the callback of the request or null if it had timed out or has been answered in the
+     *     meantime
+     */
+    public Consumer<Iq> complete(final String id, final Iq request) {
+        final Pending entry = this.pending.get(id);
+        if (entry == null || entry.request != request || !this.pending.remove(id, entry)) {
+            return null;
+        }
+        entry.finish();
+        entry.statistics.record(SystemClock.elapsedRealtime() - entry.sent);
+        return entry.callback;
+    }
+
+    /** Removes all pending requests and returns their callbacks. */
+    public List<Consumer<Iq>> clear() {
+        final List<Consumer<Iq>> callbacks = new ArrayList<>();
+        for (final String id : new ArrayList<>(this.pending.keySet())) {
+            final Pending entry = this.pending.remove(id);
+            if (entry != null) {
+                entry.finish();
+                callbacks.add(entry.callback);
+            }
+        }
+        return callbacks;
+    }
+
+    public int size() {
+        return this.pending.size();
+    }
+
+    public Map<String, NamespaceStatistics> getStatistics() {
+        return ImmutableMap.copyOf(this.statistics);
+    }
+
+    private static String namespace(final Iq request) {
+        final Collection<Element> children = request.getChildren();
+        if (children.isEmpty()) {
+            return "none";
+        }
+        final String namespace = children.iterator().next().getNamespace();
+        return namespace == null ? "none" : namespace;
+    }
+
+    public interface TimeoutExecutor {
+        /** Runs the timeout callback of the request; must not block the timer wheel. */
+        void execute(Iq request, Runnable callback);
+    }
+
+    private static class Pending {
+        private final Iq request;
+        private final Consumer<Iq> callback;
+        private final NamespaceStatistics statistics;
+        private final long sent = SystemClock.elapsedRealtime();
+        private volatile TimerWheel.Timeout timeout;
+
+        private Pending(
+                final Iq request,
+                final Consumer<Iq> callback,
+                final NamespaceStatistics statistics) {
+            this.request = request;
+            this.callback = callback;
+            this.statistics = statistics;
+        }
+
+        private void finish() {
+            final TimerWheel.Timeout timeout = this.timeout;
+            if (timeout != null) {
+                timeout.cancel();
+            }
+            statistics.inFlight.decrementAndGet();
+        }
+    }
+
+    public static class NamespaceStatistics {
+        private final AtomicInteger inFlight = new AtomicInteger(0);
+        private final AtomicLong responses = new AtomicLong(0);
+        private final AtomicLong timeouts = new AtomicLong(0);
+        private final AtomicLongArray latencies = new AtomicLongArray(LATENCY_BUCKETS.length + 1);
+
+        private void record(final long latency) {
+            responses.incrementAndGet();
+            int bucket = 0;
+            while (bucket < LATENCY_BUCKETS.length && latency > LATENCY_BUCKETS[bucket]) {
+                ++bucket;
+            }
+            latencies.incrementAndGet(bucket);
+        }
+
+        public int getInFlight() {
+            return inFlight.get();
+        }
+
+        public long getResponses() {
+            return responses.get();
+        }
+
+        public long getTimeouts() {
+            return timeouts.get();
+        }
+
+        /**
+         * @return the number of responses per latency bucket. The last bucket counts responses
+         *     slower than the last bound
+         */
+        public long[] getLatencyHistogram() {
+            final long[] histogram = new long[latencies.length()];
+            for (int i = 0; i < histogram.length; ++i) {
+                histogram[i] = latencies.get(i);
+            }
+            return histogram;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            final StringBuilder histogram = new StringBuilder();
+            for (int i = 0; i < latencies.length(); ++i) {
+                final long count = latencies.get(i);
+                if (count == 0) {
+                    continue;
+                }
+                if (histogram.length() > 0) {
+                    histogram.append(", ");
+                }
+                histogram
+                        .append(i < LATENCY_BUCKETS.length
+                                        ? "≤" + LATENCY_BUCKETS[i]
+                                        : ">" + LATENCY_BUCKETS[LATENCY_BUCKETS.length - 1])
+                        .append("ms=")
+                        .append(count);
+            }
+            return MoreObjects.toStringHelper(this)
+                    .add("inFlight", inFlight.get())
+                    .add("responses", responses.get())
+                    .add("timeouts", timeouts.get())
+                    .add("latencies", "[" + histogram + "]")
+                    .toString();
+        }
+    }
+}
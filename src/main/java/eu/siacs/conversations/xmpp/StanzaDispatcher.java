@@ -0,0 +1,270 @@
+package eu.siacs.conversations.xmpp;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableMap;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.entities.Account;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs stanza handlers (MessageParser, PresenceParser) off the socket reader thread. Stanzas are
+ * assigned to a lane by the bare JID of the sender so handlers for the same JID run in the order
+ * the stanzas were received. Stanzas without a sender come from our own account and share the
+ * lane of the own bare JID with carbons and results from the own archive.
+ *
+ * <p>The number of queued stanzas is bounded; once the bound is reached {@link #dispatch(Jid,
+ * String, Runnable)} blocks the reader which in turn pushes back on the server via TCP.
+ */
+public class StanzaDispatcher {
+
+    private static final Executor EXECUTOR = Executors.newCachedThreadPool();
+
+    private final Account account;
+    private final Lane[] lanes;
+    private final Semaphore capacity;
+    private final int queueSize;
+    private final AtomicInteger depth = new AtomicInteger(0);
+    private final AtomicInteger maxDepth = new AtomicInteger(0);
+    private final Map<String, LatencyRecorder> latencies = new ConcurrentHashMap<>();
+
+    public StanzaDispatcher(final Account account, final int lanes, final int queueSize) {
+        this.account = account;
+        this.lanes = new Lane[Math.max(1, lanes)];
+        for (int i = 0; i < this.lanes.length; ++i) {
+            this.lanes[i] = new Lane();
+        }
+        this.queueSize = queueSize;
+        this.capacity = new Semaphore(queueSize);
+    }
+
+    /**
+     * Queues the handler for a stanza. Blocks while the queue is full. The wait is not
+     * interruptible; the stanza has already been counted for stream management and must not be
+     * dropped. Workers keep making progress so the wait is bounded by the time it takes to
+     * process one stanza.
+     */
+    public void dispatch(final Jid from, final String type, final Runnable runnable) {
+        if (!capacity.tryAcquire()) {
+            Log.d(
+                    Config.LOGTAG,
+                    account.getJid().asBareJid()
+                            + ": stanza dispatch queue is full ("
+                            + queueSize
+                            + "). pausing reader");
+            capacity.acquireUninterruptibly();
+        }
+        final int current = depth.incrementAndGet();
+        maxDepth.accumulateAndGet(current, Math::max);
+        lane(from).execute(new Task(type, runnable, true));
+    }
+
+    /**
+     * Queues work that belongs to a JID without blocking. It is not counted against the bound of
+     * the queue; for callers that must not wait for the reader, like timeouts.
+     */
+    public void execute(final Jid from, final String type, final Runnable runnable) {
+        lane(from).execute(new Task(type, runnable, false));
+    }
+
+    /**
+     * Blocks until all stanzas from that JID that have been dispatched so far are processed. Used
+     * to keep handlers that run on the reader thread (IQ callbacks) in order with dispatched
+     * stanzas.
+     */
+    public void await(final Jid from) throws InterruptedException {
+        lane(from).await();
+    }
+
+    public void awaitAll() throws InterruptedException {
+        for (final Lane lane : lanes) {
+            lane.await();
+        }
+    }
+
+    public int getQueueDepth() {
+        return depth.get();
+    }
+
+    public Statistics getStatistics() {
+        final ImmutableMap.Builder<String, Latency> builder = ImmutableMap.builder();
+        for (final Map.Entry<String, LatencyRecorder> entry : latencies.entrySet()) {
+            builder.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return new Statistics(depth.get(), maxDepth.get(), builder.build());
+    }
+
+    private Lane lane(final Jid from) {
+        if (lanes.length == 1) {
+            return lanes[0];
+        }
+        final Jid key = from == null ? account.getJid().asBareJid() : from.asBareJid();
+        return lanes[Math.floorMod(key.hashCode(), lanes.length)];
+    }
+
+    private class Task implements Runnable {
+        private final String type;
+        private final Runnable runnable;
+        private final boolean bounded;
+        private final long queued = System.nanoTime();
+
+        private Task(final String type, final Runnable runnable, final boolean bounded) {
+            this.type = type;
+            this.runnable = runnable;
+            this.bounded = bounded;
+        }
+
+        private void release() {
+            if (bounded) {
+                depth.decrementAndGet();
+                capacity.release();
+            }
+        }
+
+        @Override
+        public void run() {
+            final long started = System.nanoTime();
+            try {
+                runnable.run();
+            } catch (final RuntimeException e) {
+                Log.e(
+                        Config.LOGTAG,
+                        account.getJid().asBareJid() + ": error processing " + type,
+                        e);
+            } finally {
+                final long finished = System.nanoTime();
+                release();
+                latencies
+                        .computeIfAbsent(type, t -> new LatencyRecorder())
+                        .record(started - queued, finished - started);
+            }
+        }
+    }
+
+    private static class Lane {
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        private boolean active = false;
+
+        synchronized void execute(final Runnable runnable) {
+            tasks.offer(runnable);
+            if (!active) {
+                active = true;
+                EXECUTOR.execute(this::drain);
+            }
+        }
+
+        void await() throws InterruptedException {
+            final CountDownLatch latch;
+            synchronized (this) {
+                if (!active) {
+                    return;
+                }
+                latch = new CountDownLatch(1);
+                tasks.offer(latch::countDown);
+            }
+            latch.await();
+        }
+
+        private void drain() {
+            while (true) {
+                final Runnable next;
+                synchronized (this) {
+                    next = tasks.poll();
+                    if (next == null) {
+                        active = false;
+                        return;
+                    }
+                }
+                next.run();
+            }
+        }
+    }
+
+    private static class LatencyRecorder {
+        private final AtomicLong count = new AtomicLong(0);
+        private final AtomicLong waitNanos = new AtomicLong(0);
+        private final AtomicLong processNanos = new AtomicLong(0);
+        private final AtomicLong maxNanos = new AtomicLong(0);
+
+        void record(final long wait, final long process) {
+            count.incrementAndGet();
+            waitNanos.addAndGet(wait);
+            processNanos.addAndGet(process);
+            maxNanos.accumulateAndGet(wait + process, Math::max);
+        }
+
+        Latency snapshot() {
+            final long count = this.count.get();
+            return new Latency(
+                    count,
+                    count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(waitNanos.get() / count),
+                    count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(processNanos.get() / count),
+                    TimeUnit.NANOSECONDS.toMillis(maxNanos.get()));
+        }
+    }
+
+    public static class Latency {
+        public final long count;
+        public final long averageWaitMicros;
+        public final long averageProcessingMicros;
+        public final long maxMillis;
+
+        private Latency(
+                long count, long averageWaitMicros, long averageProcessingMicros, long maxMillis) {
+            this.count = count;
+            this.averageWaitMicros = averageWaitMicros;
+            this.averageProcessingMicros = averageProcessingMicros;
+            this.maxMillis = maxMillis;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper("")
+                    .add("count", count)
+                    .add("waitUs", averageWaitMicros)
+                    .add("processingUs", averageProcessingMicros)
+                    .add("maxMs", maxMillis)
+                    .toString();
+        }
+    }
+
+    public static class Statistics {
+        public final int queueDepth;
+        public final int maxQueueDepth;
+        public final Map<String, Latency> latencies;
+
+        private Statistics(
+                final int queueDepth,
+                final int maxQueueDepth,
+                final Map<String, Latency> latencies) {
+            this.queueDepth = queueDepth;
+            this.maxQueueDepth = maxQueueDepth;
+            this.latencies = latencies;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return MoreObjects.toStringHelper(this)
+                    .add("queueDepth", queueDepth)
+                    .add("maxQueueDepth", maxQueueDepth)
+                    .add("latencies", latencies)
+                    .toString();
+        }
+    }
+}
@@ -21,6 +21,8 @@ import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 
 import eu.siacs.conversations.AppSettings;
 import eu.siacs.conversations.BuildConfig;
@@ -46,6 +48,7 @@ import eu.siacs.conversations.services.MessageArchiveService;
 import eu.siacs.conversations.services.NotificationService;
 import eu.siacs.conversations.services.XmppConnectionService;
 import eu.siacs.conversations.utils.AccountUtils;
+import eu.siacs.conversations.utils.ConnectionRacer;
 import eu.siacs.conversations.utils.CryptoHelper;
 import eu.siacs.conversations.utils.Patterns;
 import eu.siacs.conversations.utils.PhoneHelper;
@@ -53,12 +56,12 @@ import eu.siacs.conversations.utils.Resolver;
 import eu.siacs.conversations.utils.SSLSockets;
 import eu.siacs.conversations.utils.SocksSocketFactory;
 import eu.siacs.conversations.utils.XmlHelper;
+import eu.siacs.conversations.xml.AbstractXmlReader;
 import eu.siacs.conversations.xml.Element;
 import eu.siacs.conversations.xml.LocalizedContent;
 import eu.siacs.conversations.xml.Namespace;
 import eu.siacs.conversations.xml.Tag;
 import eu.siacs.conversations.xml.TagWriter;
-import eu.siacs.conversations.xml.XmlReader;
 import eu.siacs.conversations.xmpp.bind.Bind2;
 import eu.siacs.conversations.xmpp.forms.Data;
 import eu.siacs.conversations.xmpp.jingle.OnJinglePacketReceived;
@@ -106,7 +109,6 @@ import java.io.InputStream;
 import java.net.ConnectException;
 import java.net.IDN;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.security.KeyManagementException;
@@ -120,13 +122,13 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Hashtable;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
@@ -147,13 +149,14 @@ public class XmppConnection implements Runnable {
     private final HashMap<Jid, ServiceDiscoveryResult> disco = new HashMap<>();
     private final HashMap<String, Jid> commands = new HashMap<>();
     private final SparseArray<Stanza> mStanzaQueue = new SparseArray<>();
-    private final Hashtable<String, Pair<Iq, Consumer<Iq>>> packetCallbacks = new Hashtable<>();
+    private final IqRegistry packetCallbacks;
     private final Set<OnAdvancedStreamFeaturesLoaded> advancedStreamFeaturesLoadedListeners =
             new HashSet<>();
     private final AppSettings appSettings;
     private final XmppConnectionService mXmppConnectionService;
     private Socket socket;
-    private XmlReader tagReader;
+    private AbstractXmlReader tagReader;
+    private AbstractXmlReader.Engine xmlReaderEngine = Config.XML_READER_ENGINE;
     private TagWriter tagWriter = new TagWriter();
     private boolean shouldAuthenticate = true;
     private boolean inSmacksSession = false;
@@ -163,7 +166,8 @@ public class XmppConnection implements Runnable {
     private im.conversations.android.xmpp.model.streams.Features streamFeatures;
     private im.conversations.android.xmpp.model.streams.Features boundStreamFeatures;
     private StreamId streamId = null;
-    private int stanzasReceived = 0;
+    // incremented by the reader; read by the writer thread when it appends an ack
+    private volatile int stanzasReceived = 0;
     private int stanzasSent = 0;
     private int stanzasSentBeforeAuthentication;
     private long lastPacketReceived = 0;
@@ -185,6 +189,9 @@ public class XmppConnection implements Runnable {
     private final Consumer<im.conversations.android.xmpp.model.stanza.Message> messageListener;
     private OnStatusChanged statusListener = null;
     private final Runnable bindListener;
+    private final StanzaDispatcher stanzaDispatcher;
+    private final AckPolicy ackPolicy =
+            new AckPolicy(() -> this.stanzasReceived, () -> this.tagWriter.getBytesWritten());
     private OnMessageAcknowledged acknowledgedListener = null;
     private LoginInfo loginInfo;
     private HashedToken.Mechanism hashTokenRequest;
@@ -197,6 +204,17 @@ public class XmppConnection implements Runnable {
 
     public XmppConnection(final Account account, final XmppConnectionService service) {
         this.account = account;
+        this.stanzaDispatcher =
+                new StanzaDispatcher(
+                        account,
+                        Config.STANZA_DISPATCH_LANES,
+                        Config.STANZA_DISPATCH_QUEUE_SIZE);
+        // timeouts are queued behind the stanzas already received from the addressee
+        this.packetCallbacks =
+                new IqRegistry(
+                        account,
+                        (request, callback) ->
+                                stanzaDispatcher.execute(request.getTo(), "iq-timeout", callback));
         this.mXmppConnectionService = service;
         this.appSettings = mXmppConnectionService.getAppSettings();
         this.presenceListener = new PresenceParser(service, account);
@@ -357,85 +375,57 @@ public class XmppConnection implements Runnable {
                             account.getJid().asBareJid() + ": Resolver results were empty");
                     return;
                 }
+                final List<Resolver.Result> preferred = new ArrayList<>();
+                final Resolver.Result seeOtherHost = this.seeOtherHostResolverResult;
+                if (seeOtherHost != null) {
+                    Log.d(
+                            Config.LOGTAG,
+                            account.getJid().asBareJid()
+                                    + ": injected see-other-host on position 0");
+                    preferred.add(seeOtherHost);
+                }
+                final StreamId streamId = this.streamId;
+                final Resolver.Result resumeLocation = streamId == null ? null : streamId.location;
+                if (resumeLocation != null) {
+                    Log.d(
+                            Config.LOGTAG,
+                            account.getJid().asBareJid()
+                                    + ": injected resume location");
+                    preferred.add(resumeLocation);
+                }
                 final Resolver.Result storedBackupResult;
                 if (hardcoded) {
                     storedBackupResult = null;
                 } else {
                     storedBackupResult =
                             mXmppConnectionService.databaseBackend.findResolverResult(domain);
-                    if (storedBackupResult != null && !results.contains(storedBackupResult)) {
-                        results.add(storedBackupResult);
+                    if (storedBackupResult != null) {
                         Log.d(
                                 Config.LOGTAG,
                                 account.getJid().asBareJid()
                                         + ": loaded backup resolver result from db: "
                                         + storedBackupResult);
+                        preferred.add(storedBackupResult);
                     }
                 }
-                final StreamId streamId = this.streamId;
-                final Resolver.Result resumeLocation = streamId == null ? null : streamId.location;
-                if (resumeLocation != null) {
-                    Log.d(
-                            Config.LOGTAG,
-                            account.getJid().asBareJid()
-                                    + ": injected resume location on position 0");
-                    results.add(0, resumeLocation);
-                }
-                final Resolver.Result seeOtherHost = this.seeOtherHostResolverResult;
-                if (seeOtherHost != null) {
-                    Log.d(
-                            Config.LOGTAG,
-                            account.getJid().asBareJid()
-                                    + ": injected see-other-host on position 0");
-                    results.add(0, seeOtherHost);
-                }
-                for (final Iterator<Resolver.Result> iterator = results.iterator();
-                        iterator.hasNext(); ) {
-                    final Resolver.Result result = iterator.next();
-                    if (Thread.currentThread().isInterrupted()) {
-                        Log.d(
-                                Config.LOGTAG,
-                                account.getJid().asBareJid() + ": Thread was interrupted");
-                        return;
-                    }
+                final ConnectionRacer racer =
+                        new ConnectionRacer(
+                                account.getJid().asBareJid(),
+                                preferred,
+                                results,
+                                Config.RACE_CONNECTION_ATTEMPTS
+                                        ? Config.CONNECTION_ATTEMPT_DELAY
+                                        : Config.SOCKET_TIMEOUT * 1000L,
+                                Config.SOCKET_TIMEOUT * 1000);
+                while (true) {
                     try {
+                        final ConnectionRacer.Connection connection = racer.next();
+                        final Resolver.Result result = connection.result;
                         // if tls is true, encryption is implied and must not be started
                         features.encryptionEnabled = result.isDirectTls();
                         verifiedHostname =
                                 result.isAuthenticated() ? result.getHostname().toString() : null;
-                        final InetSocketAddress addr;
-                        if (result.getIp() != null) {
-                            addr = new InetSocketAddress(result.getIp(), result.getPort());
-                            Log.d(
-                                    Config.LOGTAG,
-                                    account.getJid().asBareJid().toString()
-                                            + ": using values from resolver "
-                                            + (result.getHostname() == null
-                                                    ? ""
-                                                    : result.getHostname().toString() + "/")
-                                            + result.getIp().getHostAddress()
-                                            + ":"
-                                            + result.getPort()
-                                            + " tls: "
-                                            + features.encryptionEnabled);
-                        } else {
-                            addr =
-                                    new InetSocketAddress(
-                                            IDN.toASCII(result.getHostname().toString()),
-                                            result.getPort());
-                            Log.d(
-                                    Config.LOGTAG,
-                                    account.getJid().asBareJid().toString()
-                                            + ": using values from resolver "
-                                            + result.getHostname().toString()
-                                            + ":"
-                                            + result.getPort()
-                                            + " tls: "
-                                            + features.encryptionEnabled);
-                        }
-
-                        localSocket = new Socket();
-                        localSocket.connect(addr, Config.SOCKET_TIMEOUT * 1000);
+                        localSocket = connection.socket;
 
                         if (features.encryptionEnabled) {
                             localSocket = upgradeSocketToTls(localSocket);
@@ -458,7 +448,7 @@ public class XmppConnection implements Runnable {
                             throw new StateChangingException(Account.State.STREAM_OPENING_ERROR);
                         }
                     } catch (final StateChangingException e) {
-                        if (!iterator.hasNext()) {
+                        if (!racer.hasNext()) {
                             throw e;
                         }
                     } catch (InterruptedException e) {
@@ -467,6 +457,8 @@ public class XmppConnection implements Runnable {
                                 account.getJid().asBareJid()
                                         + ": thread was interrupted before beginning stream");
                         return;
+                    } catch (final UnknownHostException e) {
+                        throw e;
                     } catch (final Throwable e) {
                         Log.d(
                                 Config.LOGTAG,
@@ -476,7 +468,7 @@ public class XmppConnection implements Runnable {
                                         + "("
                                         + e.getClass().getName()
                                         + ")");
-                        if (!iterator.hasNext()) {
+                        if (!racer.hasNext()) {
                             throw new UnknownHostException();
                         }
                     }
@@ -519,11 +511,38 @@ public class XmppConnection implements Runnable {
             throw new InterruptedException();
         }
         this.socket = socket;
-        tagReader = new XmlReader();
+        // handlers of the previous stream have been counted as handled and can not be dropped.
+        // they have to finish before stanzas of the new stream are processed
+        if (Config.DISPATCH_STANZAS_OFF_READER_THREAD) {
+            stanzaDispatcher.awaitAll();
+        }
+        tagReader = AbstractXmlReader.create(this.xmlReaderEngine);
         if (tagWriter != null) {
+            if (tagWriter.isActive()) {
+                Log.d(
+                        Config.LOGTAG,
+                        account.getJid().asBareJid()
+                                + ": tag writer statistics of previous stream: "
+                                + tagWriter.getStatistics());
+                if (Config.ADAPTIVE_SM_ACKS) {
+                    Log.d(
+                            Config.LOGTAG,
+                            account.getJid().asBareJid()
+                                    + ": stream management ack statistics: "
+                                    + ackPolicy.getStatistics());
+                }
+                Log.d(
+                        Config.LOGTAG,
+                        account.getJid().asBareJid()
+                                + ": iq statistics: "
+                                + packetCallbacks.getStatistics());
+            }
             tagWriter.forceClose();
         }
         tagWriter = new TagWriter();
+        if (Config.ADAPTIVE_SM_ACKS) {
+            tagWriter.setDrainListener(ackPolicy);
+        }
         tagWriter.setOutputStream(socket.getOutputStream());
         tagReader.setInputStream(socket.getInputStream());
         tagWriter.beginDocument();
@@ -659,9 +678,19 @@ public class XmppConnection implements Runnable {
                                     + ": acknowledging stanza #"
                                     + this.stanzasReceived);
                 }
-                final Ack ack = new Ack(this.stanzasReceived);
-                tagWriter.writeStanzaAsync(ack);
+                if (Config.ADAPTIVE_SM_ACKS) {
+                    if (ackPolicy.onAckRequested()) {
+                        tagWriter.drain();
+                    }
+                } else {
+                    final Ack ack = new Ack(this.stanzasReceived);
+                    tagWriter.writeStanzaAsync(ack);
+                }
             } else if (nextTag.isStart("a", Namespace.STREAM_MANAGEMENT)) {
+                if (mWaitingForSmCatchup.get()) {
+                    // messages counted for the catchup might still be queued for dispatch
+                    awaitAllStanzaDispatcher();
+                }
                 boolean accountUiNeedsRefresh = false;
                 synchronized (NotificationService.CATCHUP_LOCK) {
                     if (mWaitingForSmCatchup.compareAndSet(true, false)) {
@@ -681,6 +710,13 @@ public class XmppConnection implements Runnable {
                                     .getNotificationService()
                                     .finishBacklog(true, account);
                         }
+                        if (Config.DISPATCH_STANZAS_OFF_READER_THREAD) {
+                            Log.d(
+                                    Config.LOGTAG,
+                                    account.getJid().asBareJid()
+                                            + ": stanza dispatcher after catchup: "
+                                            + stanzaDispatcher.getStatistics());
+                        }
                     }
                 }
                 if (accountUiNeedsRefresh) {
@@ -1030,6 +1066,7 @@ public class XmppConnection implements Runnable {
         this.streamId = streamId;
         this.stanzasReceived = 0;
         this.inSmacksSession = true;
+        this.ackPolicy.reset();
         final var r = new Request();
         tagWriter.writeStanzaAsync(r);
     }
@@ -1051,6 +1088,7 @@ public class XmppConnection implements Runnable {
     private void processResumed(final Resumed resumed) throws StateChangingException {
         this.inSmacksSession = true;
         this.isBound = true;
+        this.ackPolicy.reset();
         this.tagWriter.writeStanzaAsync(new Request());
         lastPacketReceived = SystemClock.elapsedRealtime();
         final Optional<Integer> h = resumed.getHandled();
@@ -1212,6 +1250,7 @@ public class XmppConnection implements Runnable {
             return;
         }
         if (packet.hasExtension(Jingle.class) && packet.getType() == Iq.Type.SET && isBound) {
+            awaitStanzaDispatcher(packet.getFrom());
             if (this.jingleListener != null) {
                 this.jingleListener.onJinglePacketReceived(account, packet);
             }
@@ -1225,6 +1264,7 @@ public class XmppConnection implements Runnable {
                                 + packet.getFrom());
                 return;
             }
+            awaitStanzaDispatcher(packet.getFrom());
             try {
                 callback.accept(packet);
             } catch (final StateChangingError error) {
@@ -1244,31 +1284,27 @@ public class XmppConnection implements Runnable {
                 throw new StateChangingException(Account.State.INCOMPATIBLE_SERVER);
             }
         } else {
-            synchronized (this.packetCallbacks) {
-                final var pair = packetCallbacks.get(stanza.getId());
-                if (pair == null) {
-                    return null;
+            final Iq request = packetCallbacks.getRequest(stanza.getId());
+            if (request == null) {
+                return null;
+            }
+            if (request.toServer(account)) {
+                if (stanza.fromServer(account)) {
+                    return packetCallbacks.complete(stanza.getId(), request);
+                } else {
+                    Log.e(
+                            Config.LOGTAG,
+                            account.getJid().asBareJid().toString()
+                                    + ": ignoring spoofed iq packet");
                 }
-                if (pair.first.toServer(account)) {
-                    if (stanza.fromServer(account)) {
-                        packetCallbacks.remove(stanza.getId());
-                        return pair.second;
-                    } else {
-                        Log.e(
-                                Config.LOGTAG,
-                                account.getJid().asBareJid().toString()
-                                        + ": ignoring spoofed iq packet");
-                    }
+            } else {
+                if (stanza.getFrom() != null && stanza.getFrom().equals(request.getTo())) {
+                    return packetCallbacks.complete(stanza.getId(), request);
                 } else {
-                    if (stanza.getFrom() != null && stanza.getFrom().equals(pair.first.getTo())) {
-                        packetCallbacks.remove(stanza.getId());
-                        return pair.second;
-                    } else {
-                        Log.e(
-                                Config.LOGTAG,
-                                account.getJid().asBareJid().toString()
-                                        + ": ignoring spoofed iq packet");
-                    }
+                    Log.e(
+                            Config.LOGTAG,
+                            account.getJid().asBareJid().toString()
+                                    + ": ignoring spoofed iq packet");
                 }
             }
         }
@@ -1295,7 +1331,12 @@ public class XmppConnection implements Runnable {
                             + "Not processing message. Thread was interrupted");
             return;
         }
-        this.messageListener.accept(packet);
+        if (Config.DISPATCH_STANZAS_OFF_READER_THREAD) {
+            this.stanzaDispatcher.dispatch(
+                    packet.getFrom(), "message", () -> this.messageListener.accept(packet));
+        } else {
+            this.messageListener.accept(packet);
+        }
     }
 
     private void processPresence(final Tag currentTag) throws IOException {
@@ -1317,7 +1358,58 @@ public class XmppConnection implements Runnable {
                             + "Not processing presence. Thread was interrupted");
             return;
         }
-        this.presenceListener.accept(packet);
+        if (Config.DISPATCH_STANZAS_OFF_READER_THREAD) {
+            this.stanzaDispatcher.dispatch(
+                    packet.getFrom(), "presence", () -> this.presenceListener.accept(packet));
+        } else {
+            this.presenceListener.accept(packet);
+        }
+    }
+
+    /**
+     * IQ handlers run on the reader thread (their callbacks may change the connection state) so
+     * they have to wait for previously dispatched stanzas from the same JID. For example the fin
+     * of a MAM query must only be processed after all results have been.
+     *
+     * @param from the sender; null for our own account
+     */
+    private void awaitStanzaDispatcher(@Nullable final Jid from) {
+        if (!Config.DISPATCH_STANZAS_OFF_READER_THREAD) {
+            return;
+        }
+        try {
+            stanzaDispatcher.await(from);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.d(
+                    Config.LOGTAG,
+                    account.getJid().asBareJid()
+                            + ": interrupted while waiting for stanza dispatcher");
+        }
+    }
+
+    private void awaitAllStanzaDispatcher() {
+        if (!Config.DISPATCH_STANZAS_OFF_READER_THREAD) {
+            return;
+        }
+        try {
+            stanzaDispatcher.awaitAll();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.d(
+                    Config.LOGTAG,
+                    account.getJid().asBareJid()
+                            + ": interrupted while waiting for stanza dispatcher");
+        }
+    }
+
+    public StanzaDispatcher.Statistics getStanzaDispatcherStatistics() {
+        return this.stanzaDispatcher.getStatistics();
+    }
+
+    /** In-flight IQ requests, timeouts and response latencies per namespace of the request. */
+    public Map<String, IqRegistry.NamespaceStatistics> getIqStatistics() {
+        return this.packetCallbacks.getStatistics();
     }
 
     private void sendStartTLS() throws IOException {
@@ -1970,24 +2062,13 @@ public class XmppConnection implements Runnable {
 
     private void clearIqCallbacks() {
         final Iq failurePacket = new Iq(Iq.Type.TIMEOUT);
-        final ArrayList<Consumer<Iq>> callbacks = new ArrayList<>();
-        synchronized (this.packetCallbacks) {
-            if (this.packetCallbacks.isEmpty()) {
-                return;
-            }
-            Log.d(
-                    Config.LOGTAG,
-                    account.getJid().asBareJid()
-                            + ": clearing "
-                            + this.packetCallbacks.size()
-                            + " iq callbacks");
-            final var iterator = this.packetCallbacks.values().iterator();
-            while (iterator.hasNext()) {
-                final var entry = iterator.next();
-                callbacks.add(entry.second);
-                iterator.remove();
-            }
+        final List<Consumer<Iq>> callbacks = this.packetCallbacks.clear();
+        if (callbacks.isEmpty()) {
+            return;
         }
+        Log.d(
+                Config.LOGTAG,
+                account.getJid().asBareJid() + ": cleared " + callbacks.size() + " iq callbacks");
         for (final var callback : callbacks) {
             try {
                 callback.accept(failurePacket);
@@ -2430,6 +2511,28 @@ public class XmppConnection implements Runnable {
         return this.sendUnmodifiedIqPacket(packet, callback, false);
     }
 
+    /**
+     * @return a future that completes with the result, fails with an {@link IqResponseException}
+     *     on error responses and with a {@link TimeoutException} if there was no response in time
+     *     or the connection was lost
+     */
+    public ListenableFuture<Iq> sendIqPacket(final Iq packet) {
+        final SettableFuture<Iq> future = SettableFuture.create();
+        this.sendIqPacket(
+                packet,
+                response -> {
+                    switch (response.getType()) {
+                        case RESULT -> future.set(response);
+                        case TIMEOUT -> future.setException(new TimeoutException());
+                        default ->
+                                future.setException(
+                                        new IqResponseException(
+                                                IqParser.extractErrorMessage(response)));
+                    }
+                });
+        return future;
+    }
+
     public synchronized String sendUnmodifiedIqPacket(
             final Iq packet, final Consumer<Iq> callback, boolean force) {
         // TODO if callback != null verify that type is get or set
@@ -2437,9 +2540,8 @@ public class XmppConnection implements Runnable {
             packet.setId(CryptoHelper.random(9));
         }
         if (callback != null) {
-            synchronized (this.packetCallbacks) {
-                packetCallbacks.put(packet.getId(), new Pair<>(packet, callback));
-            }
+            // requests during stream negotiation are covered by the connect timeout
+            packetCallbacks.register(packet, callback, force ? 0 : Config.IQ_TIMEOUT * 1000L);
         }
         this.sendPacket(packet, force);
         return packet.getId();
@@ -2464,6 +2566,13 @@ public class XmppConnection implements Runnable {
             return;
         }
         synchronized (this.mStanzaQueue) {
+            // decide before the stanza is queued so the writer can’t drain before we asked for an
+            // ack request to be appended
+            final boolean requestAck =
+                    packet instanceof im.conversations.android.xmpp.model.stanza.Message message
+                            && message.getId() != null
+                            && inSmacksSession
+                            && (!Config.ADAPTIVE_SM_ACKS || ackPolicy.onStanzaSent());
             if (force || isBound) {
                 tagWriter.writeStanzaAsync(packet);
             } else {
@@ -2492,9 +2601,7 @@ public class XmppConnection implements Runnable {
                                     + stanzasSent);
                 }
                 this.mStanzaQueue.append(stanzasSent, stanza);
-                if (stanza instanceof im.conversations.android.xmpp.model.stanza.Message
-                        && stanza.getId() != null
-                        && inSmacksSession) {
+                if (requestAck) {
                     if (Config.EXTENDED_SM_LOGGING) {
                         Log.d(
                                 Config.LOGTAG,
@@ -2518,6 +2625,13 @@ public class XmppConnection implements Runnable {
         this.lastPingSent = SystemClock.elapsedRealtime();
     }
 
+    /**
+     * Selects the xml reader implementation. Takes effect on the next (re)connect.
+     */
+    public void setXmlReaderEngine(final AbstractXmlReader.Engine engine) {
+        this.xmlReaderEngine = engine;
+    }
+
     public void setOnJinglePacketReceivedListener(final OnJinglePacketReceived listener) {
         this.jingleListener = listener;
     }
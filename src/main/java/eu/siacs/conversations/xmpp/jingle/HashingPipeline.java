@@ -0,0 +1,110 @@
+package eu.siacs.conversations.xmpp.jingle;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.xmpp.jingle.stanzas.FileTransferDescription;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Computes the SHA-1 and SHA-256 hashes of a file transfer on a separate thread, so the thread
+ * that moves the data between file and transport does not have to wait for them. The transferring
+ * thread takes a buffer with {@link #acquire()}, fills it, writes it and hands it over with {@link
+ * #submit(byte[], int)}; the buffer is returned to the pool once it has been hashed. The number of
+ * buffers ({@link Config#JINGLE_FILE_TRANSFER_BUFFERS}) bounds how far the transfer can get ahead
+ * of the hashing.
+ */
+final class HashingPipeline {
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool();
+    private static final Chunk END = new Chunk(new byte[0], 0);
+
+    private final BlockingQueue<byte[]> buffers;
+    private final BlockingQueue<Chunk> chunks;
+    private final Future<List<FileTransferDescription.Hash>> hashes;
+
+    HashingPipeline() {
+        final int count = Config.JINGLE_FILE_TRANSFER_BUFFERS;
+        this.buffers = new ArrayBlockingQueue<>(count);
+        this.chunks = new ArrayBlockingQueue<>(count + 1);
+        for (int i = 0; i < count; ++i) {
+            this.buffers.add(new byte[Config.JINGLE_FILE_TRANSFER_BUFFER_SIZE]);
+        }
+        this.hashes = EXECUTOR.submit(this::hash);
+    }
+
+    byte[] acquire() throws IOException {
+        try {
+            return this.buffers.take();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    void submit(final byte[] buffer, final int length) throws IOException {
+        try {
+            this.chunks.put(new Chunk(buffer, length));
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    /** Waits until every submitted chunk has been hashed. */
+    List<FileTransferDescription.Hash> finish() throws IOException {
+        try {
+            this.chunks.put(END);
+            return this.hashes.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (final ExecutionException e) {
+            throw new IOException("unable to hash file", e.getCause());
+        }
+    }
+
+    void cancel() {
+        this.hashes.cancel(true);
+    }
+
+    private List<FileTransferDescription.Hash> hash() throws InterruptedException {
+        final Hasher sha1Hasher = Hashing.sha1().newHasher();
+        final Hasher sha256Hasher = Hashing.sha256().newHasher();
+        while (true) {
+            final Chunk chunk = this.chunks.take();
+            if (chunk == END) {
+                break;
+            }
+            sha1Hasher.putBytes(chunk.buffer, 0, chunk.length);
+            sha256Hasher.putBytes(chunk.buffer, 0, chunk.length);
+            this.buffers.put(chunk.buffer);
+        }
+        return ImmutableList.of(
+                new FileTransferDescription.Hash(
+                        sha1Hasher.hash().asBytes(), FileTransferDescription.Algorithm.SHA_1),
+                new FileTransferDescription.Hash(
+                        sha256Hasher.hash().asBytes(), FileTransferDescription.Algorithm.SHA_256));
+    }
+
+    private static final class Chunk {
+        private final byte[] buffer;
+        private final int length;
+
+        private Chunk(final byte[] buffer, final int length) {
+            this.buffer = buffer;
+            this.length = length;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package eu.siacs.conversations.xmpp.jingle;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.entities.Account;
+import eu.siacs.conversations.services.XmppConnectionService;
+import eu.siacs.conversations.xml.Namespace;
+import eu.siacs.conversations.xmpp.XmppConnection;
+import im.conversations.android.xmpp.model.stanza.Iq;
+
+import org.webrtc.PeerConnection;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ICE servers (XEP-0215 external services) per account. The servers are discovered once the
+ * advanced stream features are available and then reused for every call until their credentials
+ * expire. Credentials with an explicit expiry are refreshed in the background shortly before they
+ * expire; servers without expiry are discovered again after {@link Config#ICE_SERVERS_MAX_AGE}.
+ */
+public final class IceServerCache {
+
+    private static final long EXPIRY_MARGIN = 60_000;
+    private static final long REFRESH_AHEAD = 5 * 60_000;
+
+    private final XmppConnectionService service;
+    private final Map<Account, Entry> entries = new HashMap<>();
+
+    IceServerCache(final XmppConnectionService service) {
+        this.service = service;
+    }
+
+    public ListenableFuture<Result> get(final Account account) {
+        final long start = SystemClock.elapsedRealtime();
+        final Entry entry;
+        final boolean cached;
+        if (Config.ICE_SERVER_CACHE) {
+            synchronized (this.entries) {
+                final Entry existing = this.entries.get(account);
+                if (existing != null && !existing.isExpired()) {
+                    entry = existing;
+                    cached = true;
+                } else {
+                    entry = discover(account);
+                    this.entries.put(account, entry);
+                    cached = false;
+                }
+            }
+        } else {
+            entry = discover(account);
+            cached = false;
+        }
+        return Futures.transform(
+                entry.iceServers,
+                iceServers -> {
+                    final long waited = SystemClock.elapsedRealtime() - start;
+                    final long saved = cached ? Math.max(0, entry.roundTrip - waited) : 0;
+                    return new Result(iceServers, cached, saved);
+                },
+                MoreExecutors.directExecutor());
+    }
+
+    /** Drops the cached servers and discovers them again in the background. */
+    public void invalidate(final Account account) {
+        if (!Config.ICE_SERVER_CACHE) {
+            return;
+        }
+        synchronized (this.entries) {
+            final Entry previous = this.entries.remove(account);
+            if (previous != null) {
+                previous.cancelRefresh();
+            }
+            this.entries.put(account, discover(account));
+        }
+    }
+
+    private void refresh(final Account account, final Entry current) {
+        synchronized (this.entries) {
+            if (this.entries.get(account) != current) {
+                return;
+            }
+            if (account.getStatus() != Account.State.ONLINE) {
+                this.entries.remove(account);
+                return;
+            }
+        }
+        Log.d(
+                Config.LOGTAG,
+                account.getJid().asBareJid() + ": refreshing ICE servers ahead of expiry");
+        final Entry refreshed = discover(account);
+        // keep handing out the current servers until the new ones have arrived
+        refreshed.iceServers.addListener(
+                () -> {
+                    final boolean replaced;
+                    synchronized (this.entries) {
+                        replaced =
+                                refreshed.expires > 0
+                                        && this.entries.replace(account, current, refreshed);
+                    }
+                    if (!replaced) {
+                        refreshed.cancelRefresh();
+                    }
+                },
+                MoreExecutors.directExecutor());
+    }
+
+    private Entry discover(final Account account) {
+        final Entry entry = new Entry();
+        final XmppConnection connection = account.getXmppConnection();
+        if (connection == null || !connection.getFeatures().externalServiceDiscovery()) {
+            Log.w(
+                    Config.LOGTAG,
+                    account.getJid().asBareJid() + ": has no external service discovery");
+            entry.expires = Long.MAX_VALUE;
+            entry.iceServers.set(Collections.emptyList());
+            return entry;
+        }
+        final long start = SystemClock.elapsedRealtime();
+        final Iq request = new Iq(Iq.Type.GET);
+        request.setTo(account.getDomain());
+        request.addChild("services", Namespace.EXTERNAL_SERVICE_DISCOVERY);
+        service.sendIqPacket(
+                account,
+                request,
+                (response) -> {
+                    final var iceServers = IceServers.parse(response);
+                    if (iceServers.isEmpty()) {
+                        Log.w(
+                                Config.LOGTAG,
+                                account.getJid().asBareJid() + ": no ICE server found " + response);
+                    }
+                    entry.roundTrip = SystemClock.elapsedRealtime() - start;
+                    if (response.getType() == Iq.Type.RESULT) {
+                        final long expiry = IceServers.expiry(response);
+                        final long now = System.currentTimeMillis();
+                        entry.expires = expiry > 0 ? expiry : now + Config.ICE_SERVERS_MAX_AGE;
+                        if (Config.ICE_SERVER_CACHE
+                                && expiry > 0
+                                && expiry - now > 2 * REFRESH_AHEAD) {
+                            entry.refresh =
+                                    JingleConnectionManager.SCHEDULED_EXECUTOR_SERVICE.schedule(
+                                            () -> refresh(account, entry),
+                                            expiry - now - REFRESH_AHEAD,
+                                            TimeUnit.MILLISECONDS);
+                        }
+                    } else {
+                        // errors and timeouts are not cached; the next call tries again
+                        synchronized (this.entries) {
+                            this.entries.remove(account, entry);
+                        }
+                    }
+                    entry.iceServers.set(iceServers);
+                });
+        return entry;
+    }
+
+    private static final class Entry {
+        private final SettableFuture<List<PeerConnection.IceServer>> iceServers =
+                SettableFuture.create();
+        private volatile long expires = 0;
+        private volatile long roundTrip = 0;
+        private volatile ScheduledFuture<?> refresh;
+
+        private boolean isExpired() {
+            // an entry that is still being discovered is joined rather than discovered twice
+            return iceServers.isDone()
+                    && System.currentTimeMillis() + EXPIRY_MARGIN >= expires;
+        }
+
+        private void cancelRefresh() {
+            final ScheduledFuture<?> refresh = this.refresh;
+            if (refresh != null) {
+                refresh.cancel(false);
+            }
+        }
+    }
+
+    public static final class Result {
+        public final List<PeerConnection.IceServer> iceServers;
+        public final boolean cached;
+        public final long saved;
+
+        private Result(
+                final List<PeerConnection.IceServer> iceServers,
+                final boolean cached,
+                final long saved) {
+            this.iceServers = iceServers;
+            this.cached = cached;
+            this.saved = saved;
+        }
+    }
+}
@@ -7,6 +7,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.primitives.Ints;
 
 import eu.siacs.conversations.Config;
+import eu.siacs.conversations.parser.AbstractParser;
 import eu.siacs.conversations.utils.IP;
 import eu.siacs.conversations.xml.Element;
 import eu.siacs.conversations.xml.Namespace;
@@ -14,6 +15,7 @@ import im.conversations.android.xmpp.model.stanza.Iq;
 
 import org.webrtc.PeerConnection;
 
+import java.text.ParseException;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
@@ -95,4 +97,30 @@ public final class IceServers {
         }
         return listBuilder.build();
     }
+
+    /**
+     * @return the earliest time at which the credentials of one of the services expire, or 0 if
+     *     none of them carries an expiry
+     */
+    public static long expiry(final Iq response) {
+        final Element services =
+                response.findChild("services", Namespace.EXTERNAL_SERVICE_DISCOVERY);
+        if (services == null) {
+            return 0;
+        }
+        long expiry = 0;
+        for (final Element child : services.getChildren()) {
+            final String expires = child.getAttribute("expires");
+            if (!"service".equals(child.getName()) || expires == null) {
+                continue;
+            }
+            try {
+                final long timestamp = AbstractParser.parseTimestamp(expires);
+                expiry = expiry == 0 ? timestamp : Math.min(expiry, timestamp);
+            } catch (final ParseException e) {
+                Log.w(Config.LOGTAG, "unable to parse expiry of external service: " + expires);
+            }
+        }
+        return expiry;
+    }
 }
@@ -31,6 +31,7 @@ import eu.siacs.conversations.services.XmppConnectionService;
 import eu.siacs.conversations.xml.Element;
 import eu.siacs.conversations.xml.Namespace;
 import eu.siacs.conversations.xmpp.Jid;
+import eu.siacs.conversations.xmpp.OnAdvancedStreamFeaturesLoaded;
 import eu.siacs.conversations.xmpp.XmppConnection;
 import eu.siacs.conversations.xmpp.jingle.stanzas.Content;
 import eu.siacs.conversations.xmpp.jingle.stanzas.GenericDescription;
@@ -55,7 +56,8 @@ import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
-public class JingleConnectionManager extends AbstractConnectionManager {
+public class JingleConnectionManager extends AbstractConnectionManager
+        implements OnAdvancedStreamFeaturesLoaded {
     public static final ScheduledExecutorService SCHEDULED_EXECUTOR_SERVICE =
             Executors.newSingleThreadScheduledExecutor();
     private final HashMap<RtpSessionProposal, DeviceDiscoveryState> rtpSessionProposals =
@@ -66,8 +68,20 @@ public class JingleConnectionManager extends AbstractConnectionManager {
     private final Cache<PersistableSessionId, TerminatedRtpSession> terminatedSessions =
             CacheBuilder.newBuilder().expireAfterWrite(24, TimeUnit.HOURS).build();
 
+    private final IceServerCache iceServerCache;
+
     public JingleConnectionManager(XmppConnectionService service) {
         super(service);
+        this.iceServerCache = new IceServerCache(service);
+    }
+
+    public IceServerCache getIceServerCache() {
+        return this.iceServerCache;
+    }
+
+    @Override
+    public void onAdvancedStreamFeaturesAvailable(final Account account) {
+        this.iceServerCache.invalidate(account);
     }
 
     static String nextRandomId() {
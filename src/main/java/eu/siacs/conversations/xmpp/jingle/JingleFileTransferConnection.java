@@ -1,5 +1,6 @@
 package eu.siacs.conversations.xmpp.jingle;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -9,7 +10,6 @@ import com.google.common.base.Strings;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
-import com.google.common.hash.Hashing;
 import com.google.common.primitives.Ints;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
@@ -64,6 +64,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Queue;
@@ -1319,6 +1320,12 @@ public class JingleFileTransferConnection extends AbstractJingleConnection
             }
         }
 
+        protected String throughput(final long start) {
+            final long elapsed = Math.max(1, SystemClock.elapsedRealtime() - start);
+            return String.format(
+                    Locale.US, "%.2f MiB/s", transmitted * 1000.0 / elapsed / (1024 * 1024));
+        }
+
         protected void awaitTransportTermination() {
             try {
                 this.transportTerminationLatch.await();
@@ -1364,36 +1371,34 @@ public class JingleFileTransferConnection extends AbstractJingleConnection
         @Override
         public void run() {
             Log.d(Config.LOGTAG, "file transmitter attempting to send " + total + " bytes");
-            final var sha1Hasher = Hashing.sha1().newHasher();
-            final var sha256Hasher = Hashing.sha256().newHasher();
+            final var hashingPipeline = new HashingPipeline();
+            final long start = SystemClock.elapsedRealtime();
             try (final var fileInputStream = openFileInputStream()) {
-                final var buffer = new byte[4096];
                 while (total - transmitted > 0) {
+                    final var buffer = hashingPipeline.acquire();
                     final int count = fileInputStream.read(buffer);
                     if (count == -1) {
                         throw new EOFException(
                                 String.format("reached EOF after %d/%d", transmitted, total));
                     }
                     outputStream.write(buffer, 0, count);
-                    sha1Hasher.putBytes(buffer, 0, count);
-                    sha256Hasher.putBytes(buffer, 0, count);
+                    hashingPipeline.submit(buffer, count);
                     transmitted += count;
                     updateProgress();
                 }
                 outputStream.flush();
+                final List<FileTransferDescription.Hash> hashes = hashingPipeline.finish();
                 Log.d(
                         Config.LOGTAG,
-                        "transmitted " + transmitted + " bytes from " + file.getAbsolutePath());
-                final List<FileTransferDescription.Hash> hashes =
-                        ImmutableList.of(
-                                new FileTransferDescription.Hash(
-                                        sha1Hasher.hash().asBytes(),
-                                        FileTransferDescription.Algorithm.SHA_1),
-                                new FileTransferDescription.Hash(
-                                        sha256Hasher.hash().asBytes(),
-                                        FileTransferDescription.Algorithm.SHA_256));
+                        "transmitted "
+                                + transmitted
+                                + " bytes from "
+                                + file.getAbsolutePath()
+                                + " at "
+                                + throughput(start));
                 complete.set(hashes);
             } catch (final Exception e) {
+                hashingPipeline.cancel();
                 complete.setException(e);
             }
             // the transport implementations backed by PipedOutputStreams do not like it when
@@ -1444,35 +1449,35 @@ public class JingleFileTransferConnection extends AbstractJingleConnection
         @Override
         public void run() {
             Log.d(Config.LOGTAG, "file receiver attempting to receive " + total + " bytes");
-            final var sha1Hasher = Hashing.sha1().newHasher();
-            final var sha256Hasher = Hashing.sha256().newHasher();
+            final var hashingPipeline = new HashingPipeline();
+            final long start = SystemClock.elapsedRealtime();
             try (final var fileOutputStream = openFileOutputStream()) {
-                final var buffer = new byte[4096];
                 while (total - transmitted > 0) {
-                    final int count = inputStream.read(buffer);
+                    final var buffer = hashingPipeline.acquire();
+                    final int length =
+                            Ints.saturatedCast(Math.min(buffer.length, total - transmitted));
+                    final int count = inputStream.read(buffer, 0, length);
                     if (count == -1) {
                         throw new EOFException(
                                 String.format("reached EOF after %d/%d", transmitted, total));
                     }
                     fileOutputStream.write(buffer, 0, count);
-                    sha1Hasher.putBytes(buffer, 0, count);
-                    sha256Hasher.putBytes(buffer, 0, count);
+                    hashingPipeline.submit(buffer, count);
                     transmitted += count;
                     updateProgress();
                 }
+                final List<FileTransferDescription.Hash> hashes = hashingPipeline.finish();
                 Log.d(
                         Config.LOGTAG,
-                        "written " + transmitted + " bytes to " + file.getAbsolutePath());
-                final List<FileTransferDescription.Hash> hashes =
-                        ImmutableList.of(
-                                new FileTransferDescription.Hash(
-                                        sha1Hasher.hash().asBytes(),
-                                        FileTransferDescription.Algorithm.SHA_1),
-                                new FileTransferDescription.Hash(
-                                        sha256Hasher.hash().asBytes(),
-                                        FileTransferDescription.Algorithm.SHA_256));
+                        "written "
+                                + transmitted
+                                + " bytes to "
+                                + file.getAbsolutePath()
+                                + " at "
+                                + throughput(start));
                 complete.set(hashes);
             } catch (final Exception e) {
+                hashingPipeline.cancel();
                 complete.setException(e);
             }
             Log.d(Config.LOGTAG, "waiting for transport to terminate before stopping thread");
@@ -2823,30 +2823,37 @@ public class JingleRtpConnection extends AbstractJingleConnection
     }
 
     private void discoverIceServers(final OnIceServersDiscovered onIceServersDiscovered) {
-        if (id.account.getXmppConnection().getFeatures().externalServiceDiscovery()) {
-            final Iq request = new Iq(Iq.Type.GET);
-            request.setTo(id.account.getDomain());
-            request.addChild("services", Namespace.EXTERNAL_SERVICE_DISCOVERY);
-            xmppConnectionService.sendIqPacket(
-                    id.account,
-                    request,
-                    (response) -> {
-                        final var iceServers = IceServers.parse(response);
-                        if (iceServers.isEmpty()) {
-                            Log.w(
+        final var future = jingleConnectionManager.getIceServerCache().get(id.account);
+        Futures.addCallback(
+                future,
+                new FutureCallback<>() {
+                    @Override
+                    public void onSuccess(final IceServerCache.Result result) {
+                        if (result.cached) {
+                            Log.d(
                                     Config.LOGTAG,
                                     id.account.getJid().asBareJid()
-                                            + ": no ICE server found "
-                                            + response);
+                                            + ": using cached ICE servers (saved "
+                                            + result.saved
+                                            + "ms)");
+                        } else {
+                            Log.d(
+                                    Config.LOGTAG,
+                                    id.account.getJid().asBareJid() + ": discovered ICE servers");
                         }
-                        onIceServersDiscovered.onIceServersDiscovered(iceServers);
-                    });
-        } else {
-            Log.w(
-                    Config.LOGTAG,
-                    id.account.getJid().asBareJid() + ": has no external service discovery");
-            onIceServersDiscovered.onIceServersDiscovered(Collections.emptyList());
-        }
+                        onIceServersDiscovered.onIceServersDiscovered(result.iceServers);
+                    }
+
+                    @Override
+                    public void onFailure(@NonNull final Throwable throwable) {
+                        Log.w(
+                                Config.LOGTAG,
+                                id.account.getJid().asBareJid() + ": unable to discover ICE servers",
+                                throwable);
+                        onIceServersDiscovered.onIceServersDiscovered(Collections.emptyList());
+                    }
+                },
+                MoreExecutors.directExecutor());
     }
 
     @Override
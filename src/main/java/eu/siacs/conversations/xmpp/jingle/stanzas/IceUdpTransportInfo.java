@@ -18,6 +18,7 @@ import com.google.common.collect.Iterables;
 import com.google.common.collect.Multimap;
 
 import eu.siacs.conversations.Config;
+import eu.siacs.conversations.xml.Attributes;
 import eu.siacs.conversations.xml.Element;
 import eu.siacs.conversations.xml.Namespace;
 import eu.siacs.conversations.xmpp.jingle.SessionDescription;
@@ -27,7 +28,6 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.Hashtable;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
@@ -131,7 +131,7 @@ public class IceUdpTransportInfo extends GenericTransportInfo {
 
     public IceUdpTransportInfo cloneWrapper() {
         final IceUdpTransportInfo transportInfo = new IceUdpTransportInfo();
-        transportInfo.setAttributes(new Hashtable<>(getAttributes()));
+        transportInfo.setAttributes(new Attributes(getAttributes()));
         return transportInfo;
     }
 
@@ -143,7 +143,7 @@ public class IceUdpTransportInfo extends GenericTransportInfo {
             if (child.getName().equals("fingerprint")
                     && Namespace.JINGLE_APPS_DTLS.equals(child.getNamespace())) {
                 final Fingerprint fingerprint = new Fingerprint();
-                fingerprint.setAttributes(new Hashtable<>(child.getAttributes()));
+                fingerprint.setAttributes(new Attributes(child.getAttributes()));
                 fingerprint.setContent(child.getContent());
                 fingerprint.setAttribute("setup", setup.toString().toLowerCase(Locale.ROOT));
                 transportInfo.addChild(fingerprint);
@@ -157,7 +157,7 @@ public class IceUdpTransportInfo extends GenericTransportInfo {
 
     public IceUdpTransportInfo withCandidates(ImmutableCollection<Candidate> candidates) {
         final IceUdpTransportInfo transportInfo = new IceUdpTransportInfo();
-        transportInfo.setAttributes(new Hashtable<>(getAttributes()));
+        transportInfo.setAttributes(new Attributes(getAttributes()));
         transportInfo.setChildren(this.getChildren());
         for(final Candidate candidate : candidates) {
             transportInfo.addChild(candidate);
@@ -1,5 +1,6 @@
 package eu.siacs.conversations.xmpp.jingle.transports;
 
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.google.common.base.Strings;
@@ -23,20 +24,19 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class InbandBytestreamsTransport implements Transport {
 
-    private static final int DEFAULT_BLOCK_SIZE = 8192;
+    // block-size is an unsigned short (XEP-0047)
+    private static final int MAX_BLOCK_SIZE = 65535;
+    private static final int BUFFER_SIZE = 4 * MAX_BLOCK_SIZE;
 
-    private final PipedInputStream pipedInputStream = new PipedInputStream(DEFAULT_BLOCK_SIZE);
-    private final PipedOutputStream pipedOutputStream = new PipedOutputStream();
+    private final RingBuffer outgoing = new RingBuffer(BUFFER_SIZE);
+    private final RingBuffer incoming = new RingBuffer(BUFFER_SIZE);
     private final CountDownLatch terminationLatch = new CountDownLatch(1);
 
     private final XmppConnection xmppConnection;
@@ -57,7 +57,12 @@ public class InbandBytestreamsTransport implements Transport {
 
     public InbandBytestreamsTransport(
             final XmppConnection xmppConnection, final Jid with, final boolean initiator) {
-        this(xmppConnection, with, initiator, UUID.randomUUID().toString(), DEFAULT_BLOCK_SIZE);
+        this(
+                xmppConnection,
+                with,
+                initiator,
+                UUID.randomUUID().toString(),
+                Config.IBB_BLOCK_SIZE);
     }
 
     public InbandBytestreamsTransport(
@@ -70,9 +75,14 @@ public class InbandBytestreamsTransport implements Transport {
         this.with = with;
         this.initiator = initiator;
         this.streamId = streamId;
-        this.blockSize = Math.min(DEFAULT_BLOCK_SIZE, blockSize);
+        this.blockSize = Math.min(MAX_BLOCK_SIZE, blockSize);
         this.blockSender =
-                new BlockSender(xmppConnection, with, streamId, this.blockSize, pipedInputStream);
+                new BlockSender(
+                        xmppConnection,
+                        with,
+                        streamId,
+                        this.blockSize,
+                        outgoing.getInputStream());
         this.blockSenderThread = new Thread(blockSender);
     }
 
@@ -112,6 +122,8 @@ public class InbandBytestreamsTransport implements Transport {
             this.transportCallback.onTransportEstablished();
             this.blockSenderThread.start();
         } else {
+            // nobody is going to read what gets written to the transport
+            Closeables.closeQuietly(this.outgoing.getInputStream());
             this.transportCallback.onTransportSetupFailed();
         }
     }
@@ -139,10 +151,8 @@ public class InbandBytestreamsTransport implements Transport {
         } else {
             buffer = BaseEncoding.base64().decode(encoded);
         }
-        Log.d(Config.LOGTAG, "ibb received " + buffer.length + " bytes");
         try {
-            pipedOutputStream.write(buffer);
-            pipedOutputStream.flush();
+            incoming.getOutputStream().write(buffer);
             return true;
         } catch (final IOException e) {
             Log.d(Config.LOGTAG, "unable to receive ibb data", e);
@@ -153,10 +163,10 @@ public class InbandBytestreamsTransport implements Transport {
     private boolean receiveClose() {
         if (this.isReceiving.compareAndSet(true, false)) {
             try {
-                this.pipedOutputStream.close();
+                this.incoming.getOutputStream().close();
                 return true;
             } catch (final IOException e) {
-                Log.d(Config.LOGTAG, "could not close pipedOutStream");
+                Log.d(Config.LOGTAG, "could not close incoming buffer");
                 return false;
             }
         } else {
@@ -182,7 +192,9 @@ public class InbandBytestreamsTransport implements Transport {
         this.terminationLatch.countDown();
         this.blockSender.close();
         this.blockSenderThread.interrupt();
-        closeQuietly(this.pipedOutputStream);
+        // fails writes that are blocked on a full buffer, even if the sender never started
+        Closeables.closeQuietly(this.outgoing.getInputStream());
+        closeQuietly(this.incoming.getOutputStream());
     }
 
     private static void closeQuietly(final OutputStream outputStream) {
@@ -194,17 +206,13 @@ public class InbandBytestreamsTransport implements Transport {
     }
 
     @Override
-    public OutputStream getOutputStream() throws IOException {
-        final var outputStream = new PipedOutputStream();
-        this.pipedInputStream.connect(outputStream);
-        return outputStream;
+    public OutputStream getOutputStream() {
+        return this.outgoing.getOutputStream();
     }
 
     @Override
-    public InputStream getInputStream() throws IOException {
-        final var inputStream = new PipedInputStream();
-        this.pipedOutputStream.connect(inputStream);
-        return inputStream;
+    public InputStream getInputStream() {
+        return this.incoming.getInputStream();
     }
 
     @Override
@@ -223,8 +231,9 @@ public class InbandBytestreamsTransport implements Transport {
     }
 
     public void setPeerBlockSize(long peerBlockSize) {
-        this.blockSize = Math.min(Ints.saturatedCast(peerBlockSize), DEFAULT_BLOCK_SIZE);
-        if (this.blockSize < DEFAULT_BLOCK_SIZE) {
+        final int previous = this.blockSize;
+        this.blockSize = Math.min(Ints.saturatedCast(peerBlockSize), previous);
+        if (this.blockSize < previous) {
             Log.d(Config.LOGTAG, "peer reconfigured IBB block size to " + this.blockSize);
         }
         this.blockSender.setBlockSize(this.blockSize);
@@ -237,39 +246,60 @@ public class InbandBytestreamsTransport implements Transport {
         private final Jid with;
         private final String streamId;
 
-        private int blockSize;
-        private final PipedInputStream inputStream;
-        private final Semaphore semaphore = new Semaphore(3);
+        private volatile int blockSize;
+        private final InputStream inputStream;
+        private final SendWindow window;
         private final AtomicInteger sequencer = new AtomicInteger();
         private final AtomicBoolean isSending = new AtomicBoolean(true);
+        private long transmitted = 0;
 
         private BlockSender(
                 XmppConnection xmppConnection,
                 final Jid with,
                 String streamId,
                 int blockSize,
-                PipedInputStream inputStream) {
+                InputStream inputStream) {
             this.xmppConnection = xmppConnection;
             this.with = with;
             this.streamId = streamId;
             this.blockSize = blockSize;
             this.inputStream = inputStream;
+            this.window =
+                    Config.IBB_ADAPTIVE_WINDOW
+                            ? new SendWindow(3, Config.IBB_MAX_WINDOW)
+                            : new SendWindow(3, 3);
         }
 
         @Override
         public void run() {
-            final var buffer = new byte[blockSize];
+            final var buffer = new byte[MAX_BLOCK_SIZE];
+            final long start = SystemClock.elapsedRealtime();
             try {
                 while (isSending.get()) {
-                    final int count = this.inputStream.read(buffer);
+                    final int count = readBlock(buffer, this.blockSize);
                     if (count < 0) {
-                        Log.d(Config.LOGTAG, "block sender reached EOF");
+                        final long elapsed = Math.max(1, SystemClock.elapsedRealtime() - start);
+                        Log.d(
+                                Config.LOGTAG,
+                                "block sender reached EOF after "
+                                        + transmitted
+                                        + " bytes in "
+                                        + sequencer.get()
+                                        + " blocks ("
+                                        + (transmitted * 1000 / elapsed / 1024)
+                                        + " KiB/s, "
+                                        + window
+                                        + ")");
                         return;
                     }
-                    this.semaphore.acquire();
-                    final var block = new byte[count];
-                    System.arraycopy(buffer, 0, block, 0, block.length);
-                    sendIbbBlock(sequencer.getAndIncrement(), block);
+                    this.window.acquire();
+                    if (!isSending.get()) {
+                        // an error or timeout arrived while waiting for the window to open
+                        this.window.release();
+                        break;
+                    }
+                    sendIbbBlock(sequencer.getAndIncrement(), buffer, count);
+                    transmitted += count;
                 }
             } catch (final InterruptedException | InterruptedIOException e) {
                 if (isSending.get()) {
@@ -278,18 +308,39 @@ public class InbandBytestreamsTransport implements Transport {
             } catch (final IOException e) {
                 Log.d(Config.LOGTAG, "block sender terminated", e);
             } finally {
+                // unlike a PipedInputStream the ring buffer does not notice that its reader is
+                // gone. closing it makes the writer fail instead of blocking on a full buffer
                 Closeables.closeQuietly(inputStream);
             }
         }
 
-        private void sendIbbBlock(final int sequence, final byte[] block) {
-            Log.d(Config.LOGTAG, "sending ibb block #" + sequence + " " + block.length + " bytes");
+        /**
+         * Blocks until at least one byte is available and then fills the block with whatever else
+         * is available without blocking, so a fast writer produces full blocks.
+         */
+        private int readBlock(final byte[] buffer, final int blockSize) throws IOException {
+            int count = this.inputStream.read(buffer, 0, blockSize);
+            if (count < 0) {
+                return count;
+            }
+            while (count < blockSize && this.inputStream.available() > 0) {
+                final int read = this.inputStream.read(buffer, count, blockSize - count);
+                if (read < 0) {
+                    break;
+                }
+                count += read;
+            }
+            return count;
+        }
+
+        private void sendIbbBlock(final int sequence, final byte[] buffer, final int length) {
             final var iqPacket = new Iq(Iq.Type.SET);
             iqPacket.setTo(with);
             final var data = iqPacket.addChild("data", Namespace.IBB);
             data.setAttribute("sid", this.streamId);
             data.setAttribute("seq", sequence);
-            data.setContent(BaseEncoding.base64().encode(block));
+            data.setContent(BaseEncoding.base64().encode(buffer, 0, length));
+            final long sent = SystemClock.elapsedRealtime();
             this.xmppConnection.sendIqPacket(
                     iqPacket,
                     (response) -> {
@@ -298,8 +349,10 @@ public class InbandBytestreamsTransport implements Transport {
                                     Config.LOGTAG,
                                     "received iq error in response to data block #" + sequence);
                             isSending.set(false);
+                            window.release();
+                        } else {
+                            window.release(SystemClock.elapsedRealtime() - sent);
                         }
-                        semaphore.release();
                     });
         }
 
@@ -0,0 +1,153 @@
+package eu.siacs.conversations.xmpp.jingle.transports;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * A bounded byte buffer connecting one writing and one reading thread. Unlike {@link
+ * java.io.PipedInputStream} the buffer does not track the threads that use it, so a writer may
+ * finish (and its thread go away) while the reader still drains the buffer, and reads and writes
+ * move as many bytes as possible at once instead of waking up the other side once per second.
+ *
+ * <p>Closing the output stream signals EOF to the reader once the buffer has been drained. Closing
+ * the input stream makes pending and further writes fail.
+ */
+final class RingBuffer {
+
+    private final byte[] buffer;
+    private int head = 0;
+    private int size = 0;
+    private boolean writerClosed = false;
+    private boolean readerClosed = false;
+
+    private final InputStream inputStream = new Input();
+    private final OutputStream outputStream = new Output();
+
+    RingBuffer(final int capacity) {
+        this.buffer = new byte[capacity];
+    }
+
+    InputStream getInputStream() {
+        return this.inputStream;
+    }
+
+    OutputStream getOutputStream() {
+        return this.outputStream;
+    }
+
+    private synchronized int read(final byte[] b, final int off, final int len)
+            throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (size == 0) {
+            if (readerClosed) {
+                throw new IOException("ring buffer has been closed");
+            }
+            if (writerClosed) {
+                return -1;
+            }
+            await();
+        }
+        final int count = Math.min(len, size);
+        final int first = Math.min(count, buffer.length - head);
+        System.arraycopy(buffer, head, b, off, first);
+        System.arraycopy(buffer, 0, b, off + first, count - first);
+        head = (head + count) % buffer.length;
+        size -= count;
+        notifyAll();
+        return count;
+    }
+
+    private synchronized void write(final byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            while (size == buffer.length && !readerClosed && !writerClosed) {
+                await();
+            }
+            if (readerClosed || writerClosed) {
+                throw new IOException("ring buffer has been closed");
+            }
+            final int tail = (head + size) % buffer.length;
+            final int count = Math.min(len, buffer.length - size);
+            final int first = Math.min(count, buffer.length - tail);
+            System.arraycopy(b, off, buffer, tail, first);
+            System.arraycopy(b, off + first, buffer, 0, count - first);
+            size += count;
+            off += count;
+            len -= count;
+            notifyAll();
+        }
+    }
+
+    private synchronized int available() {
+        return size;
+    }
+
+    private synchronized void closeWriter() {
+        this.writerClosed = true;
+        notifyAll();
+    }
+
+    private synchronized void closeReader() {
+        this.readerClosed = true;
+        notifyAll();
+    }
+
+    private void await() throws InterruptedIOException {
+        try {
+            wait();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private final class Input extends InputStream {
+
+        @Override
+        public int read() throws IOException {
+            final byte[] single = new byte[1];
+            final int count = RingBuffer.this.read(single, 0, 1);
+            return count < 0 ? -1 : (single[0] & 0xff);
+        }
+
+        @Override
+        public int read(@NonNull final byte[] b, final int off, final int len)
+                throws IOException {
+            return RingBuffer.this.read(b, off, len);
+        }
+
+        @Override
+        public int available() {
+            return RingBuffer.this.available();
+        }
+
+        @Override
+        public void close() {
+            closeReader();
+        }
+    }
+
+    private final class Output extends OutputStream {
+
+        @Override
+        public void write(final int b) throws IOException {
+            RingBuffer.this.write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(@NonNull final byte[] b, final int off, final int len)
+                throws IOException {
+            RingBuffer.this.write(b, off, len);
+        }
+
+        @Override
+        public void close() {
+            closeWriter();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package eu.siacs.conversations.xmpp.jingle.transports;
+
+import androidx.annotation.NonNull;
+
+import com.google.common.base.MoreObjects;
+
+/**
+ * Limits the number of unacknowledged blocks of an in-band bytestream. The window grows by one
+ * block after a full window of blocks has been acknowledged without the round trip time rising
+ * above twice the lowest one observed, and shrinks by a quarter (at most once per window) when it
+ * rises above three times the lowest one, which means responses are queuing up somewhere between
+ * the two clients.
+ */
+final class SendWindow {
+
+    private final int maximum;
+    private int window;
+    private int inFlight = 0;
+    private int acknowledged = 0;
+    private int sinceDecrease = 0;
+    private long minimumRoundTrip = Long.MAX_VALUE;
+    private long smoothedRoundTrip = -1;
+
+    SendWindow(final int initial, final int maximum) {
+        this.window = Math.min(initial, maximum);
+        this.maximum = maximum;
+    }
+
+    synchronized void acquire() throws InterruptedException {
+        while (inFlight >= window) {
+            wait();
+        }
+        ++inFlight;
+    }
+
+    /** Releases a block that has not been acknowledged successfully. */
+    synchronized void release() {
+        --inFlight;
+        notifyAll();
+    }
+
+    synchronized void release(final long roundTrip) {
+        --inFlight;
+        minimumRoundTrip = Math.min(minimumRoundTrip, roundTrip);
+        smoothedRoundTrip =
+                smoothedRoundTrip < 0 ? roundTrip : (smoothedRoundTrip * 7 + roundTrip) / 8;
+        ++sinceDecrease;
+        if (smoothedRoundTrip <= 2 * Math.max(1, minimumRoundTrip)) {
+            if (++acknowledged >= window) {
+                acknowledged = 0;
+                window = Math.min(window + 1, maximum);
+            }
+        } else if (smoothedRoundTrip > 3 * Math.max(1, minimumRoundTrip)
+                && sinceDecrease >= window) {
+            sinceDecrease = 0;
+            acknowledged = 0;
+            window = Math.max(1, window * 3 / 4);
+        }
+        notifyAll();
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        return MoreObjects.toStringHelper(this)
+                .add("window", window)
+                .add("inFlight", inFlight)
+                .add("minRtt", minimumRoundTrip == Long.MAX_VALUE ? -1 : minimumRoundTrip)
+                .add("srtt", smoothedRoundTrip)
+                .toString();
+    }
+}
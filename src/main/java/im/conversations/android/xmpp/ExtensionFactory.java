@@ -4,6 +4,7 @@ package im.conversations.android.xmpp;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Objects;
 
+import eu.siacs.conversations.Config;
 import eu.siacs.conversations.xml.Element;
 
 import im.conversations.android.xmpp.model.Extension;
@@ -14,6 +15,14 @@ import java.lang.reflect.InvocationTargetException;
 public final class ExtensionFactory {
 
     public static Element create(final String name, final String namespace) {
+        if (Config.GENERATED_EXTENSION_FACTORY) {
+            final Extension extension = Extensions.create(name, namespace);
+            return extension == null ? new Element(name, namespace) : extension;
+        }
+        return createReflectively(name, namespace);
+    }
+
+    static Element createReflectively(final String name, final String namespace) {
         final Class<? extends Extension> clazz = of(name, namespace);
         if (clazz == null) {
             return new Element(name, namespace);
@@ -28,10 +28,18 @@ public class Extension extends Element {
     }
 
     public <E extends Extension> boolean hasExtension(final Class<E> clazz) {
+        final var indexed = findIndexedChildren(clazz);
+        if (indexed != null) {
+            return !indexed.isEmpty();
+        }
         return Iterables.any(this.children, clazz::isInstance);
     }
 
     public <E extends Extension> E getExtension(final Class<E> clazz) {
+        final var indexed = findIndexedChildren(clazz);
+        if (indexed != null) {
+            return indexed.isEmpty() ? null : clazz.cast(indexed.get(0));
+        }
         final var extension = Iterables.find(this.children, clazz::isInstance, null);
         if (extension == null) {
             return null;
@@ -40,6 +48,10 @@ public class Extension extends Element {
     }
 
     public <E extends Extension> Collection<E> getExtensions(final Class<E> clazz) {
+        final var indexed = findIndexedChildren(clazz);
+        if (indexed != null) {
+            return Collections2.transform(indexed, clazz::cast);
+        }
         return Collections2.transform(
                 Collections2.filter(this.children, clazz::isInstance), clazz::cast);
     }
@@ -1,5 +1,6 @@
 package eu.siacs.conversations.entities;
 
+import android.net.Uri;
 import android.util.Base64;
 
 import com.google.common.base.Charsets;
@@ -10,7 +11,10 @@ import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import eu.siacs.conversations.android.PhoneNumberContact;
 import eu.siacs.conversations.xml.Element;
@@ -72,26 +76,19 @@ public class Entry implements Comparable<Entry> {
     }
 
     private static List<Entry> ofPhoneNumberContactsAndContacts(final Collection<PhoneNumberContact> phoneNumberContacts, Collection<Contact> systemContacts) {
-        final ArrayList<Entry> entries = new ArrayList<>();
+        final Map<Uri, PhoneNumberContact> byUri = new HashMap<>();
+        for (final PhoneNumberContact phoneNumberContact : phoneNumberContacts) {
+            byUri.put(phoneNumberContact.getLookupUri(), phoneNumberContact);
+        }
+        final Map<String, Entry> entries = new LinkedHashMap<>();
         for(Contact contact : systemContacts) {
-            final PhoneNumberContact phoneNumberContact = PhoneNumberContact.findByUri(phoneNumberContacts, contact.getSystemAccount());
+            final PhoneNumberContact phoneNumberContact = byUri.get(contact.getSystemAccount());
             if (phoneNumberContact != null && phoneNumberContact.getPhoneNumber() != null) {
-                Entry entry = findOrCreateByPhoneNumber(entries, phoneNumberContact.getPhoneNumber());
+                final Entry entry = entries.computeIfAbsent(phoneNumberContact.getPhoneNumber(), number -> new Entry(number, new ArrayList<>()));
                 entry.jids.add(contact.getJid().asBareJid());
             }
         }
-        return entries;
-    }
-
-    private static Entry findOrCreateByPhoneNumber(final List<Entry> entries, String number) {
-        for(Entry entry : entries) {
-            if (entry.number.equals(number)) {
-                return entry;
-            }
-        }
-        Entry entry = new Entry(number, new ArrayList<>());
-        entries.add(entry);
-        return entry;
+        return new ArrayList<>(entries.values());
     }
 
     public List<Jid> getJids() {
@@ -0,0 +1,126 @@
+package eu.siacs.conversations.services;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.entities.Account;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+/**
+ * The phone numbers last synchronized with the API server and the version the server assigned to
+ * that phone book. With both known, the next synchronization only has to send the numbers that
+ * have been added to or removed from the address book since.
+ */
+final class PhoneBookSnapshot {
+
+    private static final String DIRECTORY = "phone-book";
+
+    static final PhoneBookSnapshot EMPTY = new PhoneBookSnapshot(null, ImmutableSet.of());
+
+    private final String ver;
+    private final Set<String> numbers;
+
+    PhoneBookSnapshot(final String ver, final Set<String> numbers) {
+        this.ver = ver;
+        this.numbers = numbers;
+    }
+
+    String getVer() {
+        return ver;
+    }
+
+    Set<String> getNumbers() {
+        return numbers;
+    }
+
+    boolean isDeltaCapable() {
+        return !Strings.isNullOrEmpty(ver);
+    }
+
+    Set<String> added(final Set<String> current) {
+        return Sets.difference(current, numbers);
+    }
+
+    Set<String> removed(final Set<String> current) {
+        return Sets.difference(numbers, current);
+    }
+
+    static PhoneBookSnapshot load(final Context context, final Account account) {
+        final AtomicFile file = getFile(context, account);
+        try (final BufferedReader reader =
+                new BufferedReader(
+                        new InputStreamReader(file.openRead(), StandardCharsets.UTF_8))) {
+            final String ver = reader.readLine();
+            final ImmutableSet.Builder<String> numbers = ImmutableSet.builder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    numbers.add(line);
+                }
+            }
+            return new PhoneBookSnapshot(ver, numbers.build());
+        } catch (final FileNotFoundException e) {
+            return EMPTY;
+        } catch (final IOException e) {
+            Log.d(
+                    Config.LOGTAG,
+                    account.getJid().asBareJid() + ": unable to read phone book snapshot",
+                    e);
+            return EMPTY;
+        }
+    }
+
+    void save(final Context context, final Account account) {
+        final AtomicFile file = getFile(context, account);
+        FileOutputStream outputStream = null;
+        try {
+            outputStream = file.startWrite();
+            final BufferedWriter writer =
+                    new BufferedWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8));
+            writer.write(Strings.nullToEmpty(ver));
+            writer.write('\n');
+            for (final String number : numbers) {
+                writer.write(number);
+                writer.write('\n');
+            }
+            writer.flush();
+            file.finishWrite(outputStream);
+        } catch (final IOException e) {
+            Log.d(
+                    Config.LOGTAG,
+                    account.getJid().asBareJid() + ": unable to write phone book snapshot",
+                    e);
+            if (outputStream != null) {
+                file.failWrite(outputStream);
+            }
+        }
+    }
+
+    static void delete(final Context context, final Account account) {
+        getFile(context, account).delete();
+    }
+
+    private static AtomicFile getFile(final Context context, final Account account) {
+        final File directory = new File(context.getFilesDir(), DIRECTORY);
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.d(Config.LOGTAG, "unable to create " + directory.getAbsolutePath());
+        }
+        return new AtomicFile(new File(directory, account.getUuid()));
+    }
+}
@@ -12,6 +12,7 @@ import android.os.SystemClock;
 import android.util.Log;
 
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.android.PhoneNumberContact;
@@ -51,9 +52,9 @@ import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.cert.CertificateException;
 import java.util.ArrayList;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -383,6 +384,11 @@ public class QuickConversationsService extends AbstractQuickConversationsService
 
     }
 
+    @Override
+    public void onAccountDeleted(final Account account) {
+        mSerialSingleThreadExecutor.execute(() -> PhoneBookSnapshot.delete(service, account));
+    }
+
 
     private void considerSync(boolean forced) {
         final ImmutableMap<String, PhoneNumberContact> allContacts = PhoneNumberContact.load(service);
@@ -391,7 +397,7 @@ public class QuickConversationsService extends AbstractQuickConversationsService
             if (contacts.size() < allContacts.size()) {
                 Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": found own phone number in address book. ignoring...");
             }
-            refresh(account, contacts.values());
+            refresh(account, contacts);
             if (!considerSync(account, contacts, forced)) {
                 service.syncRoster(account);
             }
@@ -407,14 +413,19 @@ public class QuickConversationsService extends AbstractQuickConversationsService
         return result;
     }
 
-    private void refresh(Account account, Collection<PhoneNumberContact> contacts) {
+    private void refresh(Account account, Map<String, PhoneNumberContact> contacts) {
+        final Map<Uri, PhoneNumberContact> byUri = new HashMap<>();
+        for (final PhoneNumberContact phoneNumberContact : contacts.values()) {
+            byUri.put(phoneNumberContact.getLookupUri(), phoneNumberContact);
+        }
         for (Contact contact : account.getRoster().getWithSystemAccounts(PhoneNumberContact.class)) {
             final Uri uri = contact.getSystemAccount();
             if (uri == null) {
                 continue;
             }
             final String number = getNumber(contact);
-            final PhoneNumberContact phoneNumberContact = PhoneNumberContact.findByUriOrNumber(contacts, uri, number);
+            final PhoneNumberContact found = byUri.get(uri);
+            final PhoneNumberContact phoneNumberContact = found != null || number == null ? found : contacts.get(number);
             final boolean needsCacheClean;
             if (phoneNumberContact != null) {
                 if (!uri.equals(phoneNumberContact.getLookupUri())) {
@@ -448,50 +459,67 @@ public class QuickConversationsService extends AbstractQuickConversationsService
         }
         mRunningSyncJobs.incrementAndGet();
         final Jid syncServer = Jid.of(API_DOMAIN);
-        Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": sending phone list to " + syncServer);
+        final PhoneBookSnapshot snapshot = Config.QUICKSY_DELTA_SYNC ? PhoneBookSnapshot.load(service, account) : PhoneBookSnapshot.EMPTY;
+        final boolean delta = snapshot.isDeltaCapable() && !forced;
         final List<Element> entries = new ArrayList<>();
-        for (final PhoneNumberContact c : contacts.values()) {
-            entries.add(new Element("entry").setAttribute("number", c.getPhoneNumber()));
+        if (delta) {
+            for (final String number : snapshot.added(contacts.keySet())) {
+                entries.add(new Element("entry").setAttribute("number", number));
+            }
+            for (final String number : snapshot.removed(contacts.keySet())) {
+                entries.add(new Element("removed").setAttribute("number", number));
+            }
+            Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": sending " + entries.size() + " phone book changes since " + snapshot.getVer() + " to " + syncServer);
+        } else {
+            for (final PhoneNumberContact c : contacts.values()) {
+                entries.add(new Element("entry").setAttribute("number", c.getPhoneNumber()));
+            }
+            Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": sending phone list to " + syncServer);
         }
         final Iq query = new Iq(Iq.Type.GET);
         query.setTo(syncServer);
         final Element book = new Element("phone-book", Namespace.SYNCHRONIZATION).setChildren(entries);
         final String statusQuo = Entry.statusQuo(contacts.values(), account.getRoster().getWithSystemAccounts(PhoneNumberContact.class));
         book.setAttribute("ver", statusQuo);
+        if (delta) {
+            book.setAttribute("since", snapshot.getVer());
+        }
         query.addChild(book);
         mLastSyncAttempt = Attempt.create(hash);
+        final long start = SystemClock.elapsedRealtime();
         service.sendIqPacket(account, query, (response) -> {
             if (response.getType() == Iq.Type.RESULT) {
                 final Element phoneBook = response.findChild("phone-book", Namespace.SYNCHRONIZATION);
                 if (phoneBook != null) {
-                    final List<Contact> withSystemAccounts = account.getRoster().getWithSystemAccounts(PhoneNumberContact.class);
-                    for (Entry entry : Entry.ofPhoneBook(phoneBook)) {
-                        final PhoneNumberContact phoneContact = contacts.get(entry.getNumber());
-                        if (phoneContact == null) {
-                            continue;
-                        }
-                        for (final Jid jid : entry.getJids()) {
-                            final Contact contact = account.getRoster().getContact(jid);
-                            final boolean needsCacheClean = contact.setPhoneContact(phoneContact);
-                            if (needsCacheClean) {
-                                service.getAvatarService().clear(contact);
-                            }
-                            withSystemAccounts.remove(contact);
-                        }
+                    final List<Entry> results = Entry.ofPhoneBook(phoneBook);
+                    if (delta) {
+                        applyDelta(account, contacts, results);
+                    } else {
+                        apply(account, contacts, results);
                     }
-                    for (final Contact contact : withSystemAccounts) {
-                        final boolean needsCacheClean = contact.unsetPhoneContact(PhoneNumberContact.class);
-                        if (needsCacheClean) {
-                            service.getAvatarService().clear(contact);
-                        }
+                    Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": applied " + results.size() + " phone book entries (" + (delta ? "delta" : "full") + ") in " + (SystemClock.elapsedRealtime() - start) + "ms");
+                    final String ver = phoneBook.getAttribute("ver");
+                    if (Config.QUICKSY_DELTA_SYNC && ver != null) {
+                        final PhoneBookSnapshot synced = new PhoneBookSnapshot(ver, ImmutableSet.copyOf(contacts.keySet()));
+                        mSerialSingleThreadExecutor.execute(() -> synced.save(service, account));
+                    } else if (delta) {
+                        mSerialSingleThreadExecutor.execute(() -> PhoneBookSnapshot.delete(service, account));
                     }
                 } else {
                     Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": phone number contact list remains unchanged");
+                    if (snapshot.isDeltaCapable()) {
+                        // the server has confirmed the numbers; keep the version it has issued
+                        final PhoneBookSnapshot synced = new PhoneBookSnapshot(snapshot.getVer(), ImmutableSet.copyOf(contacts.keySet()));
+                        mSerialSingleThreadExecutor.execute(() -> synced.save(service, account));
+                    }
                 }
             } else if (response.getType() == Iq.Type.TIMEOUT) {
                 mLastSyncAttempt = Attempt.NULL;
             } else {
                 Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": failed to sync contact list with api server");
+                if (delta) {
+                    mSerialSingleThreadExecutor.execute(() -> PhoneBookSnapshot.delete(service, account));
+                }
             }
             mRunningSyncJobs.decrementAndGet();
             service.syncRoster(account);
@@ -500,6 +528,74 @@ public class QuickConversationsService extends AbstractQuickConversationsService
         return true;
     }
 
+    private void apply(final Account account, final Map<String, PhoneNumberContact> contacts, final List<Entry> results) {
+        final Set<Contact> withSystemAccounts = new HashSet<>(account.getRoster().getWithSystemAccounts(PhoneNumberContact.class));
+        for (final Entry entry : results) {
+            final PhoneNumberContact phoneContact = contacts.get(entry.getNumber());
+            if (phoneContact == null) {
+                continue;
+            }
+            for (final Jid jid : entry.getJids()) {
+                final Contact contact = account.getRoster().getContact(jid);
+                setPhoneContact(contact, phoneContact);
+                withSystemAccounts.remove(contact);
+            }
+        }
+        for (final Contact contact : withSystemAccounts) {
+            unsetPhoneContact(contact);
+        }
+    }
+
+    /**
+     * In delta mode the server only returns the numbers whose accounts have changed since the
+     * last synchronization (an entry without jids means the number no longer has one). Contacts
+     * of numbers that are not mentioned keep their phone contact; contacts of removed numbers have
+     * already been taken care of by {@link #refresh(Account, Map)}.
+     */
+    private void applyDelta(final Account account, final Map<String, PhoneNumberContact> contacts, final List<Entry> results) {
+        final Map<Uri, String> numbersByUri = new HashMap<>();
+        for (final PhoneNumberContact phoneContact : contacts.values()) {
+            numbersByUri.put(phoneContact.getLookupUri(), phoneContact.getPhoneNumber());
+        }
+        final Map<String, Set<Contact>> byNumber = new HashMap<>();
+        for (final Contact contact : account.getRoster().getWithSystemAccounts(PhoneNumberContact.class)) {
+            final Uri uri = contact.getSystemAccount();
+            final String number = uri == null ? null : numbersByUri.get(uri);
+            if (number != null) {
+                byNumber.computeIfAbsent(number, n -> new HashSet<>()).add(contact);
+            }
+        }
+        for (final Entry entry : results) {
+            final Set<Contact> previous = byNumber.getOrDefault(entry.getNumber(), Collections.emptySet());
+            final PhoneNumberContact phoneContact = contacts.get(entry.getNumber());
+            final Set<Contact> current = new HashSet<>();
+            if (phoneContact != null) {
+                for (final Jid jid : entry.getJids()) {
+                    final Contact contact = account.getRoster().getContact(jid);
+                    setPhoneContact(contact, phoneContact);
+                    current.add(contact);
+                }
+            }
+            for (final Contact contact : previous) {
+                if (!current.contains(contact)) {
+                    unsetPhoneContact(contact);
+                }
+            }
+        }
+    }
+
+    private void setPhoneContact(final Contact contact, final PhoneNumberContact phoneContact) {
+        if (contact.setPhoneContact(phoneContact)) {
+            service.getAvatarService().clear(contact);
+        }
+    }
+
+    private void unsetPhoneContact(final Contact contact) {
+        if (contact.unsetPhoneContact(PhoneNumberContact.class)) {
+            service.getAvatarService().clear(contact);
+        }
+    }
+
 
     public interface OnVerificationRequested {
         void onVerificationRequestFailed(int code);